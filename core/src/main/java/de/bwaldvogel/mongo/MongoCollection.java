@@ -1,9 +1,11 @@
 package de.bwaldvogel.mongo;
 
 import java.util.List;
+import java.util.Map;
 
 import de.bwaldvogel.mongo.backend.Index;
 import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.exception.MongoServerError;
 
 public interface MongoCollection<P> {
 
@@ -36,6 +38,14 @@ public interface MongoCollection<P> {
 
     int insertDocuments(List<Document> documents);
 
+    /**
+     * Inserts the documents in their order. An ordered insert stops at the first document
+     * that cannot be inserted, an unordered insert continues with the next document.
+     *
+     * @return the errors of the documents that were not inserted by their index
+     */
+    Map<Integer, MongoServerError> insertDocuments(List<Document> documents, boolean ordered);
+
     Document updateDocuments(Document selector, Document update, boolean isMulti, boolean isUpsert);
 
     int deleteDocuments(Document selector, int limit);
@@ -48,6 +58,12 @@ public interface MongoCollection<P> {
 
     Document findAndModify(Document query);
 
+    Document explain(String command, Document query, boolean withExecutionStats);
+
+    Document handlePlanCacheListQueryShapes();
+
+    Document handlePlanCacheClear(Document query);
+
     int count(Document query, int skip, int limit);
 
     int count();
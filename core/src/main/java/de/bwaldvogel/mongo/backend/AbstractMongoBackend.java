@@ -7,7 +7,9 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +35,7 @@ public abstract class AbstractMongoBackend implements MongoBackend {
     private static final Logger log = LoggerFactory.getLogger(AbstractMongoBackend.class);
 
     private final TreeMap<String, MongoDatabase> databases = new TreeMap<>();
+    private final Set<String> unopenedDatabaseNames = new TreeSet<>();
 
     private final List<Integer> version = Arrays.asList(3, 0, 0);
 
@@ -47,12 +50,43 @@ public abstract class AbstractMongoBackend implements MongoBackend {
         MongoDatabase db = databases.get(database);
         if (db == null) {
             db = openOrCreateDatabase(database);
-            log.info("created database {}", db.getDatabaseName());
+            if (unopenedDatabaseNames.remove(database)) {
+                log.info("opened database {}", db.getDatabaseName());
+            } else {
+                log.info("created database {}", db.getDatabaseName());
+            }
             databases.put(database, db);
         }
         return db;
     }
 
+    /**
+     * Registers an existing database that is opened on its first access instead of
+     * when the backend starts.
+     */
+    protected synchronized void addUnopenedDatabase(String database) {
+        if (!databases.containsKey(database)) {
+            unopenedDatabaseNames.add(database);
+        }
+    }
+
+    /**
+     * @return the database or null if it neither is open nor was registered as unopened database
+     */
+    private synchronized MongoDatabase getDatabase(String database) {
+        if (unopenedDatabaseNames.contains(database)) {
+            return resolveDatabase(database);
+        }
+        return databases.get(database);
+    }
+
+    private synchronized List<MongoDatabase> getAllDatabases() {
+        for (String database : new ArrayList<>(unopenedDatabaseNames)) {
+            resolveDatabase(database);
+        }
+        return new ArrayList<>(databases.values());
+    }
+
     private Document getLog(String argument) {
         log.debug("getLog: {}", argument);
         Document response = new Document();
@@ -77,7 +111,7 @@ public abstract class AbstractMongoBackend implements MongoBackend {
         if (command.equalsIgnoreCase("listdatabases")) {
             Document response = new Document();
             List<Document> dbs = new ArrayList<>();
-            for (MongoDatabase db : databases.values()) {
+            for (MongoDatabase db : getAllDatabases()) {
                 Document dbObj = new Document("name", db.getDatabaseName());
                 dbObj.put("empty", Boolean.valueOf(db.isEmpty()));
                 dbs.add(dbObj);
@@ -144,7 +178,7 @@ public abstract class AbstractMongoBackend implements MongoBackend {
         final String databaseName = Utils.getDatabaseNameFromFullName(namespace);
         final String collectionName = Utils.getCollectionNameFromFullName(namespace);
 
-        MongoDatabase database = databases.get(databaseName);
+        MongoDatabase database = getDatabase(databaseName);
         if (database == null) {
             return null;
         }
@@ -225,6 +259,7 @@ public abstract class AbstractMongoBackend implements MongoBackend {
 
     @Override
     public void dropDatabase(String databaseName) {
+        getDatabase(databaseName);
         MongoDatabase removedDatabase = databases.remove(databaseName);
         removedDatabase.drop();
     }
@@ -15,6 +15,9 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import de.bwaldvogel.mongo.MongoCollection;
 import de.bwaldvogel.mongo.bson.BsonTimestamp;
@@ -30,7 +33,14 @@ public abstract class AbstractMongoCollection<P> implements MongoCollection<P> {
     private String databaseName;
     private final List<Index<P>> indexes = new ArrayList<>();
     private final QueryMatcher matcher = new DefaultQueryMatcher();
+    private final PlanCache<P> planCache = new PlanCache<>();
     protected final String idField;
+    private ExplainStats explainStats;
+
+    private static class ExplainStats {
+        private long keysExamined;
+        private long docsExamined;
+    }
 
     protected AbstractMongoCollection(String databaseName, String collectionName, String idField) {
         this.databaseName = databaseName;
@@ -38,39 +48,203 @@ public abstract class AbstractMongoCollection<P> implements MongoCollection<P> {
         this.idField = idField;
     }
 
-    protected boolean documentMatchesQuery(Document document, Document query) {
-        return matcher.matches(document, query);
+    protected boolean documentMatchesQuery(Document document, CompiledQuery query) {
+        if (explainStats != null) {
+            explainStats.docsExamined++;
+        }
+        return query.matches(document);
+    }
+
+    private Iterable<Document> queryDocuments(Document query, Document orderBy, Document projection,
+                                                int numberToSkip, int numberToReturn) {
+        synchronized (indexes) {
+            QueryPlan<P> plan = planQuery(query, orderBy, projection);
+            if (!plan.isCollectionScan()) {
+                Iterable<P> positions = getExplainedPositions(plan.getIndex(), query);
+                if (isCoveredQuery(plan.getIndex(), query, orderBy, projection)) {
+                    return projectFromIndex(plan.getIndex(), query, positions, numberToSkip, numberToReturn);
+                }
+                return matchDocuments(query, positions, orderBy, numberToSkip, numberToReturn);
+            }
+        }
+
+        return matchDocuments(query, orderBy, numberToSkip, numberToReturn);
+    }
+
+    private QueryPlan<P> planQuery(Document query, Document orderBy, Document projection) {
+        Document queryShape = PlanCache.getQueryShape(query, orderBy, projection);
+        QueryPlan<P> plan = planCache.get(queryShape);
+        if (plan == null || (!plan.isCollectionScan() && !plan.getIndex().canHandle(query))) {
+            plan = enumeratePlans(query).get(0);
+            planCache.put(queryShape, plan);
+        }
+        return plan;
     }
 
-    private Iterable<Document> queryDocuments(Document query, Document orderBy, int numberToSkip,
-                                                int numberToReturn) {
+    /**
+     * Returns all candidate plans for the given query, cheapest first. The cost of
+     * an index plan is the estimated number of index entries to examine, the cost
+     * of a collection scan is the number of documents. On equal costs, indexes win
+     * over the collection scan and earlier indexes win over later ones.
+     */
+    private List<QueryPlan<P>> enumeratePlans(Document query) {
+        List<QueryPlan<P>> plans = new ArrayList<>();
         synchronized (indexes) {
             for (Index<P> index : indexes) {
                 if (index.canHandle(query)) {
-                    Iterable<P> positions = index.getPositions(query);
-                    return matchDocuments(query, positions, orderBy, numberToSkip, numberToReturn);
+                    plans.add(QueryPlan.indexScan(index, index.estimateCount(query)));
                 }
             }
         }
+        if (plans.isEmpty()) {
+            return Collections.singletonList(QueryPlan.collectionScan(Long.MAX_VALUE));
+        }
+        plans.add(QueryPlan.collectionScan(count()));
+        plans.sort(Comparator.comparingLong(QueryPlan::getEstimatedCost));
+        return plans;
+    }
 
-        return matchDocuments(query, orderBy, numberToSkip, numberToReturn);
+    private Iterable<P> getExplainedPositions(Index<P> index, Document query) {
+        Iterable<P> positions = index.getPositions(query);
+        if (explainStats != null) {
+            positions = countExaminedKeys(positions, explainStats);
+        }
+        return positions;
     }
 
-    protected void sortDocumentsInMemory(List<Document> documents, Document orderBy) {
-        if (orderBy != null && !orderBy.keySet().isEmpty()) {
-            if (orderBy.keySet().iterator().next().equals("$natural")) {
-                int sortValue = ((Integer) orderBy.get("$natural")).intValue();
-                if (sortValue == 1) {
-                    // keep it as is
-                } else if (sortValue == -1) {
-                    Collections.reverse(documents);
-                } else {
-                    throw new IllegalArgumentException("Illegal sort value: " + sortValue);
+    /**
+     * A query is covered if the index yields exactly the matching documents and the
+     * projection only includes indexed fields whose values are fixed by the query.
+     * Numbers are excluded since the queried number might be of a different type than
+     * the stored number, and multikey indexes are excluded since the stored value
+     * would be the whole array.
+     */
+    private boolean isCoveredQuery(Index<P> index, Document query, Document orderBy, Document projection) {
+        if (projection == null || projection.isEmpty() || (orderBy != null && !orderBy.isEmpty())) {
+            return false;
+        }
+        if (index.isMultikey() || !index.coversQuery(query)) {
+            return false;
+        }
+        List<String> indexKeys = index.keys();
+        for (String key : indexKeys) {
+            Object queryValue = query.get(key);
+            if (queryValue instanceof Number || queryValue instanceof Document) {
+                return false;
+            }
+        }
+        if (!projection.containsKey(idField) && !indexKeys.contains(idField)) {
+            return false;
+        }
+        boolean includesField = false;
+        for (String key : projection.keySet()) {
+            Object value = projection.get(key);
+            if (!(value instanceof Number || value instanceof Boolean)) {
+                return false;
+            }
+            if (Utils.isTrue(value)) {
+                if (!indexKeys.contains(key)) {
+                    return false;
                 }
-            } else {
-                documents.sort(new DocumentComparator(orderBy));
+                includesField = true;
+            } else if (!key.equals(idField)) {
+                return false;
             }
         }
+        return includesField;
+    }
+
+    /**
+     * Builds the result of a covered query from the queried values, one document per
+     * matching index entry. The projection is applied by the caller, so every entry
+     * gets its own copy.
+     */
+    private List<Document> projectFromIndex(Index<P> index, Document query, Iterable<P> positions,
+                                            int numberToSkip, int numberToReturn) {
+        Document indexedValues = new Document();
+        for (String key : index.keys()) {
+            Utils.changeSubdocumentValue(indexedValues, key, query.get(key));
+        }
+        Stream<Document> documents = StreamSupport.stream(positions.spliterator(), false)
+            .map(position -> indexedValues.cloneDeeply());
+        if (numberToSkip > 0) {
+            documents = documents.skip(numberToSkip);
+        }
+        if (numberToReturn > 0) {
+            documents = documents.limit(numberToReturn);
+        }
+        return documents.collect(Collectors.toList());
+    }
+
+    private static <P> Iterable<P> countExaminedKeys(Iterable<P> positions, ExplainStats stats) {
+        return () -> StreamSupport.stream(positions.spliterator(), false)
+            .peek(position -> stats.keysExamined++)
+            .iterator();
+    }
+
+    /**
+     * Lazily filters the given stream of documents and stops pulling from it
+     * as soon as {@code numberToSkip + numberToReturn} matches were found,
+     * unless the documents need to be sorted first.
+     */
+    protected List<Document> matchDocuments(Document query, Stream<Document> documents, Document orderBy,
+                                            int numberToSkip, int numberToReturn) {
+        CompiledQuery compiledQuery = CompiledQuery.compile(query);
+        Stream<Document> matchedDocuments = documents.filter(document -> documentMatchesQuery(document, compiledQuery));
+
+        DocumentComparator comparator = deriveComparator(orderBy);
+        if (comparator != null) {
+            matchedDocuments = comparator.sort(matchedDocuments);
+        }
+
+        if (numberToSkip > 0) {
+            matchedDocuments = matchedDocuments.skip(numberToSkip);
+        }
+
+        if (numberToReturn > 0) {
+            matchedDocuments = matchedDocuments.limit(numberToReturn);
+        }
+
+        return matchedDocuments.collect(Collectors.toList());
+    }
+
+    protected List<Document> matchDocumentsAtPositions(Document query, Iterable<P> positions, Document orderBy,
+                                                       int numberToSkip, int numberToReturn) {
+        Stream<Document> documents = StreamSupport.stream(positions.spliterator(), false)
+            .map(this::getDocument);
+
+        if (isNaturalDescending(orderBy)) {
+            List<Document> reversedDocuments = documents.collect(Collectors.toList());
+            Collections.reverse(reversedDocuments);
+            documents = reversedDocuments.stream();
+        }
+
+        return matchDocuments(query, documents, orderBy, numberToSkip, numberToReturn);
+    }
+
+    private static DocumentComparator deriveComparator(Document orderBy) {
+        if (orderBy == null || orderBy.keySet().isEmpty() || isNaturalOrder(orderBy)) {
+            return null;
+        }
+        return new DocumentComparator(orderBy);
+    }
+
+    private static boolean isNaturalOrder(Document orderBy) {
+        return orderBy.keySet().iterator().next().equals("$natural");
+    }
+
+    protected static boolean isNaturalDescending(Document orderBy) {
+        if (orderBy == null || orderBy.keySet().isEmpty() || !isNaturalOrder(orderBy)) {
+            return false;
+        }
+        int sortValue = ((Integer) orderBy.get("$natural")).intValue();
+        if (sortValue == 1) {
+            return false;
+        } else if (sortValue == -1) {
+            return true;
+        } else {
+            throw new IllegalArgumentException("Illegal sort value: " + sortValue);
+        }
     }
 
     protected abstract Iterable<Document> matchDocuments(Document query, Document orderBy, int numberToSkip,
@@ -87,6 +261,49 @@ public abstract class AbstractMongoCollection<P> implements MongoCollection<P> {
 
     protected abstract P addDocumentInternal(Document document);
 
+    /**
+     * Returns true if the given documents are added with {@link #addDocumentsInternal(List)}
+     * in one operation instead of one by one.
+     */
+    protected boolean canAddDocumentsAtOnce(List<Document> documents) {
+        return false;
+    }
+
+    /**
+     * Adds all of the documents or none of them if one of them violates a constraint of
+     * the storage, which is reported as {@link MongoServerError}. The implementation also
+     * updates the data size.
+     * <p>
+     * The default implementation adds the documents one by one and removes the ones that
+     * were already added if a document fails. Backends that can add several documents in
+     * a single operation override it.
+     *
+     * @return the positions of the documents
+     */
+    protected List<P> addDocumentsInternal(List<Document> documents) {
+        List<P> positions = new ArrayList<>(documents.size());
+        try {
+            for (Document document : documents) {
+                positions.add(addDocumentInternal(document));
+            }
+        } catch (RuntimeException e) {
+            for (P position : positions) {
+                removeDocument(position);
+            }
+            throw e;
+        }
+        long dataSize = 0;
+        for (Document document : documents) {
+            dataSize += Utils.calculateSize(document);
+        }
+        updateDataSize(dataSize);
+        return positions;
+    }
+
+    protected List<Index<P>> getIndexes() {
+        return Collections.unmodifiableList(indexes);
+    }
+
     @Override
     public synchronized void addDocument(Document document) {
 
@@ -101,6 +318,7 @@ public abstract class AbstractMongoCollection<P> implements MongoCollection<P> {
         }
 
         updateDataSize(Utils.calculateSize(document));
+        planCache.registerWriteOperation();
     }
 
     @Override
@@ -124,8 +342,27 @@ public abstract class AbstractMongoCollection<P> implements MongoCollection<P> {
     }
 
     @Override
-    public void addIndex(Index<P> index) {
+    public synchronized void addIndex(Index<P> index) {
+        if (index.getCount() == 0 && count() > 0) {
+            indexExistingDocuments(index);
+        }
         indexes.add(index);
+        planCache.clear();
+    }
+
+    protected void indexExistingDocuments(Index<P> index) {
+        List<DocumentWithPosition<P>> indexedDocuments = new ArrayList<>();
+        try {
+            streamAllDocumentsWithPosition().forEach(documentWithPosition -> {
+                index.add(documentWithPosition.getDocument(), documentWithPosition.getPosition());
+                indexedDocuments.add(documentWithPosition);
+            });
+        } catch (RuntimeException e) {
+            for (DocumentWithPosition<P> documentWithPosition : indexedDocuments) {
+                index.remove(documentWithPosition.getDocument(), documentWithPosition.getPosition());
+            }
+            throw e;
+        }
     }
 
     private void assertNotKeyField(String key) {
@@ -135,24 +372,27 @@ public abstract class AbstractMongoCollection<P> implements MongoCollection<P> {
     }
 
     private Object getSubdocumentValue(Object document, String key, Integer matchPos) {
-        return getSubdocumentValue(document, key, new AtomicReference<>(matchPos));
-    }
-
-    private Object getSubdocumentValue(Object document, String key, AtomicReference<Integer> matchPos)
-            {
-        int dotPos = key.indexOf('.');
-        if (dotPos > 0) {
-            String mainKey = key.substring(0, dotPos);
-            String subKey = Utils.getSubkey(key, dotPos, matchPos);
-            Object subObject = Utils.getFieldValueListSafe(document, mainKey);
-            if (subObject instanceof Document || subObject instanceof List<?>) {
-                return getSubdocumentValue(subObject, subKey, matchPos);
-            } else {
+        FieldPath fieldPath = FieldPath.of(key);
+        Object value = document;
+        String segment = fieldPath.getSegment(0);
+        for (int i = 1; i < fieldPath.size(); i++) {
+            String nextSegment = fieldPath.getSegment(i);
+            if (fieldPath.isPositional(i)) {
+                if (matchPos == null) {
+                    throw new MongoServerError(16650, //
+                        "Cannot apply the positional operator without a corresponding query " //
+                            + "field containing an array.");
+                }
+                nextSegment = String.valueOf(matchPos);
+                matchPos = null;
+            }
+            value = Utils.getFieldValueListSafe(value, segment);
+            if (!(value instanceof Document || value instanceof List<?>)) {
                 return Missing.getInstance();
             }
-        } else {
-            return Utils.getFieldValueListSafe(document, key);
+            segment = nextSegment;
         }
+        return Utils.getFieldValueListSafe(value, segment);
     }
 
     private void modifyField(Document document, String modifier, Document change, Integer matchPos,
@@ -563,7 +803,8 @@ public abstract class AbstractMongoCollection<P> implements MongoCollection<P> {
             } else if (query.get("update") != null) {
                 Document updateQuery = (Document) query.get("update");
 
-                Integer matchPos = matcher.matchPosition(document, (Document) queryObject.get("query"));
+                CompiledQuery compiledQuery = CompiledQuery.compile((Document) queryObject.get("query"));
+                Integer matchPos = compiledQuery.matchPosition(document);
 
                 Document oldDocument = updateDocument(document, updateQuery, matchPos);
                 if (returnNew) {
@@ -690,7 +931,7 @@ public abstract class AbstractMongoCollection<P> implements MongoCollection<P> {
             return Collections.emptyList();
         }
 
-        Iterable<Document> objs = queryDocuments(query, orderBy, numberToSkip, numberToReturn);
+        Iterable<Document> objs = queryDocuments(query, orderBy, fieldSelector, numberToSkip, numberToReturn);
 
         if (fieldSelector != null && !fieldSelector.keySet().isEmpty()) {
             return new ProjectingIterable(objs, fieldSelector, idField);
@@ -756,7 +997,18 @@ public abstract class AbstractMongoCollection<P> implements MongoCollection<P> {
         }
         Set<Object> values = new TreeSet<>(new ValueComparator());
 
-        for (Document document : queryDocuments(filter, null, 0, 0)) {
+        List<Object> indexedValues = filter.isEmpty() ? getDistinctValuesFromIndex(query.get("key").toString()) : null;
+        if (indexedValues != null) {
+            if (explainStats != null) {
+                explainStats.keysExamined += indexedValues.size();
+            }
+            values.addAll(indexedValues);
+            Document response = new Document("values", new ArrayList<>(values));
+            Utils.markOkay(response);
+            return response;
+        }
+
+        for (Document document : queryDocuments(filter, null, null, 0, 0)) {
             boolean found = true;
             Object doc = document;
             for (String key : keys) {
@@ -778,12 +1030,55 @@ public abstract class AbstractMongoCollection<P> implements MongoCollection<P> {
 
     @Override
     public synchronized int insertDocuments(List<Document> documents) {
-        for (Document document : documents) {
-            addDocument(document);
+        Map<Integer, MongoServerError> errors = insertDocuments(documents, true);
+        if (!errors.isEmpty()) {
+            throw errors.values().iterator().next();
         }
         return documents.size();
     }
 
+    @Override
+    public synchronized Map<Integer, MongoServerError> insertDocuments(List<Document> documents, boolean ordered) {
+        if (documents.size() > 1 && canAddDocumentsAtOnce(documents)) {
+            try {
+                addDocuments(documents);
+                return Collections.emptyMap();
+            } catch (MongoServerError e) {
+                // none of the documents was added, add them one by one to report the failing ones
+            }
+        }
+
+        Map<Integer, MongoServerError> errors = new LinkedHashMap<>();
+        for (int i = 0; i < documents.size(); i++) {
+            try {
+                addDocument(documents.get(i));
+            } catch (MongoServerError e) {
+                errors.put(Integer.valueOf(i), e);
+                if (ordered) {
+                    break;
+                }
+            }
+        }
+        return errors;
+    }
+
+    private void addDocuments(List<Document> documents) {
+        for (Document document : documents) {
+            for (Index<P> index : indexes) {
+                index.checkAdd(document);
+            }
+        }
+
+        List<P> positions = addDocumentsInternal(documents);
+
+        for (int i = 0; i < documents.size(); i++) {
+            for (Index<P> index : indexes) {
+                index.add(documents.get(i), positions.get(i));
+            }
+        }
+        planCache.registerWriteOperation();
+    }
+
     @Override
     public synchronized int deleteDocuments(Document selector, int limit) {
         int n = 0;
@@ -811,8 +1106,10 @@ public abstract class AbstractMongoCollection<P> implements MongoCollection<P> {
 
         int nMatched = 0;
         int nModified = 0;
-        for (Document document : queryDocuments(selector, null, 0, 0)) {
-            Integer matchPos = matcher.matchPosition(document, selector);
+        int numberToReturn = isMulti ? 0 : 1;
+        CompiledQuery compiledSelector = CompiledQuery.compile(selector);
+        for (Document document : queryDocuments(selector, null, null, 0, numberToReturn)) {
+            Integer matchPos = compiledSelector.matchPosition(document);
             Document oldDocument = updateDocument(document, updateQuery, matchPos);
             if (!Utils.nullAwareEquals(oldDocument, document)) {
                 nModified++;
@@ -852,8 +1149,9 @@ public abstract class AbstractMongoCollection<P> implements MongoCollection<P> {
                 for (Index<P> index : indexes) {
                     index.checkUpdate(oldDocument, newDocument);
                 }
+                P position = getDocumentPosition(document);
                 for (Index<P> index : indexes) {
-                    index.updateInPlace(oldDocument, newDocument);
+                    index.updateInPlace(oldDocument, newDocument, position);
                 }
 
                 long oldSize = Utils.calculateSize(oldDocument);
@@ -875,13 +1173,19 @@ public abstract class AbstractMongoCollection<P> implements MongoCollection<P> {
                     }
                     document.put(key, newDocument.get(key));
                 }
-                handleUpdate(document);
+                handleUpdate(position, document);
+                planCache.registerWriteOperation();
             }
             return oldDocument;
         }
     }
 
-    protected abstract void handleUpdate(Document document);
+    /**
+     * Called after the given document, which is stored at the given position, was
+     * updated in place. Backends that do not keep the document instances they hand
+     * out need to store the updated document.
+     */
+    protected abstract void handleUpdate(P position, Document document);
 
     private void cloneInto(Document targetDocument, Document sourceDocument) {
         for (String key : sourceDocument.keySet()) {
@@ -941,22 +1245,55 @@ public abstract class AbstractMongoCollection<P> implements MongoCollection<P> {
         return indexes.size();
     }
 
+    /**
+     * Returns the index that can answer a distinct query on the given key without
+     * fetching any document, or null if there is no such index.
+     */
+    private Index<P> getDistinctIndex(String key) {
+        FieldPath fieldPath = FieldPath.of(key);
+        for (int i = 0; i < fieldPath.size(); i++) {
+            if (fieldPath.isArrayPosition(i)) {
+                return null;
+            }
+        }
+        synchronized (indexes) {
+            for (Index<P> index : indexes) {
+                if (index.keys().equals(Collections.singletonList(key)) && !index.isMultikey()) {
+                    return index;
+                }
+            }
+        }
+        return null;
+    }
+
+    private List<Object> getDistinctValuesFromIndex(String key) {
+        Index<P> index = getDistinctIndex(key);
+        if (index == null) {
+            return null;
+        }
+        return index.getDistinctValues();
+    }
+
     @Override
-    public int count(Document query, int skip, int limit) {
+    public synchronized int count(Document query, int skip, int limit) {
         if (query.keySet().isEmpty()) {
-            int count = count();
-            if (skip > 0) {
-                count = Math.max(0, count - skip);
-            }
-            if (limit > 0) {
-                return Math.min(limit, count);
+            return applySkipAndLimit(count(), skip, limit);
+        }
+
+        synchronized (indexes) {
+            QueryPlan<P> plan = planQuery(query, null, null);
+            if (!plan.isCollectionScan() && plan.getIndex().coversQuery(query)) {
+                int count = 0;
+                for (Iterator<P> it = getExplainedPositions(plan.getIndex(), query).iterator(); it.hasNext(); it.next()) {
+                    count++;
+                }
+                return applySkipAndLimit(count, skip, limit);
             }
-            return count;
         }
 
         int numberToReturn = (limit >= 0) ? limit : 0;
         int count = 0;
-        Iterator<?> it = queryDocuments(query, null, skip, numberToReturn).iterator();
+        Iterator<?> it = queryDocuments(query, null, null, skip, numberToReturn).iterator();
         while (it.hasNext()) {
             it.next();
             count++;
@@ -964,6 +1301,152 @@ public abstract class AbstractMongoCollection<P> implements MongoCollection<P> {
         return count;
     }
 
+    private static int applySkipAndLimit(int count, int skip, int limit) {
+        if (skip > 0) {
+            count = Math.max(0, count - skip);
+        }
+        if (limit > 0) {
+            return Math.min(limit, count);
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized Document explain(String command, Document query, boolean withExecutionStats) {
+        if (!isExplainable(command)) {
+            throw new MongoServerError(59, "CommandNotFound", "Explain failed due to unknown command: " + command);
+        }
+        Document queriedFilter = (Document) query.get(command.equalsIgnoreCase("find") ? "filter" : "query");
+        Document filter = queriedFilter != null ? queriedFilter : new Document();
+        Document orderBy = (Document) query.get("sort");
+        int numberToSkip = ((Number) query.getOrDefault("skip", 0)).intValue();
+        int numberToReturn = ((Number) query.getOrDefault("limit", 0)).intValue();
+
+        final List<Document> plans;
+        if (command.equalsIgnoreCase("count") && filter.isEmpty()) {
+            plans = Collections.singletonList(new Document("stage", "RECORD_STORE_FAST_COUNT"));
+        } else if (command.equalsIgnoreCase("distinct") && filter.isEmpty()
+            && getDistinctValuesFromIndex(query.get("key").toString()) != null) {
+            String key = query.get("key").toString();
+            Document distinctScan = QueryPlan.indexScan(getDistinctIndex(key), 0).toIndexOnlyDocument("DISTINCT_SCAN");
+            plans = Collections.singletonList(new Document("stage", "PROJECTION")
+                .append("transformBy", new Document(key, Integer.valueOf(1)))
+                .append("inputStage", distinctScan));
+        } else {
+            plans = enumeratePlans(filter).stream()
+                .map(plan -> explainPlan(plan, command, query, filter, orderBy, numberToSkip, numberToReturn))
+                .collect(Collectors.toList());
+        }
+
+        Document queryPlanner = new Document();
+        queryPlanner.put("plannerVersion", Integer.valueOf(1));
+        queryPlanner.put("namespace", getFullName());
+        queryPlanner.put("indexFilterSet", Boolean.FALSE);
+        queryPlanner.put("parsedQuery", filter);
+        queryPlanner.put("winningPlan", plans.get(0));
+        queryPlanner.put("rejectedPlans", new ArrayList<>(plans.subList(1, plans.size())));
+
+        Document response = new Document("queryPlanner", queryPlanner);
+        if (withExecutionStats) {
+            response.put("executionStats", executeExplained(command, query, filter, orderBy, numberToSkip, numberToReturn));
+        }
+        Utils.markOkay(response);
+        return response;
+    }
+
+    private Document explainPlan(QueryPlan<P> plan, String command, Document query, Document filter,
+                                 Document orderBy, int numberToSkip, int numberToReturn) {
+        Document stage = plan.toDocument();
+        if (command.equalsIgnoreCase("find")) {
+            if (!plan.isCollectionScan() && isCoveredQuery(plan.getIndex(), filter, orderBy, (Document) query.get("projection"))) {
+                stage = new Document("stage", "PROJECTION_COVERED")
+                    .append("transformBy", query.get("projection"))
+                    .append("inputStage", plan.toIndexOnlyDocument("IXSCAN"));
+            }
+            if (deriveComparator(orderBy) != null) {
+                stage = new Document("stage", "SORT").append("sortPattern", orderBy).append("inputStage", stage);
+            }
+            if (numberToSkip > 0) {
+                stage = new Document("stage", "SKIP").append("skipAmount", Integer.valueOf(numberToSkip)).append("inputStage", stage);
+            }
+            if (numberToReturn > 0) {
+                stage = new Document("stage", "LIMIT").append("limitAmount", Integer.valueOf(numberToReturn)).append("inputStage", stage);
+            }
+        } else if (command.equalsIgnoreCase("count")) {
+            if (!plan.isCollectionScan() && plan.getIndex().coversQuery(filter)) {
+                stage = plan.toIndexOnlyDocument("COUNT_SCAN");
+            }
+            stage = new Document("stage", "COUNT").append("inputStage", stage);
+        } else {
+            Document transformBy = new Document(query.get("key").toString(), Integer.valueOf(1));
+            stage = new Document("stage", "PROJECTION").append("transformBy", transformBy).append("inputStage", stage);
+        }
+        return stage;
+    }
+
+    private static boolean isExplainable(String command) {
+        return command.equalsIgnoreCase("find") || command.equalsIgnoreCase("count") || command.equalsIgnoreCase("distinct");
+    }
+
+    private Document executeExplained(String command, Document query, Document filter, Document orderBy,
+                                      int numberToSkip, int numberToReturn) {
+        ExplainStats stats = new ExplainStats();
+        long start = System.currentTimeMillis();
+        int numberReturned = 0;
+        explainStats = stats;
+        try {
+            if (command.equalsIgnoreCase("find")) {
+                for (Iterator<Document> it = queryDocuments(filter, orderBy, (Document) query.get("projection"), numberToSkip, numberToReturn).iterator(); it.hasNext(); it.next()) {
+                    numberReturned++;
+                }
+            } else if (command.equalsIgnoreCase("count")) {
+                int limit = ((Number) query.getOrDefault("limit", -1)).intValue();
+                numberReturned = count(filter, numberToSkip, limit);
+            } else {
+                numberReturned = ((List<?>) handleDistinct(query).get("values")).size();
+            }
+        } finally {
+            explainStats = null;
+        }
+
+        Document executionStats = new Document();
+        executionStats.put("executionSuccess", Boolean.TRUE);
+        executionStats.put("nReturned", Integer.valueOf(numberReturned));
+        executionStats.put("executionTimeMillis", Long.valueOf(System.currentTimeMillis() - start));
+        executionStats.put("totalKeysExamined", Long.valueOf(stats.keysExamined));
+        executionStats.put("totalDocsExamined", Long.valueOf(stats.docsExamined));
+        return executionStats;
+    }
+
+    @Override
+    public Document handlePlanCacheListQueryShapes() {
+        Document response = new Document("shapes", planCache.getQueryShapes());
+        Utils.markOkay(response);
+        return response;
+    }
+
+    @Override
+    public Document handlePlanCacheClear(Document query) {
+        if (query.containsKey("query")) {
+            Document queryShape = PlanCache.getQueryShape((Document) query.get("query"),
+                (Document) query.get("sort"), (Document) query.get("projection"));
+            planCache.remove(queryShape);
+        } else {
+            planCache.clear();
+        }
+        Document response = new Document();
+        Utils.markOkay(response);
+        return response;
+    }
+
+    /**
+     * Sets the number of write operations after which all cached query plans are
+     * discarded, so that plans are re-evaluated as the data changes.
+     */
+    public void setPlanCacheWriteOpsBetweenFlush(int writeOpsBetweenFlush) {
+        planCache.setWriteOpsBetweenFlush(writeOpsBetweenFlush);
+    }
+
     @Override
     public Document getStats() {
         long dataSize = getDataSize();
@@ -992,23 +1475,20 @@ public abstract class AbstractMongoCollection<P> implements MongoCollection<P> {
 
     @Override
     public synchronized void removeDocument(Document document) {
-        P position = null;
-
-        if (!indexes.isEmpty()) {
-            for (Index<P> index : indexes) {
-                position = index.remove(document);
-            }
-        } else {
-            position = findDocumentPosition(document);
-        }
+        P position = getDocumentPosition(document);
         if (position == null) {
             // not found
             return;
         }
 
+        for (Index<P> index : indexes) {
+            index.remove(document, position);
+        }
+
         updateDataSize(-Utils.calculateSize(document));
 
         removeDocument(position);
+        planCache.registerWriteOperation();
     }
 
     @Override
@@ -1039,8 +1519,33 @@ public abstract class AbstractMongoCollection<P> implements MongoCollection<P> {
 
     protected abstract void removeDocument(P position);
 
+    /**
+     * Moves the given document to a new position in all indexes, e.g. after the
+     * storage relocated the document.
+     */
+    protected void updateIndexPositions(Document document, P newPosition) {
+        P oldPosition = getDocumentPosition(document);
+        for (Index<P> index : indexes) {
+            if (index.remove(document, oldPosition) != null) {
+                index.add(document, newPosition);
+            }
+        }
+    }
+
     protected abstract P findDocumentPosition(Document document);
 
+    protected abstract Stream<DocumentWithPosition<P>> streamAllDocumentsWithPosition();
+
+    private P getDocumentPosition(Document document) {
+        for (Index<P> index : indexes) {
+            P position = index.getPosition(document);
+            if (position != null) {
+                return position;
+            }
+        }
+        return findDocumentPosition(document);
+    }
+
     @SuppressWarnings("unchecked")
     private static List<Object> asList(Object value) {
         return (List<Object>) value;
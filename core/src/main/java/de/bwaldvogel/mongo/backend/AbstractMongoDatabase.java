@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -156,6 +157,12 @@ public abstract class AbstractMongoDatabase<P> implements MongoDatabase {
             return listCollections();
         } else if (command.equalsIgnoreCase("listIndexes")) {
             return listIndexes();
+        } else if (command.equalsIgnoreCase("explain")) {
+            return commandExplain(command, query);
+        } else if (command.equalsIgnoreCase("planCacheListQueryShapes")) {
+            return commandPlanCacheListQueryShapes(command, query);
+        } else if (command.equalsIgnoreCase("planCacheClear")) {
+            return commandPlanCacheClear(command, query);
         } else {
             log.error("unknown query: {}", query);
         }
@@ -222,21 +229,35 @@ public abstract class AbstractMongoDatabase<P> implements MongoDatabase {
         @SuppressWarnings("unchecked")
         List<Document> documents = (List<Document>) query.get("documents");
 
-        List<Document> writeErrors = new ArrayList<>();
-        int n = 0;
-        for (Document document : documents) {
-            try {
-                insertDocuments(channel, collectionName, Collections.singletonList(document));
-                n++;
-            } catch (MongoServerError e) {
-                Document error = new Document();
-                error.put("index", Integer.valueOf(n));
-                error.put("errmsg", e.getMessageWithoutErrorCode());
-                error.put("code", Integer.valueOf(e.getCode()));
-                error.putIfNotNull("codeName", e.getCodeName());
-                writeErrors.add(error);
+        Map<Integer, MongoServerError> errors;
+        try {
+            errors = insertDocuments(channel, collectionName, documents, isOrdered);
+        } catch (MongoServerError e) {
+            // none of the documents could be inserted
+            errors = new LinkedHashMap<>();
+            for (int i = 0; i < documents.size(); i++) {
+                errors.put(Integer.valueOf(i), e);
+                if (isOrdered) {
+                    break;
+                }
             }
         }
+
+        List<Document> writeErrors = new ArrayList<>();
+        for (Entry<Integer, MongoServerError> entry : errors.entrySet()) {
+            MongoServerError e = entry.getValue();
+            Document error = new Document();
+            error.put("index", entry.getKey());
+            error.put("errmsg", e.getMessageWithoutErrorCode());
+            error.put("code", Integer.valueOf(e.getCode()));
+            error.putIfNotNull("codeName", e.getCodeName());
+            writeErrors.add(error);
+        }
+        int n = documents.size() - errors.size();
+        if (isOrdered && !errors.isEmpty()) {
+            // the documents after the first error were not inserted
+            n = errors.keySet().iterator().next().intValue();
+        }
         Document result = new Document();
         result.put("n", Integer.valueOf(n));
         if (!writeErrors.isEmpty()) {
@@ -393,23 +414,30 @@ public abstract class AbstractMongoDatabase<P> implements MongoDatabase {
         response.put("indexSize", Long.valueOf(indexSize));
         response.put("fileSize", Long.valueOf(fileSize));
         response.put("nsSizeMB", Integer.valueOf(0));
+        appendStorageStats(response);
         Utils.markOkay(response);
         return response;
     }
 
+    /**
+     * Adds statistics of the storage engine to the response of the dbStats command.
+     */
+    protected void appendStorageStats(Document stats) {
+    }
+
     protected abstract long getFileSize();
 
     protected abstract long getStorageSize();
 
     private Document commandDrop(Document query) {
         String collectionName = query.get("drop").toString();
-        MongoCollection<P> collection = collections.remove(collectionName);
+        MongoCollection<P> collection = collections.get(collectionName);
 
         if (collection == null) {
             throw new MongoSilentServerException("ns not found");
         }
         Document response = new Document();
-        namespaces.removeDocument(new Document("name", collection.getFullName()));
+        dropCollection(collectionName);
         response.put("nIndexesWas", Integer.valueOf(collection.getNumIndexes()));
         response.put("ns", collection.getFullName());
         Utils.markOkay(response);
@@ -510,6 +538,46 @@ public abstract class AbstractMongoDatabase<P> implements MongoDatabase {
         return response;
     }
 
+    private Document commandExplain(String command, Document query) {
+        Document explainedQuery = (Document) query.get(command);
+        String explainedCommand = explainedQuery.keySet().iterator().next();
+        boolean withExecutionStats = !"queryPlanner".equals(query.get("verbosity"));
+        MongoCollection<P> collection = resolveCollection(explainedCommand, explainedQuery, false);
+        if (collection != null) {
+            return collection.explain(explainedCommand, explainedQuery, withExecutionStats);
+        }
+
+        String collectionName = explainedQuery.get(explainedCommand).toString();
+        Document queryPlanner = new Document();
+        queryPlanner.put("plannerVersion", Integer.valueOf(1));
+        queryPlanner.put("namespace", getDatabaseName() + "." + collectionName);
+        queryPlanner.put("winningPlan", new Document("stage", "EOF"));
+        queryPlanner.put("rejectedPlans", Collections.emptyList());
+        Document response = new Document("queryPlanner", queryPlanner);
+        Utils.markOkay(response);
+        return response;
+    }
+
+    private Document commandPlanCacheListQueryShapes(String command, Document query) {
+        MongoCollection<P> collection = resolveCollection(command, query, false);
+        if (collection == null) {
+            Document response = new Document("shapes", Collections.emptyList());
+            Utils.markOkay(response);
+            return response;
+        }
+        return collection.handlePlanCacheListQueryShapes();
+    }
+
+    private Document commandPlanCacheClear(String command, Document query) {
+        MongoCollection<P> collection = resolveCollection(command, query, false);
+        if (collection == null) {
+            Document response = new Document();
+            Utils.markOkay(response);
+            return response;
+        }
+        return collection.handlePlanCacheClear(query);
+    }
+
     private Document commandAggregate(String command, Document query) {
         String collectionName = query.get(command).toString();
         Document cursor = (Document) query.get("cursor");
@@ -617,7 +685,10 @@ public abstract class AbstractMongoDatabase<P> implements MongoDatabase {
             }
         } else {
             try {
-                insertDocuments(channel, collectionName, documents);
+                Map<Integer, MongoServerError> errors = insertDocuments(channel, collectionName, documents, true);
+                for (MongoServerError error : errors.values()) {
+                    log.error("failed to insert {}", insert, error);
+                }
             } catch (MongoServerException e) {
                 log.error("failed to insert {}", insert, e);
             }
@@ -726,22 +797,35 @@ public abstract class AbstractMongoDatabase<P> implements MongoDatabase {
             collection.addIndex(openOrCreateIdIndex(collectionName, ascending));
             log.info("adding unique _id index for collection {}", collectionName);
         } else if (Utils.isTrue(indexDescription.get("unique"))) {
-            List<IndexKey> keys = new ArrayList<>();
-            for (Entry<String, Object> entry : key.entrySet()) {
-                String field = entry.getKey();
-                boolean ascending = isAscending(entry.getValue());
-                keys.add(new IndexKey(field, ascending));
-            }
+            List<IndexKey> keys = getIndexKeys(key);
 
             log.info("adding unique index {} for collection {}", keys, collectionName);
 
             collection.addIndex(openOrCreateUniqueIndex(collectionName, keys));
         } else {
-            // TODO: non-unique non-id indexes not yet implemented
-            log.warn("adding non-unique non-id index with key {} is not yet implemented", key);
+            Index<P> index = openOrCreateNonUniqueIndex(collectionName, getIndexKeys(key));
+            if (index == null) {
+                // TODO: non-unique non-id indexes not yet implemented
+                log.warn("adding non-unique non-id index with key {} is not yet implemented", key);
+                return;
+            }
+
+            log.info("adding non-unique index {} for collection {}", index.keys(), collectionName);
+
+            collection.addIndex(index);
         }
     }
 
+    private static List<IndexKey> getIndexKeys(Document key) {
+        List<IndexKey> keys = new ArrayList<>();
+        for (Entry<String, Object> entry : key.entrySet()) {
+            String field = entry.getKey();
+            boolean ascending = isAscending(entry.getValue());
+            keys.add(new IndexKey(field, ascending));
+        }
+        return keys;
+    }
+
     private static boolean isAscending(Object keyValue) {
         return Objects.equals(Utils.normalizeValue(keyValue), Double.valueOf(1.0));
     }
@@ -752,17 +836,33 @@ public abstract class AbstractMongoDatabase<P> implements MongoDatabase {
 
     protected abstract Index<P> openOrCreateUniqueIndex(String collectionName, List<IndexKey> keys);
 
-    private void insertDocuments(Channel channel, String collectionName, List<Document> documents) {
+    /**
+     * @return the index or null if the backend does not support non-unique indexes
+     */
+    protected Index<P> openOrCreateNonUniqueIndex(String collectionName, List<IndexKey> keys) {
+        return null;
+    }
+
+    private Map<Integer, MongoServerError> insertDocuments(Channel channel, String collectionName, List<Document> documents,
+                                                           boolean ordered) {
         clearLastStatus(channel);
         try {
             if (collectionName.startsWith("system.")) {
                 throw new MongoServerError(16459, "attempt to insert in system namespace");
             }
             MongoCollection<P> collection = resolveOrCreateCollection(collectionName);
-            int n = collection.insertDocuments(documents);
-            assert n == documents.size();
-            Document result = new Document("n", Integer.valueOf(n));
-            putLastResult(channel, result);
+            Map<Integer, MongoServerError> errors = collection.insertDocuments(documents, ordered);
+            if (errors.isEmpty()) {
+                Document result = new Document("n", Integer.valueOf(documents.size()));
+                putLastResult(channel, result);
+            } else {
+                MongoServerError lastError = null;
+                for (MongoServerError error : errors.values()) {
+                    lastError = error;
+                }
+                putLastError(channel, lastError);
+            }
+            return errors;
         } catch (MongoServerError e) {
             putLastError(channel, e);
             throw e;
@@ -863,7 +963,11 @@ public abstract class AbstractMongoDatabase<P> implements MongoDatabase {
 
     @Override
     public void dropCollection(String collectionName) {
-        unregisterCollection(collectionName);
+        MongoCollection<P> removedCollection = unregisterCollection(collectionName);
+        MongoCollection<P> indexCollection = indexes.get();
+        if (indexCollection != null) {
+            indexCollection.deleteDocuments(new Document("ns", removedCollection.getFullName()), 0);
+        }
     }
 
     @Override
@@ -0,0 +1,251 @@
+package de.bwaldvogel.mongo.backend;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import de.bwaldvogel.mongo.bson.BsonRegularExpression;
+import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.exception.KeyConstraintError;
+
+/**
+ * An index that allows several documents with the same key. Every entry is a pair
+ * of key and position, so the position of a document is needed to remove it.
+ * <p>
+ * The index answers equality queries on a leading prefix of the indexed fields as
+ * well as $in, range and anchored regular expression queries on the first field.
+ * Further conditions of the query are evaluated on the fetched documents.
+ */
+public abstract class AbstractNonUniqueIndex<P> extends Index<P> {
+
+    protected AbstractNonUniqueIndex(List<IndexKey> keys) {
+        super(keys);
+    }
+
+    protected abstract void addEntry(List<Object> key, P position);
+
+    /**
+     * @return true if the entry existed
+     */
+    protected abstract boolean removeEntry(List<Object> key, P position);
+
+    /**
+     * Returns the positions of all entries whose key starts with the given
+     * normalized values of the leading indexed fields.
+     */
+    protected abstract Iterable<P> getPositionsForKeyPrefix(List<Object> keyPrefix);
+
+    /**
+     * Returns the positions of all entries whose first key value is of the same
+     * type as the bounds and lies in the range [lowerBound, upperBound].
+     *
+     * @param lowerBound the normalized lower bound or null if the range is unbounded below
+     * @param upperBound the normalized upper bound or null if the range is unbounded above
+     */
+    protected abstract Iterable<P> getPositionsForRange(Object lowerBound, Object upperBound);
+
+    protected abstract long countKeyPrefix(List<Object> keyPrefix);
+
+    protected abstract long countRange(Object lowerBound, Object upperBound);
+
+    @Override
+    public void checkAdd(Document document) {
+        // no constraint
+    }
+
+    @Override
+    public synchronized void add(Document document, P position) {
+        for (List<Object> key : getKeyValuesOrEmpty(document)) {
+            addEntry(key, position);
+        }
+    }
+
+    @Override
+    public P remove(Document document) {
+        throw new UnsupportedOperationException("the position of the document is required to remove it from " + this);
+    }
+
+    @Override
+    public synchronized P remove(Document document, P position) {
+        boolean removed = false;
+        for (List<Object> key : getKeyValuesOrEmpty(document)) {
+            removed |= removeEntry(key, position);
+        }
+        return removed ? position : null;
+    }
+
+    @Override
+    public P getPosition(Document document) {
+        return null;
+    }
+
+    @Override
+    public void checkUpdate(Document oldDocument, Document newDocument) {
+        // no constraint
+    }
+
+    @Override
+    public synchronized void updateInPlace(Document oldDocument, Document newDocument, P position) throws KeyConstraintError {
+        Set<List<Object>> oldKeys = getKeyValuesOrEmpty(oldDocument);
+        Set<List<Object>> newKeys = getKeyValuesOrEmpty(newDocument);
+        for (List<Object> key : oldKeys) {
+            if (!newKeys.contains(key)) {
+                removeEntry(key, position);
+            }
+        }
+        for (List<Object> key : newKeys) {
+            if (!oldKeys.contains(key)) {
+                addEntry(key, position);
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean canHandle(Document query) {
+        String firstKey = keys().get(0);
+        if (!query.containsKey(firstKey)) {
+            return false;
+        }
+        Object queryValue = query.get(firstKey);
+        if (queryValue instanceof BsonRegularExpression) {
+            return AbstractUniqueIndex.getAnchoredPrefix((BsonRegularExpression) queryValue) != null;
+        } else if (isQueryExpression(queryValue)) {
+            return isRangeQuery((Document) queryValue) || isInQuery((Document) queryValue);
+        }
+        return isEqualityValue(queryValue);
+    }
+
+    @Override
+    public synchronized Iterable<P> getPositions(Document query) {
+        Object queryValue = query.get(keys().get(0));
+        if (queryValue instanceof BsonRegularExpression) {
+            String prefix = AbstractUniqueIndex.getAnchoredPrefix((BsonRegularExpression) queryValue);
+            return getPositionsForRange(prefix, AbstractUniqueIndex.getUpperBound(prefix));
+        } else if (isQueryExpression(queryValue)) {
+            Document expression = (Document) queryValue;
+            if (isRangeQuery(expression)) {
+                Object[] bounds = getBounds(expression);
+                return getPositionsForRange(bounds[0], bounds[1]);
+            }
+            Set<P> positions = new LinkedHashSet<>();
+            for (Object value : getInValues(expression)) {
+                getPositionsForKeyPrefix(singleKey(value)).forEach(positions::add);
+            }
+            return positions;
+        }
+        return getPositionsForKeyPrefix(getKeyPrefix(query));
+    }
+
+    @Override
+    public synchronized long estimateCount(Document query) {
+        Object queryValue = query.get(keys().get(0));
+        if (queryValue instanceof BsonRegularExpression) {
+            String prefix = AbstractUniqueIndex.getAnchoredPrefix((BsonRegularExpression) queryValue);
+            return countRange(prefix, AbstractUniqueIndex.getUpperBound(prefix));
+        } else if (isQueryExpression(queryValue)) {
+            Document expression = (Document) queryValue;
+            if (isRangeQuery(expression)) {
+                Object[] bounds = getBounds(expression);
+                return countRange(bounds[0], bounds[1]);
+            }
+            long count = 0;
+            for (Object value : getInValues(expression)) {
+                count += countKeyPrefix(singleKey(value));
+            }
+            return count;
+        }
+        return countKeyPrefix(getKeyPrefix(query));
+    }
+
+    /**
+     * Returns the normalized query values of the longest leading prefix of the
+     * indexed fields that are queried for equality.
+     */
+    private List<Object> getKeyPrefix(Document query) {
+        List<Object> keyPrefix = new ArrayList<>();
+        for (String key : keys()) {
+            Object queryValue = query.get(key);
+            if (!query.containsKey(key) || !isEqualityValue(queryValue)) {
+                break;
+            }
+            keyPrefix.add(Utils.normalizeValue(queryValue));
+        }
+        return keyPrefix;
+    }
+
+    /**
+     * Null also matches documents without the field, which are not indexed, and an
+     * array is matched as a whole, which cannot be answered from the entries of
+     * its elements.
+     */
+    private static boolean isEqualityValue(Object queryValue) {
+        return queryValue != null
+            && !(queryValue instanceof Collection<?>)
+            && !(queryValue instanceof BsonRegularExpression)
+            && !isQueryExpression(queryValue);
+    }
+
+    private static boolean isQueryExpression(Object queryValue) {
+        return queryValue instanceof Document && Utils.containsQueryExpression(queryValue);
+    }
+
+    private static boolean isRangeQuery(Document expression) {
+        for (Entry<String, Object> entry : expression.entrySet()) {
+            if (!isLowerBound(entry.getKey()) && !isUpperBound(entry.getKey())) {
+                return false;
+            }
+            if (!isEqualityValue(entry.getValue()) || entry.getValue() instanceof Document) {
+                return false;
+            }
+        }
+        return !expression.isEmpty();
+    }
+
+    private static boolean isInQuery(Document expression) {
+        if (expression.size() != 1) {
+            return false;
+        }
+        Object inValues = expression.get(QueryOperator.IN.getValue());
+        if (!(inValues instanceof Collection<?>)) {
+            return false;
+        }
+        for (Object value : (Collection<?>) inValues) {
+            if (!isEqualityValue(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLowerBound(String key) {
+        return key.equals(QueryOperator.GREATER_THAN.getValue())
+            || key.equals(QueryOperator.GREATER_THAN_OR_EQUAL.getValue());
+    }
+
+    private static boolean isUpperBound(String key) {
+        return key.equals(QueryOperator.LESS_THAN.getValue())
+            || key.equals(QueryOperator.LESS_THAN_OR_EQUAL.getValue());
+    }
+
+    private static Object[] getBounds(Document expression) {
+        Object[] bounds = new Object[2];
+        for (Entry<String, Object> entry : expression.entrySet()) {
+            bounds[isLowerBound(entry.getKey()) ? 0 : 1] = Utils.normalizeValue(entry.getValue());
+        }
+        return bounds;
+    }
+
+    private static Collection<?> getInValues(Document expression) {
+        return (Collection<?>) expression.get(QueryOperator.IN.getValue());
+    }
+
+    private static List<Object> singleKey(Object value) {
+        List<Object> key = new ArrayList<>(1);
+        key.add(Utils.normalizeValue(value));
+        return key;
+    }
+
+}
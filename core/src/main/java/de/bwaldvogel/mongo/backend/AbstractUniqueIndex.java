@@ -3,10 +3,10 @@ package de.bwaldvogel.mongo.backend;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map.Entry;
-import java.util.TreeSet;
-import java.util.regex.Matcher;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import de.bwaldvogel.mongo.bson.BsonRegularExpression;
@@ -30,10 +30,78 @@ public abstract class AbstractUniqueIndex<P> extends Index<P> {
 
     protected abstract P getPosition(List<Object> key);
 
+    /**
+     * Returns the position of the entry of a single-field index whose key is the
+     * given value, which is not yet normalized. Implementations can override this
+     * to look up the value without building a key list.
+     */
+    protected P getPositionForSingleValue(Object value) {
+        return getPosition(new ArrayList<>(Collections.singletonList(Utils.normalizeValue(value))));
+    }
+
+    /**
+     * Returns the positions of all entries of a single-field index whose key is a
+     * string in the range [fromInclusive, toExclusive), or null if the index cannot
+     * answer such a range scan, e.g. because its keys are not ordered or not all
+     * keys are strings.
+     *
+     * @param toExclusive the upper bound or null if the range is unbounded
+     */
+    protected Iterable<P> getPositionsForStringRange(String fromInclusive, String toExclusive) {
+        return null;
+    }
+
+    /**
+     * Returns whether {@link #getPositionsForRange(Object, Object)} is supported,
+     * which requires the keys of a single-field index to be ordered.
+     */
+    protected boolean canHandleRange() {
+        return false;
+    }
+
+    /**
+     * Returns the positions of all entries of a single-field index whose key is of
+     * the same type as the bounds and lies in the range [lowerBound, upperBound].
+     * The query is evaluated again on every document, so the positions may include
+     * entries that do not match exclusive or contradicting bounds.
+     *
+     * @param lowerBound the normalized lower bound or null if the range is unbounded below
+     * @param upperBound the normalized upper bound or null if the range is unbounded above
+     */
+    protected Iterable<P> getPositionsForRange(Object lowerBound, Object upperBound) {
+        throw new UnsupportedOperationException("range scans are not supported by " + this);
+    }
+
     @Override
     public synchronized P remove(Document document) {
-        List<Object> key = getKeyValue(document);
-        return removeDocument(key);
+        if (hasNoValueForKeys(document)) {
+            return null;
+        }
+        P position = null;
+        for (List<Object> key : getKeyValues(document)) {
+            P removedPosition = removeDocument(key);
+            if (position == null) {
+                position = removedPosition;
+            }
+        }
+        return position;
+    }
+
+    @Override
+    public synchronized P getPosition(Document document) {
+        if (!isCompoundIndex()) {
+            Object value = getFirstKeyValue(document);
+            if (value instanceof Missing) {
+                return null;
+            }
+            if (!(value instanceof Collection<?>)) {
+                return getPositionForSingleValue(value);
+            }
+        } else if (hasNoValueForKeys(document)) {
+            return null;
+        }
+        List<Object> key = getKeyValues(document).iterator().next();
+        return getPosition(key);
     }
 
     @Override
@@ -42,9 +110,10 @@ public abstract class AbstractUniqueIndex<P> extends Index<P> {
             return;
         }
 
-        List<Object> key = getKeyValue(document);
-        if (containsKey(key)) {
-            throw new DuplicateKeyError(this, key);
+        for (List<Object> key : getKeyValues(document)) {
+            if (containsKey(key)) {
+                throw new DuplicateKeyError(this, key);
+            }
         }
     }
 
@@ -54,33 +123,45 @@ public abstract class AbstractUniqueIndex<P> extends Index<P> {
         if (hasNoValueForKeys(document)) {
             return;
         }
-        List<Object> key = getKeyValue(document);
+        for (List<Object> key : getKeyValues(document)) {
+            putKey(key, position);
+        }
+    }
+
+    private void putKey(List<Object> key, P position) {
         boolean added = putKeyPosition(key, position);
         if (!added) {
             throw new IllegalStateException("Position " + position + " already exists. Concurrency issue?");
         }
     }
 
-    private boolean hasNoValueForKeys(Document document) {
-        for (String key : keys()) {
-            if (Utils.hasSubdocumentValue(document, key)) {
-                return false;
+    @Override
+    public synchronized void checkUpdate(Document oldDocument, Document newDocument) {
+        Set<List<Object>> oldKeys = getKeyValuesOrEmpty(oldDocument);
+        for (List<Object> key : getKeyValuesOrEmpty(newDocument)) {
+            if (!oldKeys.contains(key) && containsKey(key)) {
+                throw new DuplicateKeyError(this, key);
             }
         }
-        return true;
     }
 
     @Override
-    public void checkUpdate(Document oldDocument, Document newDocument) {
-        if (nullAwareEqualsKeys(oldDocument, newDocument)) {
+    public synchronized void updateInPlace(Document oldDocument, Document newDocument, P position) throws KeyConstraintError {
+        Set<List<Object>> oldKeys = getKeyValuesOrEmpty(oldDocument);
+        Set<List<Object>> newKeys = getKeyValuesOrEmpty(newDocument);
+        if (oldKeys.equals(newKeys)) {
             return;
         }
-        checkAdd(newDocument);
-    }
-
-    @Override
-    public void updateInPlace(Document oldDocument, Document newDocument) throws KeyConstraintError {
-        // no change necessary
+        for (List<Object> key : oldKeys) {
+            if (!newKeys.contains(key)) {
+                removeDocument(key);
+            }
+        }
+        for (List<Object> key : newKeys) {
+            if (!oldKeys.contains(key)) {
+                putKey(key, position);
+            }
+        }
     }
 
     @Override
@@ -92,10 +173,24 @@ public abstract class AbstractUniqueIndex<P> extends Index<P> {
 
         for (String key : keys()) {
             Object queryValue = query.get(key);
+            if (!canHandleValue(queryValue)) {
+                return false;
+            }
             if (queryValue instanceof Document) {
-                for (String queriedKeys : ((Document) queryValue).keySet()) {
+                Document queryDocument = (Document) queryValue;
+                if (isRangeQuery(queryDocument)) {
+                    if (!canHandleRangeQuery(queryDocument)) {
+                        return false;
+                    }
+                    continue;
+                }
+                for (String queriedKeys : queryDocument.keySet()) {
                     if (isInQuery(queriedKeys)) {
-                        // okay
+                        for (Object value : (Collection<?>) queryDocument.get(queriedKeys)) {
+                            if (!canHandleValue(value) || value instanceof Document) {
+                                return false;
+                            }
+                        }
                     } else if (queriedKeys.startsWith("$")) {
                         // not yet supported
                         return false;
@@ -107,43 +202,117 @@ public abstract class AbstractUniqueIndex<P> extends Index<P> {
         return true;
     }
 
+    @Override
+    public synchronized boolean coversQuery(Document query) {
+        if (!canHandle(query)) {
+            return false;
+        }
+        for (String key : keys()) {
+            Object queryValue = query.get(key);
+            if (queryValue instanceof Document) {
+                Document queryDocument = (Document) queryValue;
+                Object inValues = queryDocument.get(QueryOperator.IN.getValue());
+                if (queryDocument.size() != 1 || !(inValues instanceof Collection<?>)) {
+                    return false;
+                }
+                for (Object value : (Collection<?>) inValues) {
+                    if (!isExactlyIndexed(value)) {
+                        return false;
+                    }
+                }
+            } else if (!isExactlyIndexed(queryValue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Regular expressions only preselect candidates and byte arrays are not
+     * compared by value when looking up index keys.
+     */
+    private static boolean isExactlyIndexed(Object value) {
+        return !(value instanceof BsonRegularExpression) && !(value instanceof byte[]) && !(value instanceof Document);
+    }
+
+    /**
+     * Numbers are indexed in their normalized form, so their original type cannot be
+     * restored from the index. Documents and arrays are excluded because they might
+     * contain numbers.
+     */
+    @Override
+    public synchronized List<Object> getDistinctValues() {
+        if (isCompoundIndex() || isMultikey()) {
+            return null;
+        }
+        List<Object> values = new ArrayList<>();
+        for (Entry<List<Object>, P> entry : getIterable()) {
+            Object value = entry.getKey().get(0);
+            if (value instanceof Number || value instanceof Document || value instanceof Collection<?>) {
+                return null;
+            }
+            values.add(value);
+        }
+        return values;
+    }
+
+    /**
+     * Null also matches documents without the field and an array is matched as a whole,
+     * neither of which can be answered from the (multikey) index entries.
+     */
+    private static boolean canHandleValue(Object queryValue) {
+        return queryValue != null && !(queryValue instanceof Collection<?>);
+    }
+
     private static boolean isInQuery(String key) {
         return key.equals(QueryOperator.IN.getValue());
     }
 
+    private static boolean isLowerBound(String key) {
+        return key.equals(QueryOperator.GREATER_THAN.getValue())
+            || key.equals(QueryOperator.GREATER_THAN_OR_EQUAL.getValue());
+    }
+
+    private static boolean isUpperBound(String key) {
+        return key.equals(QueryOperator.LESS_THAN.getValue())
+            || key.equals(QueryOperator.LESS_THAN_OR_EQUAL.getValue());
+    }
+
+    private static boolean isRangeQuery(Document queryDocument) {
+        if (queryDocument.isEmpty()) {
+            return false;
+        }
+        for (String key : queryDocument.keySet()) {
+            if (!isLowerBound(key) && !isUpperBound(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean canHandleRangeQuery(Document queryDocument) {
+        if (isCompoundIndex() || !canHandleRange()) {
+            return false;
+        }
+        for (Object bound : queryDocument.values()) {
+            if (!canHandleValue(bound) || bound instanceof Document || bound instanceof BsonRegularExpression) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public synchronized Iterable<P> getPositions(Document query) {
+        if (!isCompoundIndex()) {
+            return getPositionsForSingleValue(query.get(keys().get(0)));
+        }
+
         List<Object> queriedKeys = getQueriedKeys(query);
 
         for (Object queriedKey : queriedKeys) {
-            if (queriedKey instanceof Document) {
-                if (isCompoundIndex()) {
-                    throw new UnsupportedOperationException("Not yet implemented");
-                }
-                Document keyObj = (Document) queriedKey;
-                if (Utils.containsQueryExpression(keyObj)) {
-                    if (keyObj.keySet().size() != 1) {
-                        throw new UnsupportedOperationException("illegal query key: " + queriedKeys);
-                    }
-
-                    String expression = keyObj.keySet().iterator().next();
-                    if (expression.startsWith("$")) {
-                        return getPositionsForExpression(keyObj, expression);
-                    }
-                }
-            } else if (queriedKey instanceof BsonRegularExpression) {
-                if (isCompoundIndex()) {
-                    throw new UnsupportedOperationException("Not yet implemented");
-                }
-                List<P> positions = new ArrayList<>();
-                for (Entry<List<Object>, P> entry : getIterable()) {
-                    Object obj = entry.getKey();
-                    Matcher matcher = ((BsonRegularExpression) queriedKey).matcher(obj.toString());
-                    if (matcher.find()) {
-                        positions.add(entry.getValue());
-                    }
-                }
-                return positions;
+            if (queriedKey instanceof Document || queriedKey instanceof BsonRegularExpression) {
+                throw new UnsupportedOperationException("Not yet implemented");
             }
         }
 
@@ -154,6 +323,165 @@ public abstract class AbstractUniqueIndex<P> extends Index<P> {
         return Collections.singletonList(position);
     }
 
+    private Iterable<P> getPositionsForSingleValue(Object queriedValue) {
+        if (queriedValue instanceof Document && Utils.containsQueryExpression(queriedValue)) {
+            Document keyObj = (Document) queriedValue;
+            if (isRangeQuery(keyObj)) {
+                return getPositionsForRangeQuery(keyObj);
+            }
+            if (keyObj.keySet().size() != 1) {
+                throw new UnsupportedOperationException("illegal query key: " + Collections.singletonList(keyObj));
+            }
+            String expression = keyObj.keySet().iterator().next();
+            if (expression.startsWith("$")) {
+                return getPositionsForExpression(keyObj, expression);
+            }
+        } else if (queriedValue instanceof BsonRegularExpression) {
+            return getPositionsForRegularExpression((BsonRegularExpression) queriedValue);
+        }
+
+        P position = getPositionForSingleValue(queriedValue);
+        if (position == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(position);
+    }
+
+    private Iterable<P> getPositionsForRangeQuery(Document keyObj) {
+        Object lowerBound = null;
+        Object upperBound = null;
+        for (Entry<String, Object> entry : keyObj.entrySet()) {
+            if (isLowerBound(entry.getKey())) {
+                lowerBound = Utils.normalizeValue(entry.getValue());
+            } else {
+                upperBound = Utils.normalizeValue(entry.getValue());
+            }
+        }
+        return getPositionsForRange(lowerBound, upperBound);
+    }
+
+    @Override
+    public synchronized long estimateCount(Document query) {
+        long count = 1;
+        for (Object queriedKey : getQueriedKeys(query)) {
+            if (queriedKey instanceof BsonRegularExpression) {
+                Iterable<P> positions = getPositionsForPrefix((BsonRegularExpression) queriedKey);
+                if (positions == null) {
+                    return getCount();
+                }
+                long rangeCount = 0;
+                for (P ignored : positions) {
+                    rangeCount++;
+                }
+                return rangeCount;
+            } else if (queriedKey instanceof Document && isRangeQuery((Document) queriedKey)) {
+                return getCount();
+            } else if (queriedKey instanceof Document) {
+                Object inValues = ((Document) queriedKey).get(QueryOperator.IN.getValue());
+                if (inValues instanceof Collection<?>) {
+                    count *= ((Collection<?>) inValues).size();
+                }
+            }
+        }
+        return Math.min(count, getCount());
+    }
+
+    /**
+     * The regular expression is only used to preselect candidates. The query is
+     * evaluated again on every document, so non-string keys are always returned
+     * as candidates since their normalized index key may print differently than
+     * the original value.
+     */
+    private Iterable<P> getPositionsForRegularExpression(BsonRegularExpression regularExpression) {
+        Set<P> positions = new LinkedHashSet<>();
+        Iterable<P> prefixPositions = getPositionsForPrefix(regularExpression);
+        if (prefixPositions != null) {
+            for (P position : prefixPositions) {
+                positions.add(position);
+            }
+            return positions;
+        }
+
+        for (Entry<List<Object>, P> entry : getIterable()) {
+            Object value = entry.getKey().get(0);
+            if (!(value instanceof String) || regularExpression.matcher((String) value).find()) {
+                positions.add(entry.getValue());
+            }
+        }
+        return positions;
+    }
+
+    private Iterable<P> getPositionsForPrefix(BsonRegularExpression regularExpression) {
+        String prefix = getAnchoredPrefix(regularExpression);
+        if (prefix == null) {
+            return null;
+        }
+        return getPositionsForStringRange(prefix, getUpperBound(prefix));
+    }
+
+    /**
+     * Returns the literal prefix of a regular expression that is anchored at the
+     * start of the string, such as 'abc' for '^abc.*', or null if matching strings
+     * do not necessarily start with a common prefix. Case-insensitive, multiline
+     * and extended patterns as well as alternations are not supported.
+     */
+    static String getAnchoredPrefix(BsonRegularExpression regularExpression) {
+        String options = regularExpression.getOptions();
+        if (options != null && (options.contains("i") || options.contains("m") || options.contains("x"))) {
+            return null;
+        }
+
+        String pattern = regularExpression.getPattern();
+        if (!pattern.startsWith("^") || pattern.contains("|")) {
+            return null;
+        }
+
+        StringBuilder prefix = new StringBuilder();
+        for (int i = 1; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (".^$*+?()[]{}\\".indexOf(c) >= 0) {
+                if (c == '*' || c == '?' || c == '{') {
+                    // the last literal character is optional
+                    removeLastCharacter(prefix);
+                }
+                break;
+            }
+            prefix.append(c);
+        }
+
+        if (prefix.length() == 0) {
+            return null;
+        }
+        return prefix.toString();
+    }
+
+    private static void removeLastCharacter(StringBuilder prefix) {
+        if (prefix.length() > 0) {
+            prefix.setLength(prefix.length() - 1);
+        }
+        if (prefix.length() > 0 && Character.isHighSurrogate(prefix.charAt(prefix.length() - 1))) {
+            prefix.setLength(prefix.length() - 1);
+        }
+    }
+
+    /**
+     * Returns the smallest string that is greater than all strings with the given
+     * prefix, or null if there is no such string.
+     */
+    static String getUpperBound(String prefix) {
+        StringBuilder upperBound = new StringBuilder(prefix);
+        while (upperBound.length() > 0) {
+            int lastPosition = upperBound.length() - 1;
+            char lastCharacter = upperBound.charAt(lastPosition);
+            if (lastCharacter < Character.MAX_VALUE) {
+                upperBound.setCharAt(lastPosition, (char) (lastCharacter + 1));
+                return upperBound.toString();
+            }
+            upperBound.setLength(lastPosition);
+        }
+        return null;
+    }
+
     private List<Object> getQueriedKeys(Document query) {
         return keys().stream()
             .map(query::get)
@@ -161,19 +489,12 @@ public abstract class AbstractUniqueIndex<P> extends Index<P> {
             .collect(Collectors.toList());
     }
 
-    private boolean nullAwareEqualsKeys(Document oldDocument, Document newDocument) {
-        Object oldKey = getKeyValue(oldDocument);
-        Object newKey = getKeyValue(newDocument);
-        return Utils.nullAwareEquals(oldKey, newKey);
-    }
-
     private Iterable<P> getPositionsForExpression(Document keyObj, String operator) {
         if (isInQuery(operator)) {
-            Collection<?> queriedObjects = new TreeSet<Object>((Collection<?>) keyObj.get(operator));
-            List<P> allKeys = new ArrayList<>();
+            Collection<?> queriedObjects = (Collection<?>) keyObj.get(operator);
+            Set<P> allKeys = new LinkedHashSet<>();
             for (Object object : queriedObjects) {
-                Object keyValue = Utils.normalizeValue(object);
-                P key = getPosition(new ArrayList<>(Collections.singletonList(keyValue)));
+                P key = getPositionForSingleValue(object);
                 if (key != null) {
                     allKeys.add(key);
                 }
@@ -0,0 +1,694 @@
+package de.bwaldvogel.mongo.backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.bwaldvogel.mongo.backend.aggregation.Expression;
+import de.bwaldvogel.mongo.bson.BsonRegularExpression;
+import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.exception.BadValueException;
+import de.bwaldvogel.mongo.exception.MongoServerError;
+import de.bwaldvogel.mongo.exception.MongoServerException;
+
+/**
+ * A query document that was compiled once into an immutable tree of predicates.
+ *
+ * Everything that only depends on the query is resolved at compile time: keys are split
+ * into paths, operators are looked up, $in lists are turned into hash sets and regular
+ * expressions are converted once. The evaluation follows {@link DefaultQueryMatcher} step
+ * by step, so both yield the same results. Errors in the query are raised when the
+ * offending part of the query is evaluated, just like in {@link DefaultQueryMatcher}.
+ *
+ * Instances are thread-safe.
+ */
+public final class CompiledQuery {
+
+    private static final Logger log = LoggerFactory.getLogger(CompiledQuery.class);
+
+    private static final ValueComparator comparator = new ValueComparator();
+
+    private final List<DocumentPredicate> predicates;
+
+    private CompiledQuery(List<DocumentPredicate> predicates) {
+        this.predicates = predicates;
+    }
+
+    public static CompiledQuery compile(Document query) {
+        List<DocumentPredicate> predicates = new ArrayList<>();
+        for (String key : query.keySet()) {
+            predicates.add(compilePath(query.get(key), key));
+        }
+        return new CompiledQuery(predicates);
+    }
+
+    public boolean matches(Document document) {
+        return matches(document, new MatchContext());
+    }
+
+    public Integer matchPosition(Document document) {
+        MatchContext context = new MatchContext();
+        if (!matches(document, context)) {
+            return null;
+        }
+        return context.lastPosition;
+    }
+
+    private boolean matches(Object document, MatchContext context) {
+        for (DocumentPredicate predicate : predicates) {
+            if (!predicate.matches(document, context)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class MatchContext {
+        private Integer lastPosition;
+
+        private void registerPosition(int position) {
+            if (lastPosition == null) {
+                lastPosition = Integer.valueOf(position);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface DocumentPredicate {
+        boolean matches(Object document, MatchContext context);
+    }
+
+    @FunctionalInterface
+    private interface ValuePredicate {
+        boolean matches(Object value, boolean valueExists, MatchContext context);
+    }
+
+    private static DocumentPredicate compilePath(Object queryValue, String key) {
+        final List<String> keys;
+        try {
+            keys = splitKey(key);
+        } catch (RuntimeException e) {
+            return (document, context) -> {
+                throw e;
+            };
+        }
+        return new PathPredicate(queryValue, keys);
+    }
+
+    private static List<String> splitKey(String key) {
+        List<String> keys = Arrays.asList(key.split("\\."));
+        for (String subKey : keys) {
+            if (subKey.isEmpty()) {
+                throw new MongoServerException("illegal key: " + key);
+            }
+        }
+        return keys;
+    }
+
+    private static final class PathPredicate implements DocumentPredicate {
+
+        private final Object queryValue;
+        private final String firstKey;
+        private final RuntimeException error;
+        private final boolean isComment;
+        private final DocumentPredicate filterPredicate;
+        private final boolean isArrayPosition;
+        private final DocumentPredicate subPathPredicate;
+        private final Object allQuery;
+        private final List<DocumentPredicate> allPredicates;
+        private final DocumentPredicate anyElementPredicate;
+        private final ValuePredicate valuePredicate;
+        private final List<ArrayOperatorPredicate> arrayOperatorPredicates;
+
+        private PathPredicate(Object queryValue, List<String> keys) {
+            this.queryValue = queryValue;
+
+            if (keys.isEmpty()) {
+                this.firstKey = null;
+                this.error = new MongoServerException("illegal keys: " + keys);
+            } else {
+                this.firstKey = keys.get(0);
+                if (!firstKey.equals("$comment") && !QueryFilter.isQueryFilter(firstKey)
+                    && firstKey.startsWith("$") && !Constants.REFERENCE_KEYS.contains(firstKey)) {
+                    this.error = new BadValueException("unknown top level operator: " + firstKey);
+                } else {
+                    this.error = null;
+                }
+            }
+
+            this.isComment = error == null && firstKey.equals("$comment");
+            if (error != null || isComment || QueryFilter.isQueryFilter(firstKey)) {
+                this.filterPredicate = (error == null && !isComment) ? compileFilter(queryValue, QueryFilter.fromValue(firstKey)) : null;
+                this.isArrayPosition = false;
+                this.subPathPredicate = null;
+                this.allQuery = null;
+                this.allPredicates = null;
+                this.anyElementPredicate = null;
+                this.valuePredicate = null;
+                this.arrayOperatorPredicates = null;
+                return;
+            }
+
+            this.filterPredicate = null;
+            this.isArrayPosition = firstKey.matches("\\d+");
+
+            if (keys.size() > 1) {
+                this.subPathPredicate = new PathPredicate(queryValue, keys.subList(1, keys.size()));
+                this.valuePredicate = null;
+                this.arrayOperatorPredicates = null;
+            } else {
+                this.subPathPredicate = null;
+                this.valuePredicate = compileValue(queryValue);
+                if (queryValue instanceof Document) {
+                    this.arrayOperatorPredicates = compileArrayOperators((Document) queryValue, keys, valuePredicate);
+                } else {
+                    this.arrayOperatorPredicates = null;
+                }
+            }
+
+            if (queryValue instanceof Document && ((Document) queryValue).keySet().contains(QueryOperator.ALL.getValue())) {
+                Document remainingQuery = ((Document) queryValue).clone();
+                this.allQuery = remainingQuery.remove(QueryOperator.ALL.getValue());
+                if (allQuery instanceof Collection<?>) {
+                    this.allPredicates = new ArrayList<>();
+                    for (Object query : (Collection<?>) allQuery) {
+                        allPredicates.add(new PathPredicate(query, keys));
+                    }
+                } else {
+                    this.allPredicates = null;
+                }
+                this.anyElementPredicate = new PathPredicate(remainingQuery, keys);
+            } else {
+                this.allQuery = null;
+                this.allPredicates = null;
+                this.anyElementPredicate = this;
+            }
+        }
+
+        @Override
+        public boolean matches(Object document, MatchContext context) {
+            if (firstKey == null) {
+                throw error;
+            }
+
+            if (document == null) {
+                return false;
+            }
+
+            if (isComment) {
+                log.debug("query comment: '{}'", queryValue);
+                return true;
+            }
+
+            if (filterPredicate != null) {
+                return filterPredicate.matches(document, context);
+            } else if (error != null) {
+                throw error;
+            }
+
+            if (document instanceof List<?>) {
+                if (isArrayPosition) {
+                    Object listValue = Utils.getFieldValueListSafe(document, firstKey);
+                    if (subPathPredicate == null) {
+                        return valuePredicate.matches(listValue, listValue != null, context);
+                    } else {
+                        return subPathPredicate.matches(listValue, context);
+                    }
+                }
+
+                if (anyElementPredicate != this) {
+                    if (allPredicates == null) {
+                        throw new ClassCastException("$all needs an array: " + allQuery);
+                    }
+                    for (DocumentPredicate allPredicate : allPredicates) {
+                        if (!matchesAnyElement(allPredicate, document, context)) {
+                            return false;
+                        }
+                    }
+                }
+
+                return matchesAnyElement(anyElementPredicate, document, context);
+            }
+
+            if (subPathPredicate != null) {
+                Object subObject = Utils.getFieldValueListSafe(document, firstKey);
+                return subPathPredicate.matches(subObject, context);
+            }
+
+            if (!(document instanceof Document)) {
+                return false;
+            }
+
+            Object value = ((Document) document).get(firstKey);
+            boolean valueExists = ((Document) document).containsKey(firstKey);
+
+            if (value instanceof Collection<?>) {
+                if (arrayOperatorPredicates != null) {
+                    for (ArrayOperatorPredicate arrayOperatorPredicate : arrayOperatorPredicates) {
+                        if (!arrayOperatorPredicate.matches(document, value, valueExists, context)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+
+                if (matchesAnyValue(valuePredicate, value, context)) {
+                    return true;
+                }
+            }
+
+            return valuePredicate.matches(value, valueExists, context);
+        }
+
+        private static boolean matchesAnyElement(DocumentPredicate predicate, Object document, MatchContext context) {
+            int i = 0;
+            for (Object object : (Collection<?>) document) {
+                if (predicate.matches(object, context)) {
+                    context.registerPosition(i);
+                    return true;
+                }
+                i++;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Matches an array value against a single operator of the query. The enclosing
+     * document is needed to evaluate {@code $not}.
+     */
+    @FunctionalInterface
+    private interface ArrayOperatorPredicate {
+        boolean matches(Object document, Object values, boolean valueExists, MatchContext context);
+    }
+
+    private static List<ArrayOperatorPredicate> compileArrayOperators(Document queryValue, List<String> keys,
+                                                                      ValuePredicate valuePredicate) {
+        List<ArrayOperatorPredicate> predicates = new ArrayList<>();
+        for (String queryOperator : queryValue.keySet()) {
+            Object subQuery = queryValue.get(queryOperator);
+            predicates.add(compileArrayOperator(queryOperator, subQuery, keys, valuePredicate));
+        }
+        return predicates;
+    }
+
+    private static ArrayOperatorPredicate compileArrayOperator(String queryOperator, Object subQuery, List<String> keys,
+                                                               ValuePredicate valuePredicate) {
+        if (queryOperator.equals(QueryOperator.ALL.getValue())) {
+            ValuePredicate allValues = compileAllValues(subQuery);
+            return (document, values, valueExists, context) -> allValues.matches(values, true, context);
+        } else if (queryOperator.equals(QueryOperator.ELEM_MATCH.getValue())) {
+            ValuePredicate elemMatch = compileElemMatch(subQuery);
+            return (document, values, valueExists, context) -> elemMatch.matches(values, true, context);
+        } else if (queryOperator.equals(QueryOperator.IN.getValue())) {
+            ValuePredicate inPredicate = compileValue(new Document(queryOperator, subQuery));
+            return (document, values, valueExists, context) -> matchesAnyValue(inPredicate, values, context);
+        } else if (queryOperator.equals(QueryOperator.NOT_IN.getValue())) {
+            ValuePredicate allValues = compileAllValues(subQuery);
+            return (document, values, valueExists, context) -> !allValues.matches(values, true, context);
+        } else if (queryOperator.equals(QueryOperator.NOT.getValue())) {
+            DocumentPredicate notPredicate = new PathPredicate(subQuery, keys);
+            return (document, values, valueExists, context) -> !notPredicate.matches(document, context);
+        } else {
+            return (document, values, valueExists, context) -> matchesAnyValue(valuePredicate, values, context)
+                || valuePredicate.matches(values, valueExists, context);
+        }
+    }
+
+    private static boolean matchesAnyValue(ValuePredicate predicate, Object values, MatchContext context) {
+        int i = 0;
+        for (Object value : (Collection<?>) values) {
+            if (predicate.matches(value, true, context)) {
+                context.registerPosition(i);
+                return true;
+            }
+            i++;
+        }
+        return false;
+    }
+
+    private static ValuePredicate compileAllValues(Object queryValue) {
+        if (!(queryValue instanceof Collection<?>)) {
+            return (values, valueExists, context) -> false;
+        }
+        List<ValuePredicate> predicates = new ArrayList<>();
+        for (Object query : (Collection<?>) queryValue) {
+            predicates.add(compileValue(query));
+        }
+        return (values, valueExists, context) -> {
+            for (ValuePredicate predicate : predicates) {
+                if (!matchesAnyValue(predicate, values, context)) {
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+
+    private static ValuePredicate compileElemMatch(Object queryValue) {
+        if (!(queryValue instanceof Document)) {
+            BadValueException error = new BadValueException(QueryOperator.ELEM_MATCH.getValue() + " needs an Object");
+            return (values, valueExists, context) -> {
+                throw error;
+            };
+        }
+        ValuePredicate predicate = compileValue(queryValue);
+        return (values, valueExists, context) -> {
+            for (Object value : (Collection<?>) values) {
+                if (predicate.matches(value, true, context)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    private static DocumentPredicate compileFilter(Object queryValue, QueryFilter filter) {
+        if (filter == QueryFilter.EXPR) {
+            return (document, context) -> Utils.isTrue(Expression.evaluateDocument(queryValue, (Document) document));
+        }
+
+        MongoServerError error = validateFilter(queryValue, filter);
+        if (error != null) {
+            return (document, context) -> {
+                throw error;
+            };
+        }
+
+        List<CompiledQuery> subqueries = new ArrayList<>();
+        for (Object subqueryValue : (List<?>) queryValue) {
+            subqueries.add(compile((Document) subqueryValue));
+        }
+
+        switch (filter) {
+            case AND:
+                return (document, context) -> {
+                    Document castedDocument = (Document) document;
+                    for (CompiledQuery subquery : subqueries) {
+                        if (!subquery.matches(castedDocument, context)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                };
+            case OR:
+                return (document, context) -> matchesAny(subqueries, (Document) document, context);
+            case NOR:
+                return (document, context) -> !matchesAny(subqueries, (Document) document, context);
+            default:
+                throw new MongoServerException("illegal query filter: " + filter + ". must not happen");
+        }
+    }
+
+    private static boolean matchesAny(List<CompiledQuery> subqueries, Document document, MatchContext context) {
+        for (CompiledQuery subquery : subqueries) {
+            if (subquery.matches(document, context)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static MongoServerError validateFilter(Object queryValue, QueryFilter filter) {
+        if (!(queryValue instanceof List<?>)) {
+            return new MongoServerError(14816, filter + " expression must be a nonempty array");
+        }
+
+        List<?> list = (List<?>) queryValue;
+        if (list.isEmpty()) {
+            return new MongoServerError(14816, filter + " expression must be a nonempty array");
+        }
+
+        for (Object subqueryValue : list) {
+            if (!(subqueryValue instanceof Document)) {
+                return new MongoServerError(14817, filter + " elements must be objects");
+            }
+        }
+        return null;
+    }
+
+    private static ValuePredicate compileValue(Object queryValue) {
+        if (BsonRegularExpression.isRegularExpression(queryValue)) {
+            return compileRegularExpression(queryValue);
+        }
+
+        if (queryValue instanceof Document) {
+            Document queryObject = (Document) queryValue;
+
+            List<ValuePredicate> predicates = new ArrayList<>();
+            if (queryObject.keySet().equals(Constants.REFERENCE_KEYS)) {
+                for (String key : queryObject.keySet()) {
+                    DocumentPredicate predicate = compilePath(queryObject.get(key), key);
+                    predicates.add((value, valueExists, context) -> predicate.matches(value, context));
+                }
+            } else {
+                for (String key : queryObject.keySet()) {
+                    Object querySubvalue = queryObject.get(key);
+                    if (key.startsWith("$")) {
+                        predicates.add(compileExpression(querySubvalue, key));
+                    } else {
+                        // the value of the query itself can be a complex query
+                        DocumentPredicate predicate = compilePath(querySubvalue, key);
+                        predicates.add((value, valueExists, context) -> predicate.matches(value, context));
+                    }
+                }
+            }
+
+            return (value, valueExists, context) -> {
+                for (ValuePredicate predicate : predicates) {
+                    if (!predicate.matches(value, valueExists, context)) {
+                        return false;
+                    }
+                }
+                return true;
+            };
+        }
+
+        return compileEquals(queryValue);
+    }
+
+    private static ValuePredicate compileRegularExpression(Object queryValue) {
+        final BsonRegularExpression pattern;
+        try {
+            pattern = BsonRegularExpression.convertToRegularExpression(queryValue);
+        } catch (RuntimeException e) {
+            return (value, valueExists, context) -> {
+                if (value == null) {
+                    return false;
+                }
+                throw e;
+            };
+        }
+        return (value, valueExists, context) -> {
+            if (value == null) {
+                return false;
+            }
+            return pattern.matcher(value.toString()).find();
+        };
+    }
+
+    private static ValuePredicate compileEquals(Object queryValue) {
+        boolean queryIsNull = Missing.isNullOrMissing(queryValue);
+        Object normalizedQueryValue = Utils.normalizeValue(queryValue);
+        return (value, valueExists, context) -> {
+            if (value == queryValue) {
+                return true;
+            } else if (Missing.isNullOrMissing(value)) {
+                return queryIsNull;
+            } else if (queryIsNull) {
+                return false;
+            } else if (value instanceof byte[] && queryValue instanceof byte[]) {
+                return Arrays.equals((byte[]) value, (byte[]) queryValue);
+            } else {
+                return Utils.normalizeValue(value).equals(normalizedQueryValue);
+            }
+        };
+    }
+
+    private static ValuePredicate compileExpression(Object expressionValue, String operator) {
+        final QueryOperator queryOperator;
+        try {
+            queryOperator = QueryOperator.fromValue(operator);
+        } catch (IllegalArgumentException e) {
+            MongoServerError error = new MongoServerError(10068, "invalid operator: " + operator);
+            return (value, valueExists, context) -> {
+                throw error;
+            };
+        }
+
+        switch (queryOperator) {
+            case IN:
+                return compileIn(expressionValue);
+            case NOT: {
+                ValuePredicate predicate = compileValue(expressionValue);
+                return (value, valueExists, context) -> !predicate.matches(value, valueExists, context);
+            }
+            case EQUAL:
+                return compileEquals(expressionValue);
+            case NOT_EQUALS: {
+                ValuePredicate predicate = compileEquals(expressionValue);
+                return (value, valueExists, context) -> !predicate.matches(value, valueExists, context);
+            }
+            case NOT_IN: {
+                ValuePredicate predicate = compileIn(expressionValue);
+                return (value, valueExists, context) -> !predicate.matches(value, valueExists, context);
+            }
+            case EXISTS: {
+                boolean exists = Utils.isTrue(expressionValue);
+                return (value, valueExists, context) -> valueExists == exists;
+            }
+            case GREATER_THAN:
+                return compileComparison(expressionValue, result -> result > 0);
+            case GREATER_THAN_OR_EQUAL:
+                return compileComparison(expressionValue, result -> result >= 0);
+            case LESS_THAN:
+                return compileComparison(expressionValue, result -> result < 0);
+            case LESS_THAN_OR_EQUAL:
+                return compileComparison(expressionValue, result -> result <= 0);
+            case MOD:
+                return (value, valueExists, context) -> {
+                    if (!(value instanceof Number)) {
+                        return false;
+                    }
+
+                    @SuppressWarnings("unchecked")
+                    List<Number> modValue = (List<Number>) expressionValue;
+                    return (((Number) value).intValue() % modValue.get(0).intValue() == modValue.get(1).intValue());
+                };
+            case SIZE: {
+                if (!(expressionValue instanceof Number)) {
+                    BadValueException error = new BadValueException("$size needs a number");
+                    return (value, valueExists, context) -> {
+                        throw error;
+                    };
+                }
+                double matchingSize = ((Number) expressionValue).doubleValue();
+                return (value, valueExists, context) -> {
+                    if (!(value instanceof Collection<?>)) {
+                        return false;
+                    }
+                    int listSize = ((Collection<?>) value).size();
+                    return listSize == matchingSize;
+                };
+            }
+            case ALL:
+                return (value, valueExists, context) -> false;
+            default: {
+                IllegalArgumentException error = new IllegalArgumentException("unhandled query operator: " + queryOperator);
+                return (value, valueExists, context) -> {
+                    throw error;
+                };
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface ComparisonResult {
+        boolean matches(int result);
+    }
+
+    private static ValuePredicate compileComparison(Object expressionValue, ComparisonResult comparisonResult) {
+        Object normalizedExpressionValue = Utils.normalizeValue(expressionValue);
+        if (normalizedExpressionValue == null) {
+            return (value, valueExists, context) -> false;
+        }
+        Class<?> expressionClass = normalizedExpressionValue.getClass();
+        return (value, valueExists, context) -> {
+            Object normalizedValue = Utils.normalizeValue(value);
+            if (normalizedValue == null || !normalizedValue.getClass().equals(expressionClass)) {
+                return false;
+            }
+            return comparisonResult.matches(comparator.compare(value, expressionValue));
+        };
+    }
+
+    private static ValuePredicate compileIn(Object expressionValue) {
+        if (!(expressionValue instanceof Collection<?>)) {
+            return (value, valueExists, context) -> {
+                throw new ClassCastException("$in needs an array: " + expressionValue);
+            };
+        }
+
+        Collection<?> queriedObjects = (Collection<?>) expressionValue;
+        boolean containsNull = false;
+        List<byte[]> byteArrays = new ArrayList<>();
+        List<BsonRegularExpression> patterns = new ArrayList<>();
+        Set<Object> values = new HashSet<>();
+        for (Object queriedObject : queriedObjects) {
+            if (Missing.isNullOrMissing(queriedObject)) {
+                containsNull = true;
+            } else if (queriedObject instanceof byte[]) {
+                byteArrays.add((byte[]) queriedObject);
+            } else if (queriedObject instanceof BsonRegularExpression) {
+                BsonRegularExpression pattern = (BsonRegularExpression) queriedObject;
+                try {
+                    pattern.matcher("");
+                } catch (RuntimeException e) {
+                    // invalid patterns must fail in the same order as in DefaultQueryMatcher
+                    return compileInSequentially(queriedObjects);
+                }
+                patterns.add(pattern);
+                values.add(pattern);
+            } else {
+                values.add(Utils.normalizeValue(queriedObject));
+            }
+        }
+
+        boolean inContainsNull = containsNull;
+        return (value, valueExists, context) -> {
+            if (value instanceof String) {
+                for (BsonRegularExpression pattern : patterns) {
+                    if (pattern.matcher((String) value).find()) {
+                        return true;
+                    }
+                }
+            }
+            if (Missing.isNullOrMissing(value)) {
+                return inContainsNull;
+            }
+            if (value instanceof byte[]) {
+                for (byte[] byteArray : byteArrays) {
+                    if (Arrays.equals(byteArray, (byte[]) value)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return values.contains(Utils.normalizeValue(value));
+        };
+    }
+
+    private static ValuePredicate compileInSequentially(Collection<?> queriedObjects) {
+        List<ValuePredicate> predicates = new ArrayList<>();
+        for (Object queriedObject : queriedObjects) {
+            if (queriedObject instanceof BsonRegularExpression) {
+                BsonRegularExpression pattern = (BsonRegularExpression) queriedObject;
+                ValuePredicate equals = compileEquals(queriedObject);
+                predicates.add((value, valueExists, context) -> {
+                    if (value instanceof String) {
+                        return pattern.matcher((String) value).find();
+                    }
+                    return equals.matches(value, valueExists, context);
+                });
+            } else {
+                predicates.add(compileEquals(queriedObject));
+            }
+        }
+        return (value, valueExists, context) -> {
+            for (ValuePredicate predicate : predicates) {
+                if (predicate.matches(value, valueExists, context)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+}
@@ -0,0 +1,135 @@
+package de.bwaldvogel.mongo.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.bwaldvogel.mongo.bson.Document;
+
+/**
+ * A dotted field path such as 'a.b.0.c' that was split into its segments once.
+ *
+ * The path is split the same way as the recursive, substring based lookup in
+ * {@link Utils#getSubdocumentValue(Document, String)}: a dot at the start of the
+ * remaining path does not separate segments, so the last segment may contain dots
+ * and is rejected by {@link Utils#getFieldValueListSafe(Object, String)} when it is
+ * resolved.
+ */
+public final class FieldPath {
+
+    private static final int MAX_CACHED_PATHS = 10_000;
+
+    private static final Map<String, FieldPath> cache = new ConcurrentHashMap<>();
+
+    private final String path;
+    private final String[] segments;
+    private final boolean[] arrayPositions;
+
+    private FieldPath(String path) {
+        this.path = path;
+        List<String> segments = new ArrayList<>();
+        int from = 0;
+        while (true) {
+            int dotPos = path.indexOf('.', from);
+            if (dotPos > from) {
+                segments.add(path.substring(from, dotPos));
+                from = dotPos + 1;
+            } else {
+                segments.add(path.substring(from));
+                break;
+            }
+        }
+        this.segments = segments.toArray(new String[0]);
+        this.arrayPositions = new boolean[this.segments.length];
+        for (int i = 0; i < this.segments.length; i++) {
+            arrayPositions[i] = this.segments[i].matches("\\d+");
+        }
+    }
+
+    public static FieldPath of(String path) {
+        FieldPath fieldPath = cache.get(path);
+        if (fieldPath == null) {
+            fieldPath = new FieldPath(path);
+            if (cache.size() >= MAX_CACHED_PATHS) {
+                cache.clear();
+            }
+            cache.put(path, fieldPath);
+        }
+        return fieldPath;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int size() {
+        return segments.length;
+    }
+
+    public String getSegment(int index) {
+        return segments[index];
+    }
+
+    boolean isArrayPosition(int index) {
+        return arrayPositions[index];
+    }
+
+    boolean isLastSegment(int index) {
+        return index == segments.length - 1;
+    }
+
+    /**
+     * Returns true if the remainder of the path that starts at the given segment is
+     * a positional operator, i.e. '$' or '$.rest'.
+     */
+    boolean isPositional(int index) {
+        if (index == 0 || !segments[index].equals("$")) {
+            return false;
+        }
+        boolean endsWithSingleDot = index == segments.length - 2 && segments[index + 1].isEmpty();
+        return !endsWithSingleDot;
+    }
+
+    /**
+     * Resolves the path in the given document without descending into arrays.
+     *
+     * @see Utils#getSubdocumentValue(Document, String)
+     */
+    public Object getValue(Document document) {
+        Object value = document;
+        int lastIndex = segments.length - 1;
+        for (int i = 0; i < lastIndex; i++) {
+            if (segments[i + 1].equals("$") && i + 1 < lastIndex) {
+                throw new IllegalArgumentException();
+            }
+            value = Utils.getFieldValueListSafe(value, segments[i]);
+            if (!(value instanceof Document)) {
+                return Missing.getInstance();
+            }
+        }
+        return Utils.getFieldValueListSafe(value, segments[lastIndex]);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return path.equals(((FieldPath) o).path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+}
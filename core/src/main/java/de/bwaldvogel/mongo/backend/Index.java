@@ -1,19 +1,34 @@
 package de.bwaldvogel.mongo.backend;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.exception.CannotIndexParallelArraysError;
 import de.bwaldvogel.mongo.exception.KeyConstraintError;
 
 public abstract class Index<P> {
 
     private final List<IndexKey> keys;
+    private final List<String> keyNames;
+    private final Set<String> keyNameSet;
+    private final List<FieldPath> fieldPaths;
+    private volatile boolean multikey;
 
     protected Index(List<IndexKey> keys) {
         this.keys = keys;
+        this.keyNames = Collections.unmodifiableList(keys.stream()
+            .map(IndexKey::getKey)
+            .collect(Collectors.toList()));
+        this.keyNameSet = Collections.unmodifiableSet(new LinkedHashSet<>(keyNames));
+        this.fieldPaths = keys.stream()
+            .map(indexKey -> FieldPath.of(indexKey.getKey()))
+            .collect(Collectors.toList());
     }
 
     public String getName() {
@@ -25,44 +40,196 @@ public abstract class Index<P> {
             .collect(Collectors.joining("_"));
     }
 
+    public Document getKeyPattern() {
+        Document keyPattern = new Document();
+        for (IndexKey indexKey : keys) {
+            keyPattern.put(indexKey.getKey(), Integer.valueOf(indexKey.isAscending() ? 1 : -1));
+        }
+        return keyPattern;
+    }
+
     protected List<String> keys() {
-        return keys.stream()
-            .map(IndexKey::getKey)
-            .collect(Collectors.toList());
+        return keyNames;
     }
 
     protected Set<String> keySet() {
-        return keys.stream()
-            .map(IndexKey::getKey)
-            .collect(Collectors.toCollection(LinkedHashSet::new));
+        return keyNameSet;
+    }
+
+    /**
+     * Returns the index keys of the given document. A document yields one key
+     * per element if one of the indexed fields holds an array (multikey index).
+     * The _id index is never a multikey index.
+     */
+    Set<List<Object>> getKeyValues(Document document) {
+        List<Object> values = new ArrayList<>(fieldPaths.size());
+        int arrayPosition = -1;
+        for (FieldPath fieldPath : fieldPaths) {
+            Object value = getIndexedValue(document, fieldPath, 0);
+            if (value instanceof Collection<?>) {
+                multikey = true;
+            }
+            if (value instanceof Collection<?> && !((Collection<?>) value).isEmpty()) {
+                if (arrayPosition >= 0) {
+                    throw new CannotIndexParallelArraysError(fieldPaths.get(arrayPosition).getPath(), fieldPath.getPath());
+                }
+                arrayPosition = values.size();
+            }
+            values.add(value);
+        }
+
+        if (arrayPosition < 0 || getName().equals(Constants.ID_INDEX_NAME)) {
+            return Collections.singleton(normalizeKeyValue(values));
+        }
+
+        Set<List<Object>> keyValues = new LinkedHashSet<>();
+        for (Object element : (Collection<?>) values.get(arrayPosition)) {
+            List<Object> keyValue = new ArrayList<>(values);
+            keyValue.set(arrayPosition, element);
+            keyValues.add(normalizeKeyValue(keyValue));
+        }
+        return keyValues;
+    }
+
+    Set<List<Object>> getKeyValuesOrEmpty(Document document) {
+        if (hasNoValueForKeys(document)) {
+            return Collections.emptySet();
+        }
+        return getKeyValues(document);
+    }
+
+    /**
+     * Returns the value of the first indexed field of the given document as it is
+     * stored in the document, i.e. neither normalized nor split into multiple keys.
+     */
+    Object getFirstKeyValue(Document document) {
+        return getIndexedValue(document, fieldPaths.get(0), 0);
     }
 
-    List<Object> getKeyValue(Document document) {
-        return keys().stream()
-            .map(key -> Utils.getSubdocumentValue(document, key))
+    /**
+     * Returns true if an array value was ever seen for one of the indexed fields.
+     * The flag is never reset, so it may be set although no document holds an
+     * array value anymore.
+     */
+    public boolean isMultikey() {
+        return multikey;
+    }
+
+    protected void markMultikey() {
+        multikey = true;
+    }
+
+    boolean hasNoValueForKeys(Document document) {
+        for (FieldPath fieldPath : fieldPaths) {
+            if (!(getIndexedValue(document, fieldPath, 0) instanceof Missing)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<Object> normalizeKeyValue(List<Object> values) {
+        return values.stream()
             .map(Utils::normalizeValue)
             .collect(Collectors.toList());
     }
 
+    /**
+     * Similar to {@link FieldPath#getValue(Document)} but also descends into
+     * arrays of subdocuments, e.g. 'items.sku' yields the list of all 'sku'
+     * values of the documents in 'items'.
+     */
+    private static Object getIndexedValue(Object document, FieldPath fieldPath, int index) {
+        String segment = fieldPath.getSegment(index);
+        if (fieldPath.isLastSegment(index)) {
+            return Utils.getFieldValueListSafe(document, segment);
+        }
+
+        Object subObject = Utils.getFieldValueListSafe(document, segment);
+        if (subObject instanceof Document) {
+            return getIndexedValue(subObject, fieldPath, index + 1);
+        } else if (subObject instanceof Collection<?> && !fieldPath.isArrayPosition(index + 1)) {
+            List<Object> values = new ArrayList<>();
+            for (Object element : (Collection<?>) subObject) {
+                if (!(element instanceof Document)) {
+                    continue;
+                }
+                Object value = getIndexedValue(element, fieldPath, index + 1);
+                if (value instanceof Collection<?>) {
+                    values.addAll((Collection<?>) value);
+                } else if (!(value instanceof Missing)) {
+                    values.add(value);
+                }
+            }
+            if (values.isEmpty()) {
+                return Missing.getInstance();
+            }
+            return values;
+        } else if (subObject instanceof List<?>) {
+            return getIndexedValue(subObject, fieldPath, index + 1);
+        } else {
+            return Missing.getInstance();
+        }
+    }
+
     public abstract void checkAdd(Document document);
 
     public abstract void add(Document document, P position);
 
     public abstract P remove(Document document);
 
+    /**
+     * Removes the entries of the given document, which is stored at the given
+     * position. Unique indexes find the entries by the keys of the document alone,
+     * while other indexes need the position to tell apart documents with equal keys.
+     *
+     * @return the position of the removed entries or null if the document was not indexed
+     */
+    public P remove(Document document, P position) {
+        return remove(document);
+    }
+
+    public abstract P getPosition(Document document);
+
     public abstract boolean canHandle(Document query);
 
     public abstract Iterable<P> getPositions(Document query);
 
+    /**
+     * Estimates the number of index entries that {@link #getPositions(Document)}
+     * has to examine for the given query. Used by the query planner to compare
+     * candidate indexes with each other and with a collection scan.
+     */
+    public long estimateCount(Document query) {
+        return getCount();
+    }
+
+    /**
+     * Returns true if {@link #getPositions(Document)} yields exactly the positions
+     * of the documents that match the given query. Such queries can be counted
+     * without fetching the documents.
+     */
+    public boolean coversQuery(Document query) {
+        return false;
+    }
+
+    /**
+     * Returns the values of all entries of a single-field index without fetching
+     * any document, or null if the index cannot provide the original values.
+     */
+    public List<Object> getDistinctValues() {
+        return null;
+    }
+
     public abstract long getCount();
 
     public abstract long getDataSize();
 
     public abstract void checkUpdate(Document oldDocument, Document newDocument);
 
-    public abstract void updateInPlace(Document oldDocument, Document newDocument) throws KeyConstraintError;
+    public abstract void updateInPlace(Document oldDocument, Document newDocument, P position) throws KeyConstraintError;
 
     protected boolean isCompoundIndex() {
-        return keys().size() > 1;
+        return keys.size() > 1;
     }
 }
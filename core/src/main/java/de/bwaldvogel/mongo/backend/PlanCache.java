@@ -0,0 +1,103 @@
+package de.bwaldvogel.mongo.backend;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import de.bwaldvogel.mongo.bson.BsonRegularExpression;
+import de.bwaldvogel.mongo.bson.Document;
+
+/**
+ * Caches the winning {@link QueryPlan} per query shape. A query shape consists of the
+ * fields and operators of the query, the sort and the projection but ignores the
+ * literal values, so all queries of the same shape share one entry.
+ */
+class PlanCache<P> {
+
+    static final int DEFAULT_WRITE_OPS_BETWEEN_FLUSH = 1000;
+
+    private static final int MAX_ENTRIES = 5000;
+
+    private final Map<Document, QueryPlan<P>> plans = new LinkedHashMap<Document, QueryPlan<P>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Entry<Document, QueryPlan<P>> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private int writeOpsBetweenFlush = DEFAULT_WRITE_OPS_BETWEEN_FLUSH;
+    private int writeOpsSinceFlush;
+
+    synchronized QueryPlan<P> get(Document queryShape) {
+        return plans.get(queryShape);
+    }
+
+    synchronized void put(Document queryShape, QueryPlan<P> plan) {
+        plans.put(queryShape, plan);
+    }
+
+    synchronized boolean remove(Document queryShape) {
+        return plans.remove(queryShape) != null;
+    }
+
+    synchronized void clear() {
+        plans.clear();
+        writeOpsSinceFlush = 0;
+    }
+
+    synchronized void registerWriteOperation() {
+        writeOpsSinceFlush++;
+        if (writeOpsSinceFlush >= writeOpsBetweenFlush) {
+            clear();
+        }
+    }
+
+    synchronized void setWriteOpsBetweenFlush(int writeOpsBetweenFlush) {
+        if (writeOpsBetweenFlush <= 0) {
+            throw new IllegalArgumentException("Illegal number of write operations: " + writeOpsBetweenFlush);
+        }
+        this.writeOpsBetweenFlush = writeOpsBetweenFlush;
+    }
+
+    synchronized List<Document> getQueryShapes() {
+        return new ArrayList<>(plans.keySet());
+    }
+
+    static Document getQueryShape(Document query, Document orderBy, Document projection) {
+        Document queryShape = new Document();
+        queryShape.put("query", getValueShape(query != null ? query : new Document()));
+        queryShape.put("sort", orderBy != null ? orderBy : new Document());
+        queryShape.put("projection", projection != null ? projection : new Document());
+        return queryShape;
+    }
+
+    private static Object getValueShape(Object value) {
+        if (value instanceof Document) {
+            Document shape = new Document();
+            for (Entry<String, Object> entry : ((Document) value).entrySet()) {
+                shape.put(entry.getKey(), getValueShape(entry.getValue()));
+            }
+            return shape;
+        } else if (value instanceof Collection<?>) {
+            Set<Object> elementShapes = new LinkedHashSet<>();
+            for (Object element : (Collection<?>) value) {
+                elementShapes.add(getValueShape(element));
+            }
+            return new ArrayList<>(elementShapes);
+        } else if (Missing.isNullOrMissing(value)) {
+            return "null";
+        } else if (value instanceof BsonRegularExpression) {
+            return "regex";
+        } else {
+            return "value";
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+package de.bwaldvogel.mongo.backend;
+
+import de.bwaldvogel.mongo.bson.Document;
+
+class QueryPlan<P> {
+
+    private final Index<P> index;
+    private final long estimatedCost;
+
+    private QueryPlan(Index<P> index, long estimatedCost) {
+        this.index = index;
+        this.estimatedCost = estimatedCost;
+    }
+
+    static <P> QueryPlan<P> collectionScan(long estimatedCost) {
+        return new QueryPlan<>(null, estimatedCost);
+    }
+
+    static <P> QueryPlan<P> indexScan(Index<P> index, long estimatedCost) {
+        return new QueryPlan<>(index, estimatedCost);
+    }
+
+    boolean isCollectionScan() {
+        return index == null;
+    }
+
+    Index<P> getIndex() {
+        return index;
+    }
+
+    long getEstimatedCost() {
+        return estimatedCost;
+    }
+
+    Document toDocument() {
+        if (isCollectionScan()) {
+            return new Document("stage", "COLLSCAN").append("direction", "forward");
+        }
+        return new Document("stage", "FETCH").append("inputStage", toIndexOnlyDocument("IXSCAN"));
+    }
+
+    /**
+     * Describes an index plan that does not need to fetch any document.
+     */
+    Document toIndexOnlyDocument(String stage) {
+        return new Document("stage", stage)
+            .append("keyPattern", index.getKeyPattern())
+            .append("indexName", index.getName());
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + (isCollectionScan() ? "COLLSCAN" : index.getName()) + ", estimatedCost=" + estimatedCost + "]";
+    }
+}
@@ -65,22 +65,7 @@ public class Utils {
     }
 
     public static Object getSubdocumentValue(Document document, String key) {
-        int dotPos = key.indexOf('.');
-        if (dotPos > 0) {
-            String mainKey = key.substring(0, dotPos);
-            String subKey = key.substring(dotPos + 1);
-            if (subKey.startsWith("$.")) {
-                throw new IllegalArgumentException();
-            }
-            Object subObject = Utils.getFieldValueListSafe(document, mainKey);
-            if (subObject instanceof Document) {
-                return getSubdocumentValue((Document) subObject, subKey);
-            } else {
-                return Missing.getInstance();
-            }
-        } else {
-            return Utils.getFieldValueListSafe(document, key);
-        }
+        return FieldPath.of(key).getValue(document);
     }
 
     public static String getDatabaseNameFromFullName(String fullName) {
@@ -138,7 +123,7 @@ public class Utils {
         }
     }
 
-    static long calculateSize(Document document) {
+    public static long calculateSize(Document document) {
         ByteBuf buffer = Unpooled.buffer();
         try {
             new BsonEncoder().encodeDocument(document, buffer);
@@ -317,21 +302,33 @@ public class Utils {
     }
 
     static void changeSubdocumentValue(Object document, String key, Object newValue, AtomicReference<Integer> matchPos) {
-        int dotPos = key.indexOf('.');
-        if (dotPos > 0) {
-            String mainKey = key.substring(0, dotPos);
-            String subKey = getSubkey(key, dotPos, matchPos);
-
-            Object subObject = getFieldValueListSafe(document, mainKey);
-            if (subObject instanceof Document || subObject instanceof List<?>) {
-                changeSubdocumentValue(subObject, subKey, newValue, matchPos);
-            } else {
+        FieldPath fieldPath = FieldPath.of(key);
+        Object value = document;
+        String segment = fieldPath.getSegment(0);
+        // a missing subdocument is attached only after the new value was set
+        Object detachedParent = null;
+        String detachedKey = null;
+        Document detachedDocument = null;
+        for (int i = 1; i < fieldPath.size(); i++) {
+            String nextSegment = getNextSegment(fieldPath, i, matchPos);
+            Object subObject = getFieldValueListSafe(value, segment);
+            if (!(subObject instanceof Document || subObject instanceof List<?>)) {
                 Document obj = new Document();
-                changeSubdocumentValue(obj, subKey, newValue, matchPos);
-                setListSafe(document, mainKey, obj);
+                if (detachedDocument == null) {
+                    detachedParent = value;
+                    detachedKey = segment;
+                    detachedDocument = obj;
+                } else {
+                    setListSafe(value, segment, obj);
+                }
+                subObject = obj;
             }
-        } else {
-            setListSafe(document, key, newValue);
+            value = subObject;
+            segment = nextSegment;
+        }
+        setListSafe(value, segment, newValue);
+        if (detachedDocument != null) {
+            setListSafe(detachedParent, detachedKey, detachedDocument);
         }
     }
 
@@ -340,19 +337,36 @@ public class Utils {
     }
 
     private static Object removeSubdocumentValue(Object document, String key, AtomicReference<Integer> matchPos) {
-        int dotPos = key.indexOf('.');
-        if (dotPos > 0) {
-            String mainKey = key.substring(0, dotPos);
-            String subKey = getSubkey(key, dotPos, matchPos);
-            Object subObject = getFieldValueListSafe(document, mainKey);
-            if (subObject instanceof Document || subObject instanceof List<?>) {
-                return removeSubdocumentValue(subObject, subKey, matchPos);
-            } else {
+        FieldPath fieldPath = FieldPath.of(key);
+        Object value = document;
+        String segment = fieldPath.getSegment(0);
+        for (int i = 1; i < fieldPath.size(); i++) {
+            String nextSegment = getNextSegment(fieldPath, i, matchPos);
+            value = getFieldValueListSafe(value, segment);
+            if (!(value instanceof Document || value instanceof List<?>)) {
                 throw new MongoServerException("failed to remove subdocument");
             }
-        } else {
-            return removeListSafe(document, key);
+            segment = nextSegment;
+        }
+        return removeListSafe(value, segment);
+    }
+
+    /**
+     * Returns the segment of the path at the given index and replaces a positional
+     * operator by the matched array position.
+     *
+     * @see #getSubkey(String, int, AtomicReference)
+     */
+    private static String getNextSegment(FieldPath fieldPath, int index, AtomicReference<Integer> matchPos) {
+        if (!fieldPath.isPositional(index)) {
+            return fieldPath.getSegment(index);
+        }
+        if (matchPos == null || matchPos.get() == null) {
+            throw new MongoServerError(16650, //
+                    "Cannot apply the positional operator without a corresponding query " //
+                            + "field containing an array.");
         }
+        return String.valueOf(matchPos.getAndSet(null));
     }
 
     public static String describeType(Object value) {
@@ -2,21 +2,19 @@ package de.bwaldvogel.mongo.backend.aggregation.stage;
 
 import java.util.stream.Stream;
 
-import de.bwaldvogel.mongo.backend.DefaultQueryMatcher;
-import de.bwaldvogel.mongo.backend.QueryMatcher;
+import de.bwaldvogel.mongo.backend.CompiledQuery;
 import de.bwaldvogel.mongo.bson.Document;
 
 public class MatchStage implements AggregationStage {
 
-    private final QueryMatcher queryMatcher = new DefaultQueryMatcher();
-    private final Document query;
+    private final CompiledQuery query;
 
     public MatchStage(Document query) {
-        this.query = query;
+        this.query = CompiledQuery.compile(query);
     }
 
     @Override
     public Stream<Document> apply(Stream<Document> stream) {
-        return stream.filter(document -> queryMatcher.matches(document, query));
+        return stream.filter(document -> query.matches(document));
     }
 }
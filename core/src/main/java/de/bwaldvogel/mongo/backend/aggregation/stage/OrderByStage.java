@@ -15,6 +15,6 @@ public class OrderByStage implements AggregationStage {
 
     @Override
     public Stream<Document> apply(Stream<Document> stream) {
-        return stream.sorted(documentComparator);
+        return documentComparator.sort(stream);
     }
 }
@@ -1,5 +1,9 @@
 package de.bwaldvogel.mongo.bson;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -12,11 +16,21 @@ public final class Document implements Map<String, Object>, Bson {
 
     private static final long serialVersionUID = 1L;
 
-    private final LinkedHashMap<String, Object> documentAsMap = new LinkedHashMap<>();
+    // documents used to be serialized with a LinkedHashMap, keep that format for existing data
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("documentAsMap", LinkedHashMap.class)
+    };
+
+    // not final to be restored by readObject
+    private DocumentMap documentAsMap = new DocumentMap();
 
     public Document() {
     }
 
+    private Document(DocumentMap documentAsMap) {
+        this.documentAsMap = documentAsMap;
+    }
+
     public Document(String key, Object value) {
         this();
         append(key, value);
@@ -59,6 +73,31 @@ public final class Document implements Map<String, Object>, Bson {
         }
     }
 
+    /**
+     * Lets this document and all embedded documents share their field names with
+     * documents of the same shape in the given dictionary.
+     */
+    public void shareKeys(DocumentShapes shapes) {
+        documentAsMap.shareKeys(shapes);
+        for (Object value : documentAsMap.values()) {
+            shareKeys(value, shapes);
+        }
+    }
+
+    private static void shareKeys(Object value, DocumentShapes shapes) {
+        if (value instanceof Document) {
+            ((Document) value).shareKeys(shapes);
+        } else if (value instanceof Collection) {
+            for (Object element : (Collection<?>) value) {
+                shareKeys(element, shapes);
+            }
+        }
+    }
+
+    boolean hasSharedKeys() {
+        return documentAsMap.hasSharedKeys();
+    }
+
     public Document append(String key, Object value) {
         put(key, value);
         return this;
@@ -121,9 +160,8 @@ public final class Document implements Map<String, Object>, Bson {
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public Document clone() {
-        return new Document((Map<String, Object>) documentAsMap.clone());
+        return new Document(new DocumentMap(documentAsMap));
     }
 
     @Override
@@ -160,6 +198,22 @@ public final class Document implements Map<String, Object>, Bson {
         return documentAsMap.hashCode();
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("documentAsMap", new LinkedHashMap<>(documentAsMap));
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> map = (Map<String, Object>) fields.get("documentAsMap", null);
+        documentAsMap = new DocumentMap();
+        if (map != null) {
+            documentAsMap.putAll(map);
+        }
+    }
+
     @Override
     public String toString() {
         return documentAsMap.entrySet().stream()
@@ -0,0 +1,466 @@
+package de.bwaldvogel.mongo.bson;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The insertion ordered map behind a {@link Document}. Small maps keep their keys
+ * and values in two arrays and look up keys linearly. Once a map grows beyond
+ * {@link #MAX_ARRAY_SIZE} entries it switches to a {@link LinkedHashMap}.
+ * <p>
+ * A map can also share its key array with other maps of the same
+ * {@link DocumentShape}. Only the values are copied then, and the keys are copied
+ * on the first change of the key set.
+ */
+final class DocumentMap implements Map<String, Object> {
+
+    static final int MAX_ARRAY_SIZE = 8;
+
+    private static final int INITIAL_ARRAY_SIZE = 4;
+
+    private String[] keys;
+    private Object[] values;
+    private int size;
+    private DocumentShape shape;
+
+    private LinkedHashMap<String, Object> map;
+
+    DocumentMap() {
+    }
+
+    DocumentMap(DocumentMap other) {
+        if (other.map != null) {
+            map = new LinkedHashMap<>(other.map);
+        } else if (other.shape != null) {
+            shape = other.shape;
+            keys = other.keys;
+            values = Arrays.copyOf(other.values, other.size);
+            size = other.size;
+        } else if (other.size > 0) {
+            keys = Arrays.copyOf(other.keys, other.size);
+            values = Arrays.copyOf(other.values, other.size);
+            size = other.size;
+        }
+    }
+
+    private int indexOf(Object key) {
+        if (shape != null) {
+            int index = shape.indexOf(key);
+            if (index != -2) {
+                return index;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (Objects.equals(keys[i], key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        if (map != null) {
+            return map.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        if (map != null) {
+            return map.containsValue(value);
+        }
+        for (int i = 0; i < size; i++) {
+            if (Objects.equals(values[i], value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (map != null) {
+            return map.containsKey(key);
+        }
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (map != null) {
+            return map.get(key);
+        }
+        int index = indexOf(key);
+        return index >= 0 ? values[index] : null;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        if (map != null) {
+            return map.put(key, value);
+        }
+        int index = indexOf(key);
+        if (index >= 0) {
+            Object oldValue = values[index];
+            values[index] = value;
+            return oldValue;
+        }
+        unshare();
+        if (size >= MAX_ARRAY_SIZE) {
+            switchToMap();
+            return map.put(key, value);
+        }
+        if (keys == null) {
+            keys = new String[INITIAL_ARRAY_SIZE];
+            values = new Object[INITIAL_ARRAY_SIZE];
+        } else if (size == keys.length) {
+            keys = Arrays.copyOf(keys, Math.min(Math.max(size * 2, INITIAL_ARRAY_SIZE), MAX_ARRAY_SIZE));
+            values = Arrays.copyOf(values, keys.length);
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+        return null;
+    }
+
+    private void switchToMap() {
+        map = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(keys[i], values[i]);
+        }
+        shape = null;
+        keys = null;
+        values = null;
+        size = 0;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        if (map != null) {
+            return map.remove(key);
+        }
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        Object oldValue = values[index];
+        removeAt(index);
+        return oldValue;
+    }
+
+    private void removeAt(int index) {
+        unshare();
+        int numMoved = size - index - 1;
+        if (numMoved > 0) {
+            System.arraycopy(keys, index + 1, keys, index, numMoved);
+            System.arraycopy(values, index + 1, values, index, numMoved);
+        }
+        size--;
+        keys[size] = null;
+        values[size] = null;
+    }
+
+    /**
+     * Gives this map its own copy of the shared keys before the key set changes.
+     * Maps with a wide shape stay in array mode until the next key is added.
+     */
+    private void unshare() {
+        if (shape != null) {
+            keys = Arrays.copyOf(keys, size);
+            shape = null;
+        }
+    }
+
+    /**
+     * Replaces the keys of this map by the shared keys of its shape.
+     */
+    void shareKeys(DocumentShapes shapes) {
+        if (shape != null) {
+            return;
+        }
+        if (map != null) {
+            if (map.isEmpty() || map.size() > DocumentShapes.MAX_SHAPE_SIZE) {
+                return;
+            }
+            DocumentShape newShape = shapes.getShape(map.keySet().toArray(new String[0]), map.size());
+            if (newShape != null) {
+                values = map.values().toArray();
+                size = values.length;
+                keys = newShape.getKeys();
+                shape = newShape;
+                map = null;
+            }
+        } else if (size > 0) {
+            DocumentShape newShape = shapes.getShape(keys, size);
+            if (newShape != null) {
+                values = Arrays.copyOf(values, size);
+                keys = newShape.getKeys();
+                shape = newShape;
+            }
+        }
+    }
+
+    boolean hasSharedKeys() {
+        return shape != null;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ?> m) {
+        for (Entry<? extends String, ?> entry : m.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void clear() {
+        map = null;
+        shape = null;
+        keys = null;
+        values = null;
+        size = 0;
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return new KeySet();
+    }
+
+    @Override
+    public Collection<Object> values() {
+        return new Values();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new EntrySet();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof Map)) {
+            return false;
+        }
+        Map<?, ?> other = (Map<?, ?>) o;
+        if (other.size() != size()) {
+            return false;
+        }
+        for (Entry<String, Object> entry : entrySet()) {
+            Object value = entry.getValue();
+            if (value == null) {
+                if (other.get(entry.getKey()) != null || !other.containsKey(entry.getKey())) {
+                    return false;
+                }
+            } else if (!value.equals(other.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = 0;
+        for (Entry<String, Object> entry : entrySet()) {
+            hashCode += entry.hashCode();
+        }
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return entrySet().toString();
+    }
+
+    private abstract class ArrayIterator<T> implements Iterator<T> {
+
+        private int next;
+        private int last = -1;
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return get(last);
+        }
+
+        abstract T get(int index);
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+        }
+
+    }
+
+    private final class ArrayEntry implements Entry<String, Object> {
+
+        private final int index;
+
+        private ArrayEntry(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String getKey() {
+            return keys[index];
+        }
+
+        @Override
+        public Object getValue() {
+            return values[index];
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Object oldValue = values[index];
+            values[index] = value;
+            return oldValue;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Entry<?, ?> other = (Entry<?, ?>) o;
+            return Objects.equals(getKey(), other.getKey()) && Objects.equals(getValue(), other.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+
+    }
+
+    private final class KeySet extends AbstractSet<String> {
+
+        @Override
+        public Iterator<String> iterator() {
+            if (map != null) {
+                return map.keySet().iterator();
+            }
+            return new ArrayIterator<String>() {
+                @Override
+                String get(int index) {
+                    return keys[index];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return DocumentMap.this.size();
+        }
+
+        @Override
+        public boolean contains(Object key) {
+            return containsKey(key);
+        }
+
+        @Override
+        public boolean remove(Object key) {
+            if (!containsKey(key)) {
+                return false;
+            }
+            DocumentMap.this.remove(key);
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            DocumentMap.this.clear();
+        }
+
+    }
+
+    private final class Values extends AbstractCollection<Object> {
+
+        @Override
+        public Iterator<Object> iterator() {
+            if (map != null) {
+                return map.values().iterator();
+            }
+            return new ArrayIterator<Object>() {
+                @Override
+                Object get(int index) {
+                    return values[index];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return DocumentMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+            DocumentMap.this.clear();
+        }
+
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<String, Object>> {
+
+        @Override
+        public Iterator<Entry<String, Object>> iterator() {
+            if (map != null) {
+                return map.entrySet().iterator();
+            }
+            return new ArrayIterator<Entry<String, Object>>() {
+                @Override
+                Entry<String, Object> get(int index) {
+                    return new ArrayEntry(index);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return DocumentMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+            DocumentMap.this.clear();
+        }
+
+    }
+
+}
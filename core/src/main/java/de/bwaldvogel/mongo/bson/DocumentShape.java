@@ -0,0 +1,44 @@
+package de.bwaldvogel.mongo.bson;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable, ordered sequence of field names that is shared by all documents
+ * with exactly these fields. Wide shapes additionally map every field name to its
+ * index, so lookups do not need to compare all names.
+ */
+final class DocumentShape {
+
+    private final String[] keys;
+    private final Map<String, Integer> indexes;
+
+    DocumentShape(String[] keys) {
+        this.keys = keys;
+        if (keys.length > DocumentMap.MAX_ARRAY_SIZE) {
+            indexes = new HashMap<>();
+            for (int i = 0; i < keys.length; i++) {
+                indexes.put(keys[i], Integer.valueOf(i));
+            }
+        } else {
+            indexes = null;
+        }
+    }
+
+    String[] getKeys() {
+        return keys;
+    }
+
+    /**
+     * @return the index of the given key or -1, or -2 if the index has to be
+     * found by comparing the keys
+     */
+    int indexOf(Object key) {
+        if (indexes == null) {
+            return -2;
+        }
+        Integer index = indexes.get(key);
+        return index != null ? index.intValue() : -1;
+    }
+
+}
@@ -0,0 +1,40 @@
+package de.bwaldvogel.mongo.bson;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A dictionary of the field name sequences of the documents in one collection.
+ * Documents that are registered with {@link Document#shareKeys(DocumentShapes)}
+ * share one key array per distinct sequence and only keep their own values.
+ */
+public final class DocumentShapes {
+
+    static final int MAX_SHAPE_SIZE = 64;
+
+    private static final int MAX_SHAPES = 10_000;
+
+    private final Map<List<String>, DocumentShape> shapes = new ConcurrentHashMap<>();
+
+    /**
+     * @return the shape of the given keys or null if the dictionary is full
+     */
+    DocumentShape getShape(String[] keys, int size) {
+        List<String> sequence = Arrays.asList(Arrays.copyOf(keys, size));
+        DocumentShape shape = shapes.get(sequence);
+        if (shape == null) {
+            if (shapes.size() >= MAX_SHAPES) {
+                return null;
+            }
+            shape = shapes.computeIfAbsent(sequence, key -> new DocumentShape(key.toArray(new String[0])));
+        }
+        return shape;
+    }
+
+    public int size() {
+        return shapes.size();
+    }
+
+}
@@ -0,0 +1,11 @@
+package de.bwaldvogel.mongo.exception;
+
+public class CannotIndexParallelArraysError extends KeyConstraintError {
+
+    private static final long serialVersionUID = 1L;
+
+    public CannotIndexParallelArraysError(String key1, String key2) {
+        super(171, "CannotIndexParallelArrays", "cannot index parallel arrays [" + key1 + "] [" + key2 + "]");
+    }
+
+}
@@ -7,4 +7,8 @@ public class KeyConstraintError extends MongoServerError {
     KeyConstraintError(int errorCode, String message) {
         super(errorCode, message);
     }
+
+    KeyConstraintError(int errorCode, String codeName, String message) {
+        super(errorCode, codeName, message);
+    }
 }
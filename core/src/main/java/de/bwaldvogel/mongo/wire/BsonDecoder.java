@@ -15,9 +15,9 @@ import de.bwaldvogel.mongo.bson.MinKey;
 import de.bwaldvogel.mongo.bson.ObjectId;
 import io.netty.buffer.ByteBuf;
 
-class BsonDecoder {
+public class BsonDecoder {
 
-    Document decodeBson(ByteBuf buffer) throws IOException {
+    public Document decodeBson(ByteBuf buffer) throws IOException {
         final int totalObjectLength = buffer.readIntLE();
         final int length = totalObjectLength - 4;
         if (buffer.readableBytes() < length) {
@@ -7,6 +7,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import de.bwaldvogel.mongo.bson.BsonRegularExpression;
@@ -23,8 +24,8 @@ public class BsonEncoder {
         int indexBefore = out.writerIndex();
         out.writeIntLE(0); // total number of bytes will be written later
 
-        for (String key : document.keySet()) {
-            encodeValue(key, document.get(key), out);
+        for (Map.Entry<String, Object> entry : document.entrySet()) {
+            encodeValue(entry.getKey(), entry.getValue(), out);
         }
 
         out.writeByte(BsonConstants.TERMINATING_BYTE);
@@ -3,11 +3,20 @@ package de.bwaldvogel.mongo.backend;
 import static de.bwaldvogel.mongo.TestUtils.json;
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
 import org.junit.Before;
 import org.junit.Test;
 
 import de.bwaldvogel.mongo.bson.Document;
 import de.bwaldvogel.mongo.bson.ObjectId;
+import de.bwaldvogel.mongo.exception.MongoServerError;
 
 public class AbstractMongoCollectionTest {
 
@@ -42,6 +51,11 @@ public class AbstractMongoCollectionTest {
             throw new UnsupportedOperationException();
         }
 
+        @Override
+        protected Stream<DocumentWithPosition<Object>> streamAllDocumentsWithPosition() {
+            throw new UnsupportedOperationException();
+        }
+
         @Override
         protected Iterable<Document> matchDocuments(Document query, Iterable<Object> positions, Document orderBy,
                                                     int numberToSkip, int numberToReturn) {
@@ -64,11 +78,41 @@ public class AbstractMongoCollectionTest {
         }
 
         @Override
-        protected void handleUpdate(Document document) {
+        protected void handleUpdate(Object position, Document document) {
             // noop
         }
     }
 
+    private static class BatchTestCollection extends TestCollection {
+
+        private final Map<Integer, Document> documents = new LinkedHashMap<>();
+        private int nextPosition;
+
+        BatchTestCollection() {
+            super("some database", "some collection", "_id");
+        }
+
+        @Override
+        protected boolean canAddDocumentsAtOnce(List<Document> documents) {
+            return true;
+        }
+
+        @Override
+        protected Object addDocumentInternal(Document document) {
+            if (document.containsKey("fail")) {
+                throw new MongoServerError(1, "failed to add " + document);
+            }
+            Integer position = Integer.valueOf(nextPosition++);
+            documents.put(position, document);
+            return position;
+        }
+
+        @Override
+        protected void removeDocument(Object position) {
+            documents.remove(position);
+        }
+    }
+
     private TestCollection collection;
 
     @Before
@@ -94,6 +138,35 @@ public class AbstractMongoCollectionTest {
             .isEqualTo(json("_id: 1, e: {i: {y: {foo: 'bar'}}}"));
     }
 
+    @Test
+    public void testMatchDocumentsStopsScanningAfterLimit() throws Exception {
+        AtomicInteger scannedDocuments = new AtomicInteger();
+        Stream<Document> documents = IntStream.range(0, 1000)
+            .mapToObj(i -> new Document("_id", i).append("even", i % 2 == 0))
+            .peek(document -> scannedDocuments.incrementAndGet());
+
+        List<Document> matchedDocuments = collection.matchDocuments(json("even: true"), documents, null, 2, 3);
+
+        assertThat(matchedDocuments).containsExactly(
+            json("_id: 4, even: true"),
+            json("_id: 6, even: true"),
+            json("_id: 8, even: true"));
+        assertThat(scannedDocuments.get()).isEqualTo(9);
+    }
+
+    @Test
+    public void testMatchDocumentsWithSortScansAllDocuments() throws Exception {
+        AtomicInteger scannedDocuments = new AtomicInteger();
+        Stream<Document> documents = IntStream.range(0, 100)
+            .mapToObj(i -> new Document("_id", i))
+            .peek(document -> scannedDocuments.incrementAndGet());
+
+        List<Document> matchedDocuments = collection.matchDocuments(json(""), documents, json("_id: -1"), 0, 2);
+
+        assertThat(matchedDocuments).containsExactly(json("_id: 99"), json("_id: 98"));
+        assertThat(scannedDocuments.get()).isEqualTo(100);
+    }
+
     @Test
     public void testDeriveDocumentId() throws Exception {
         assertThat(collection.deriveDocumentId(json(""))).isInstanceOf(ObjectId.class);
@@ -102,4 +175,26 @@ public class AbstractMongoCollectionTest {
         assertThat(collection.deriveDocumentId(json("_id: {$in: [1]}"))).isEqualTo(1);
         assertThat(collection.deriveDocumentId(json("_id: {$in: []}"))).isInstanceOf(ObjectId.class);
     }
+
+    @Test
+    public void testInsertDocumentsAddsAllDocumentsAtOnceByDefault() throws Exception {
+        BatchTestCollection batchCollection = new BatchTestCollection();
+
+        Map<Integer, MongoServerError> errors = batchCollection.insertDocuments(Arrays.asList(json("_id: 1"), json("_id: 2")), true);
+
+        assertThat(errors).isEmpty();
+        assertThat(batchCollection.documents.values()).containsExactly(json("_id: 1"), json("_id: 2"));
+    }
+
+    @Test
+    public void testInsertDocumentsRemovesAddedDocumentsIfBatchFails() throws Exception {
+        BatchTestCollection batchCollection = new BatchTestCollection();
+
+        Map<Integer, MongoServerError> errors = batchCollection.insertDocuments(
+            Arrays.asList(json("_id: 1"), json("_id: 2, fail: true"), json("_id: 3")), false);
+
+        assertThat(errors).containsOnlyKeys(1);
+        assertThat(batchCollection.documents).containsOnlyKeys(1, 2);
+        assertThat(batchCollection.documents.values()).containsExactly(json("_id: 1"), json("_id: 3"));
+    }
 }
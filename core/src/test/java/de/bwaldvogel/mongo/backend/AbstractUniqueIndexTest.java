@@ -0,0 +1,47 @@
+package de.bwaldvogel.mongo.backend;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import de.bwaldvogel.mongo.bson.BsonRegularExpression;
+
+public class AbstractUniqueIndexTest {
+
+    @Test
+    public void testGetAnchoredPrefix() throws Exception {
+        assertThat(prefix("^abc")).isEqualTo("abc");
+        assertThat(prefix("^abc.*")).isEqualTo("abc");
+        assertThat(prefix("^abc$")).isEqualTo("abc");
+        assertThat(prefix("^abc+")).isEqualTo("abc");
+        assertThat(prefix("^abc*")).isEqualTo("ab");
+        assertThat(prefix("^abc?d")).isEqualTo("ab");
+        assertThat(prefix("^abc{0,2}")).isEqualTo("ab");
+        assertThat(prefix("^ab[cd]")).isEqualTo("ab");
+        assertThat(prefix("^ab\\.c")).isEqualTo("ab");
+
+        assertThat(prefix("abc")).isNull();
+        assertThat(prefix("^")).isNull();
+        assertThat(prefix("^.*abc")).isNull();
+        assertThat(prefix("^a*")).isNull();
+        assertThat(prefix("^abc|def")).isNull();
+
+        assertThat(AbstractUniqueIndex.getAnchoredPrefix(new BsonRegularExpression("^abc", ""))).isEqualTo("abc");
+        assertThat(AbstractUniqueIndex.getAnchoredPrefix(new BsonRegularExpression("^abc", "s"))).isEqualTo("abc");
+        assertThat(AbstractUniqueIndex.getAnchoredPrefix(new BsonRegularExpression("^abc", "i"))).isNull();
+        assertThat(AbstractUniqueIndex.getAnchoredPrefix(new BsonRegularExpression("^abc", "m"))).isNull();
+        assertThat(AbstractUniqueIndex.getAnchoredPrefix(new BsonRegularExpression("^abc", "x"))).isNull();
+    }
+
+    @Test
+    public void testGetUpperBound() throws Exception {
+        assertThat(AbstractUniqueIndex.getUpperBound("abc")).isEqualTo("abd");
+        assertThat(AbstractUniqueIndex.getUpperBound("ab" + Character.MAX_VALUE)).isEqualTo("ac");
+        assertThat(AbstractUniqueIndex.getUpperBound(String.valueOf(Character.MAX_VALUE))).isNull();
+    }
+
+    private static String prefix(String pattern) {
+        return AbstractUniqueIndex.getAnchoredPrefix(new BsonRegularExpression(pattern));
+    }
+
+}
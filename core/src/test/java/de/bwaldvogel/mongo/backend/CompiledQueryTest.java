@@ -0,0 +1,65 @@
+package de.bwaldvogel.mongo.backend;
+
+import static de.bwaldvogel.mongo.TestUtils.json;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import org.junit.Test;
+
+import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.exception.BadValueException;
+
+/**
+ * Runs all {@link DefaultQueryMatcherTest} cases against {@link CompiledQuery}.
+ */
+public class CompiledQueryTest extends DefaultQueryMatcherTest {
+
+    @Override
+    protected QueryMatcher createMatcher() {
+        return new QueryMatcher() {
+            @Override
+            public boolean matches(Document document, Document query) {
+                return CompiledQuery.compile(query).matches(document);
+            }
+
+            @Override
+            public Integer matchPosition(Document document, Document query) {
+                return CompiledQuery.compile(query).matchPosition(document);
+            }
+
+            @Override
+            public boolean matchesValue(Object queryValue, Object value) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Test
+    public void testCompiledQueryIsReusable() throws Exception {
+        CompiledQuery query = CompiledQuery.compile(json("a: {$in: [1, 'x', null]}, 'b.c': {$gt: 5}"));
+        assertThat(query.matches(json("a: 1.0, b: {c: 6}"))).isTrue();
+        assertThat(query.matches(json("a: 1, b: {c: 7.5}"))).isTrue();
+        assertThat(query.matches(json("b: {c: 6}"))).isTrue();
+        assertThat(query.matches(json("a: 'x', b: {c: 5}"))).isFalse();
+        assertThat(query.matches(json("a: 'y', b: {c: 10}"))).isFalse();
+        assertThat(query.matches(json("a: [2, 'x'], b: [{c: 1}, {c: 8}]"))).isTrue();
+    }
+
+    @Test
+    public void testMatchPositionIsTrackedPerEvaluation() throws Exception {
+        CompiledQuery query = CompiledQuery.compile(json("a: 3"));
+        assertThat(query.matchPosition(json("a: [1, 2, 3]"))).isEqualTo(2);
+        assertThat(query.matchPosition(json("a: [3, 2, 1]"))).isEqualTo(0);
+        assertThat(query.matchPosition(json("a: [1, 2]"))).isNull();
+    }
+
+    @Test
+    public void testErrorsAreRaisedOnEvaluation() throws Exception {
+        CompiledQuery query = CompiledQuery.compile(json("$foo: 1"));
+
+        assertThatExceptionOfType(BadValueException.class)
+            .isThrownBy(() -> query.matches(json("a: 1")))
+            .withMessage("[Error 2] unknown top level operator: $foo");
+    }
+
+}
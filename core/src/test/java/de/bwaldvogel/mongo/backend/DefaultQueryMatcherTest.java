@@ -29,7 +29,11 @@ import de.bwaldvogel.mongo.exception.MongoServerError;
 
 public class DefaultQueryMatcherTest {
 
-    private QueryMatcher matcher = new DefaultQueryMatcher();
+    private final QueryMatcher matcher = createMatcher();
+
+    protected QueryMatcher createMatcher() {
+        return new DefaultQueryMatcher();
+    }
 
     @Test
     public void testMatchesSimple() throws Exception {
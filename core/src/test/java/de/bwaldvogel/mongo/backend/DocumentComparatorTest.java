@@ -7,6 +7,8 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.Test;
 
@@ -73,4 +75,24 @@ public class DocumentComparatorTest {
         assertThat(comparator.compare(b, c)).isZero();
 
     }
+
+    @Test
+    public void testSortIsStable() throws Exception {
+        DocumentComparator comparator = new DocumentComparator(json("'a.b': -1"));
+
+        List<Document> sorted = comparator.sort(Stream.of(
+            json("_id: 1, a: {b: 1}"),
+            json("_id: 2, a: {b: 2}"),
+            json("_id: 3"),
+            json("_id: 4, a: {b: 2}"),
+            json("_id: 5, a: {b: 1}")))
+            .collect(Collectors.toList());
+
+        assertThat(sorted).containsExactly(
+            json("_id: 2, a: {b: 2}"),
+            json("_id: 4, a: {b: 2}"),
+            json("_id: 1, a: {b: 1}"),
+            json("_id: 5, a: {b: 1}"),
+            json("_id: 3"));
+    }
 }
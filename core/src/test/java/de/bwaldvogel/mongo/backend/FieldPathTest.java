@@ -0,0 +1,57 @@
+package de.bwaldvogel.mongo.backend;
+
+import static de.bwaldvogel.mongo.TestUtils.json;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import org.junit.Test;
+
+public class FieldPathTest {
+
+    @Test
+    public void testSegments() throws Exception {
+        FieldPath fieldPath = FieldPath.of("a.b.0.c");
+        assertThat(fieldPath.getPath()).isEqualTo("a.b.0.c");
+        assertThat(fieldPath.size()).isEqualTo(4);
+        assertThat(fieldPath.getSegment(0)).isEqualTo("a");
+        assertThat(fieldPath.getSegment(3)).isEqualTo("c");
+        assertThat(fieldPath.isArrayPosition(1)).isFalse();
+        assertThat(fieldPath.isArrayPosition(2)).isTrue();
+        assertThat(fieldPath.isLastSegment(3)).isTrue();
+
+        assertThat(FieldPath.of("a").size()).isEqualTo(1);
+        assertThat(FieldPath.of("a..b").size()).isEqualTo(2);
+        assertThat(FieldPath.of("a..b").getSegment(1)).isEqualTo(".b");
+        assertThat(FieldPath.of("a.").getSegment(1)).isEmpty();
+    }
+
+    @Test
+    public void testIsPositional() throws Exception {
+        assertThat(FieldPath.of("$").isPositional(0)).isFalse();
+        assertThat(FieldPath.of("a.$").isPositional(1)).isTrue();
+        assertThat(FieldPath.of("a.$.b").isPositional(1)).isTrue();
+        assertThat(FieldPath.of("a.$.").isPositional(1)).isFalse();
+        assertThat(FieldPath.of("a.$x").isPositional(1)).isFalse();
+    }
+
+    @Test
+    public void testGetValue() throws Exception {
+        assertThat(FieldPath.of("a.b").getValue(json("a: {b: 1}"))).isEqualTo(1);
+        assertThat(FieldPath.of("a.b").getValue(json("a: {c: 1}"))).isInstanceOf(Missing.class);
+        assertThat(FieldPath.of("a.b").getValue(json("a: [{b: 1}]"))).isInstanceOf(Missing.class);
+        assertThat(FieldPath.of("a.b").getValue(json("a: {b: null}"))).isNull();
+
+        assertThatExceptionOfType(IllegalArgumentException.class)
+            .isThrownBy(() -> FieldPath.of("a.$.b").getValue(json("a: {b: 1}")));
+
+        assertThatExceptionOfType(IllegalArgumentException.class)
+            .isThrownBy(() -> FieldPath.of("a..b").getValue(json("a: {b: 1}")))
+            .withMessage("illegal field: .b");
+    }
+
+    @Test
+    public void testOfReturnsCachedInstance() throws Exception {
+        assertThat(FieldPath.of("x.y")).isSameAs(FieldPath.of("x.y"));
+    }
+
+}
@@ -0,0 +1,59 @@
+package de.bwaldvogel.mongo.backend;
+
+import static de.bwaldvogel.mongo.TestUtils.json;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import org.junit.Test;
+
+import de.bwaldvogel.mongo.bson.BsonRegularExpression;
+import de.bwaldvogel.mongo.bson.Document;
+
+public class PlanCacheTest {
+
+    @Test
+    public void testQueryShapeIgnoresLiteralValues() throws Exception {
+        assertThat(PlanCache.getQueryShape(json("a: 1, b: {$gt: 5}"), null, null))
+            .isEqualTo(PlanCache.getQueryShape(json("a: 'x', b: {$gt: 17}"), null, null))
+            .isEqualTo(json("query: {a: 'value', b: {$gt: 'value'}}, sort: {}, projection: {}"));
+
+        assertThat(PlanCache.getQueryShape(json("a: {$in: [1, 2, 3]}"), null, null))
+            .isEqualTo(PlanCache.getQueryShape(json("a: {$in: ['x']}"), null, null));
+    }
+
+    @Test
+    public void testQueryShapeDistinguishesFieldsOperatorsSortAndProjection() throws Exception {
+        Document queryShape = PlanCache.getQueryShape(json("a: 1"), null, null);
+
+        assertThat(PlanCache.getQueryShape(json("b: 1"), null, null)).isNotEqualTo(queryShape);
+        assertThat(PlanCache.getQueryShape(json("a: {$gt: 1}"), null, null)).isNotEqualTo(queryShape);
+        assertThat(PlanCache.getQueryShape(json("a: null"), null, null)).isNotEqualTo(queryShape);
+        assertThat(PlanCache.getQueryShape(json("a: [1]"), null, null)).isNotEqualTo(queryShape);
+        assertThat(PlanCache.getQueryShape(new Document("a", new BsonRegularExpression("^a")), null, null)).isNotEqualTo(queryShape);
+        assertThat(PlanCache.getQueryShape(json("a: 1"), json("a: 1"), null)).isNotEqualTo(queryShape);
+        assertThat(PlanCache.getQueryShape(json("a: 1"), null, json("a: 1"))).isNotEqualTo(queryShape);
+    }
+
+    @Test
+    public void testFlushAfterConfiguredNumberOfWrites() throws Exception {
+        PlanCache<Integer> planCache = new PlanCache<>();
+        planCache.setWriteOpsBetweenFlush(2);
+
+        Document queryShape = PlanCache.getQueryShape(json("a: 1"), null, null);
+        QueryPlan<Integer> plan = QueryPlan.collectionScan(10);
+        planCache.put(queryShape, plan);
+
+        planCache.registerWriteOperation();
+        assertThat(planCache.get(queryShape)).isSameAs(plan);
+        assertThat(planCache.getQueryShapes()).containsExactly(queryShape);
+
+        planCache.registerWriteOperation();
+        assertThat(planCache.get(queryShape)).isNull();
+        assertThat(planCache.getQueryShapes()).isEmpty();
+
+        assertThatExceptionOfType(IllegalArgumentException.class)
+            .isThrownBy(() -> planCache.setWriteOpsBetweenFlush(0))
+            .withMessage("Illegal number of write operations: 0");
+    }
+
+}
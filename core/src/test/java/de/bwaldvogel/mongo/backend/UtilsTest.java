@@ -11,6 +11,8 @@ import java.util.Date;
 import org.junit.Test;
 
 import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.exception.MongoServerError;
+import de.bwaldvogel.mongo.exception.MongoServerException;
 
 public class UtilsTest {
 
@@ -131,6 +133,30 @@ public class UtilsTest {
         assertThat(Utils.hasFieldValueListSafe(Arrays.asList("a", "b", "c"), "3")).isFalse();
     }
 
+    @Test
+    public void testChangeSubdocumentValue() throws Exception {
+        Document document = json("a: {b: [{c: 1}, {c: 2}]}");
+        Utils.changeSubdocumentValue(document, "a.b.$.c", 3, 1);
+        Utils.changeSubdocumentValue(document, "x.y.z", 4, (Integer) null);
+        assertThat(document).isEqualTo(json("a: {b: [{c: 1}, {c: 3}]}, x: {y: {z: 4}}"));
+
+        assertThatExceptionOfType(MongoServerError.class)
+            .isThrownBy(() -> Utils.changeSubdocumentValue(document, "n.m.$", 5, (Integer) null))
+            .withMessageContaining("Cannot apply the positional operator");
+        assertThat(document).doesNotContainKey("n");
+    }
+
+    @Test
+    public void testRemoveSubdocumentValue() throws Exception {
+        Document document = json("a: {b: [{c: 1}, {c: 2}]}");
+        assertThat(Utils.removeSubdocumentValue(document, "a.b.$.c", 1)).isEqualTo(2);
+        assertThat(document).isEqualTo(json("a: {b: [{c: 1}, {}]}"));
+
+        assertThatExceptionOfType(MongoServerException.class)
+            .isThrownBy(() -> Utils.removeSubdocumentValue(document, "x.y", null))
+            .withMessage("failed to remove subdocument");
+    }
+
     @Test
     public void testGetDatabaseNameFromFullName() throws Exception {
         assertThat(Utils.getDatabaseNameFromFullName("foo.bar")).isEqualTo("foo");
@@ -3,22 +3,37 @@ package de.bwaldvogel.mongo.bson;
 import static de.bwaldvogel.mongo.TestUtils.json;
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractMap;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.Map;
 
 import org.junit.Test;
 
 import de.bwaldvogel.mongo.backend.Utils;
 import nl.jqno.equalsverifier.EqualsVerifier;
+import nl.jqno.equalsverifier.Warning;
 
 public class DocumentTest {
 
     @Test
     public void testEqualsAndHashCodeContract() throws Exception {
+        DocumentMap red = new DocumentMap();
+        red.put("red", 1);
+        DocumentMap blue = new DocumentMap();
+        blue.put("blue", 2);
         EqualsVerifier.forClass(Document.class)
+            .withPrefabValues(DocumentMap.class, red, blue)
             .withNonnullFields("documentAsMap")
+            .suppress(Warning.NONFINAL_FIELDS)
             .verify();
     }
 
@@ -86,6 +101,146 @@ public class DocumentTest {
         assertThat(document.values()).containsExactly(123, 456);
     }
 
+    @Test
+    public void testSwitchesToHashLayoutAndKeepsOrder() throws Exception {
+        Document document = new Document();
+        for (int i = DocumentMap.MAX_ARRAY_SIZE + 2; i > 0; i--) {
+            document.put("key" + i, i);
+        }
+        document.put("key5", "replaced");
+        document.remove("key3");
+
+        assertThat(document).hasSize(DocumentMap.MAX_ARRAY_SIZE + 1);
+        assertThat(document.keySet()).startsWith("key10", "key9").endsWith("key4", "key2", "key1");
+        assertThat(document.get("key5")).isEqualTo("replaced");
+        assertThat(document.get("key3")).isNull();
+
+        Document small = new Document();
+        document.forEach(small::put);
+        assertThat(small).isEqualTo(document);
+        assertThat(small.hashCode()).isEqualTo(document.hashCode());
+    }
+
+    @Test
+    public void testModifyViews() throws Exception {
+        Document document = json("a: 1, b: 2, c: 3, d: 4");
+
+        Iterator<String> keys = document.keySet().iterator();
+        keys.next();
+        keys.next();
+        keys.remove();
+        assertThat(keys.next()).isEqualTo("c");
+        assertThat(document).isEqualTo(json("a: 1, c: 3, d: 4"));
+
+        for (Map.Entry<String, Object> entry : document.entrySet()) {
+            entry.setValue(((Integer) entry.getValue()) * 10);
+        }
+        assertThat(document).isEqualTo(json("a: 10, c: 30, d: 40"));
+
+        document.values().removeIf(value -> value.equals(30));
+        document.keySet().remove("a");
+        assertThat(document).isEqualTo(json("d: 40"));
+        assertThat(document.entrySet()).containsExactly(new AbstractMap.SimpleEntry<>("d", 40));
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        Document document = json("_id: 1, name: 'abc', sub: {x: [1, 2]}");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(document);
+        }
+
+        assertThat(deserialize(bytes.toByteArray())).isEqualTo(document);
+    }
+
+    @Test
+    public void testDeserializeLinkedHashMapBasedDocument() throws Exception {
+        String serialized = "rO0ABXNyACFkZS5id2FsZHZvZ2VsLm1vbmdvLmJzb24uRG9jdW1lbnQAAAAAAAAAAQIAAUwADWRvY3VtZW50QXNNYXB0ABlMamF2YS91dGlsL0xpbmtlZEhhc2hNYXA7eHBzcgAXamF2YS51dGlsLkxpbmtlZEhhc2hNYXA0wE5cEGzA+wIAAVoAC2FjY2Vzc09yZGVyeHIAEWphdmEudXRpbC5IYXNoTWFwBQfawcMWYNEDAAJGAApsb2FkRmFjdG9ySQAJdGhyZXNob2xkeHA/QAAAAAAADHcIAAAAEAAAAAN0AANfaWRzcgARamF2YS5sYW5nLkludGVnZXIS4qCk94GHOAIAAUkABXZhbHVleHIAEGphdmEubGFuZy5OdW1iZXKGrJUdC5TgiwIAAHhwAAAAAXQABG5hbWV0AANhYmN0AANzdWJzcQB+AABzcQB+AAM/QAAAAAAADHcIAAAAEAAAAAF0AAF4c3IAGmphdmEudXRpbC5BcnJheXMkQXJyYXlMaXN02aQ8vs2IBtICAAFbAAFhdAATW0xqYXZhL2xhbmcvT2JqZWN0O3hwdXIAFFtMamF2YS5sYW5nLkludGVnZXI7/petoAGD4hsCAAB4cAAAAAJxAH4ACXNxAH4ABwAAAAJ4AHgA";
+
+        Document document = deserialize(Base64.getDecoder().decode(serialized));
+
+        assertThat(document).isEqualTo(json("_id: 1, name: 'abc', sub: {x: [1, 2]}"));
+        assertThat(document.keySet()).containsExactly("_id", "name", "sub");
+    }
+
+    @Test
+    public void testShareKeys() throws Exception {
+        DocumentShapes shapes = new DocumentShapes();
+        Document first = json("_id: 1, name: 'abc', sub: {x: 1}, list: [{x: 2}]");
+        Document second = json("_id: 2, name: 'def', sub: {x: 3}, list: [{x: 4}, 5]");
+
+        first.shareKeys(shapes);
+        second.shareKeys(shapes);
+
+        assertThat(shapes.size()).isEqualTo(2);
+        assertThat(first.hasSharedKeys()).isTrue();
+        assertThat(((Document) second.get("sub")).hasSharedKeys()).isTrue();
+        assertThat(first).isEqualTo(json("_id: 1, name: 'abc', sub: {x: 1}, list: [{x: 2}]"));
+
+        second.put("name", "xyz");
+        assertThat(second.hasSharedKeys()).isTrue();
+
+        second.remove("sub");
+        second.put("extra", true);
+        assertThat(second.hasSharedKeys()).isFalse();
+        assertThat(second.keySet()).containsExactly("_id", "name", "list", "extra");
+        assertThat(first.keySet()).containsExactly("_id", "name", "sub", "list");
+
+        Document clone = first.clone();
+        clone.put("name", "clone");
+        assertThat(clone.hasSharedKeys()).isTrue();
+        assertThat(first.get("name")).isEqualTo("abc");
+    }
+
+    @Test
+    public void testShareKeysOfWideDocument() throws Exception {
+        DocumentShapes shapes = new DocumentShapes();
+        Document document = new Document();
+        for (int i = 0; i < 20; i++) {
+            document.put("key" + i, i);
+        }
+        Document expected = document.clone();
+
+        document.shareKeys(shapes);
+
+        assertThat(document.hasSharedKeys()).isTrue();
+        assertThat(document.get("key17")).isEqualTo(17);
+        assertThat(document.containsKey("key20")).isFalse();
+        assertThat(document).isEqualTo(expected);
+
+        document.keySet().remove("key3");
+        document.put("key20", 20);
+        assertThat(document.hasSharedKeys()).isFalse();
+        assertThat(document).hasSize(20);
+        assertThat(document.get("key20")).isEqualTo(20);
+        assertThat(document.get("key3")).isNull();
+    }
+
+    @Test
+    public void testShareKeysOfEmptiedDocument() throws Exception {
+        DocumentShapes shapes = new DocumentShapes();
+        Document document = new Document();
+        for (int i = 0; i < 9; i++) {
+            document.put("key" + i, i);
+        }
+        for (int i = 0; i < 9; i++) {
+            document.remove("key" + i);
+        }
+
+        document.shareKeys(shapes);
+        document.put("key", 1);
+
+        assertThat(document).isEqualTo(new Document("key", 1));
+    }
+
+    private static Document deserialize(byte[] bytes) throws Exception {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (Document) in.readObject();
+        }
+    }
+
     @Test
     public void testToString() throws Exception {
         assertThat(new Document()).hasToString("{}");
@@ -0,0 +1,80 @@
+package de.bwaldvogel.mongo.backend.h2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.type.DataType;
+
+import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.exception.MongoServerException;
+import de.bwaldvogel.mongo.wire.BsonDecoder;
+import de.bwaldvogel.mongo.wire.BsonEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * The type of the documents in the MVStore, which are written as BSON.
+ */
+class DocumentDataType implements DataType {
+
+    static final DocumentDataType INSTANCE = new DocumentDataType();
+
+    private final BsonEncoder encoder = new BsonEncoder();
+    private final BsonDecoder decoder = new BsonDecoder();
+
+    private DocumentDataType() {
+    }
+
+    @Override
+    public int compare(Object a, Object b) {
+        return KeyDataType.INSTANCE.compare(a, b);
+    }
+
+    @Override
+    public int getMemory(Object obj) {
+        return KeyDataType.estimateMemory(obj);
+    }
+
+    @Override
+    public void write(WriteBuffer buff, Object obj) {
+        ByteBuf buffer = Unpooled.buffer();
+        try {
+            encoder.encodeDocument((Document) obj, buffer);
+            buff.put(buffer.nioBuffer());
+        } catch (IOException e) {
+            throw new MongoServerException("failed to encode document", e);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Override
+    public void write(WriteBuffer buff, Object[] obj, int len, boolean key) {
+        for (int i = 0; i < len; i++) {
+            write(buff, obj[i]);
+        }
+    }
+
+    @Override
+    public Object read(ByteBuffer buff) {
+        // the first four bytes of a BSON document hold its total length
+        int length = Integer.reverseBytes(buff.getInt(buff.position()));
+        ByteBuffer document = buff.slice();
+        document.limit(length);
+        buff.position(buff.position() + length);
+        try {
+            return decoder.decodeBson(Unpooled.wrappedBuffer(document));
+        } catch (IOException e) {
+            throw new MongoServerException("failed to decode document", e);
+        }
+    }
+
+    @Override
+    public void read(ByteBuffer buff, Object[] obj, int len, boolean key) {
+        for (int i = 0; i < len; i++) {
+            obj[i] = read(buff);
+        }
+    }
+
+}
@@ -1,57 +1,270 @@
 package de.bwaldvogel.mongo.backend.h2;
 
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.bwaldvogel.mongo.MongoDatabase;
+import de.bwaldvogel.mongo.MongoThreadFactory;
 import de.bwaldvogel.mongo.backend.AbstractMongoBackend;
-import de.bwaldvogel.mongo.exception.MongoServerException;
+import de.bwaldvogel.mongo.bson.Document;
 
 public class H2Backend extends AbstractMongoBackend {
 
     private static final Logger log = LoggerFactory.getLogger(H2Backend.class);
 
+    private static final String FORMAT_MAP_NAME = "format";
+    private static final String FORMAT_VERSION_KEY = "version";
+    private static final Integer FORMAT_VERSION = Integer.valueOf(2);
+    private static final String MIGRATION_PREFIX = "migration.";
+    private static final String MAP_COPIED = "copied";
+    private static final String MAP_MIGRATED = "migrated";
+
     private MVStore mvStore;
+    private ExecutorService prewarmExecutor;
+    private volatile boolean closing;
+    private ScheduledExecutorService compactionExecutor;
+    private H2Compactor compactor;
+    private final Set<H2Collection> collections = ConcurrentHashMap.newKeySet();
 
     public static H2Backend inMemory() {
         MVStore mvStore = MVStore.open(null);
         return new H2Backend(mvStore);
     }
 
+    public static Builder builder() {
+        return new Builder();
+    }
+
     public void commit() {
+        flushDataSizes();
         mvStore.commit();
     }
 
+    void registerCollection(H2Collection collection) {
+        collections.add(collection);
+    }
+
+    private void flushDataSizes() {
+        for (Iterator<H2Collection> iterator = collections.iterator(); iterator.hasNext(); ) {
+            H2Collection collection = iterator.next();
+            if (collection.isClosed()) {
+                // dropped
+                iterator.remove();
+            } else {
+                collection.flushDataSize();
+            }
+        }
+    }
+
     public H2Backend(MVStore mvStore) {
+        this(mvStore, 0);
+    }
+
+    /**
+     * Databases are opened on their first access. The index maps can be loaded
+     * into the cache by background threads, so the first queries after a restart
+     * do not have to read them from the disk.
+     *
+     * @param prewarmParallelism the number of threads that load the index maps,
+     *                           or 0 to load them on their first access
+     */
+    public H2Backend(MVStore mvStore, int prewarmParallelism) {
+        long start = System.nanoTime();
         this.mvStore = mvStore;
 
+        migrateStorageFormat();
+
+        Set<String> databaseNames = new TreeSet<>();
         for (String mapName : mvStore.getMapNames()) {
             if (mapName.startsWith(H2Database.DATABASES_PREFIX)) {
                 String fullName = mapName.substring(H2Database.DATABASES_PREFIX.length());
-                String databaseName = fullName.substring(0, fullName.indexOf('.'));
+                databaseNames.add(fullName.substring(0, fullName.indexOf('.')));
+            }
+        }
+        for (String databaseName : databaseNames) {
+            addUnopenedDatabase(databaseName);
+        }
+
+        if (prewarmParallelism > 0) {
+            prewarmIndexes(prewarmParallelism);
+        }
+
+        log.info("started {} with {} databases in {} ms", this, Integer.valueOf(databaseNames.size()),
+            Long.valueOf(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
 
-                log.info("opening database '{}'", databaseName);
-                try {
-                    resolveDatabase(databaseName);
-                } catch (MongoServerException e) {
-                    log.error("Failed to open {}", e);
+    private void prewarmIndexes(int parallelism) {
+        List<String> indexMapNames = mvStore.getMapNames().stream()
+            .filter(H2Database::isIndexMap)
+            .collect(Collectors.toList());
+        if (indexMapNames.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        AtomicInteger remaining = new AtomicInteger(indexMapNames.size());
+        prewarmExecutor = Executors.newFixedThreadPool(parallelism, new MongoThreadFactory("mongo-server-h2-prewarm-"));
+        for (String mapName : indexMapNames) {
+            prewarmExecutor.execute(() -> {
+                prewarmIndex(mapName);
+                if (remaining.decrementAndGet() == 0) {
+                    log.info("prewarmed {} index maps in {} ms", Integer.valueOf(indexMapNames.size()),
+                        Long.valueOf(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
                 }
+            });
+        }
+        // the threads terminate once all index maps are loaded
+        prewarmExecutor.shutdown();
+    }
+
+    private void prewarmIndex(String mapName) {
+        if (closing) {
+            return;
+        }
+        try {
+            MVMap<List<Object>, Object> indexMap = H2Database.openIndexMap(mvStore, mapName);
+            long entries = 0;
+            for (Iterator<List<Object>> keys = indexMap.keyIterator(null); keys.hasNext(); keys.next()) {
+                if (closing) {
+                    log.debug("stopped prewarming index map '{}'", mapName);
+                    return;
+                }
+                entries++;
             }
+            log.debug("prewarmed index map '{}' with {} entries", mapName, Long.valueOf(entries));
+        } catch (IllegalStateException e) {
+            // the store was closed in the meantime
+            log.debug("stopped prewarming index map '{}'", mapName, e);
+        }
+    }
+
+    /**
+     * Converts stores that were written before documents and keys were stored in
+     * their own binary format. Back then the MVStore wrote them with Java serialization.
+     * <p>
+     * The store may be saved between any two steps, so the state of every map is
+     * recorded in the format map. A map is copied to a migration map, which replaces
+     * the map once the copy is recorded as complete. An interrupted migration
+     * continues with the next step of every map on the next start.
+     */
+    private void migrateStorageFormat() {
+        MVMap<String, Object> formatMap = mvStore.openMap(FORMAT_MAP_NAME);
+        if (FORMAT_VERSION.equals(formatMap.get(FORMAT_VERSION_KEY))) {
+            return;
+        }
+
+        // background commits could save the store in the middle of a step
+        int autoCommitDelay = mvStore.getAutoCommitDelay();
+        mvStore.setAutoCommitDelay(0);
+        try {
+            for (String mapName : mvStore.getMapNames()) {
+                if (mapName.startsWith(MIGRATION_PREFIX)) {
+                    continue;
+                }
+                if (H2Database.isDataMap(mapName)) {
+                    migrateMap(formatMap, mapName, H2Database::openDataMap);
+                } else if (H2Database.isIndexMap(mapName)) {
+                    migrateMap(formatMap, mapName, H2Database::openIndexMap);
+                }
+            }
+
+            // finish the migration of maps whose legacy version was already removed
+            for (String mapName : mvStore.getMapNames()) {
+                if (mapName.startsWith(MIGRATION_PREFIX)) {
+                    String originalMapName = mapName.substring(MIGRATION_PREFIX.length());
+                    if (H2Database.isDataMap(originalMapName)) {
+                        migrateMap(formatMap, originalMapName, H2Database::openDataMap);
+                    } else {
+                        migrateMap(formatMap, originalMapName, H2Database::openIndexMap);
+                    }
+                }
+            }
+
+            formatMap.put(FORMAT_VERSION_KEY, FORMAT_VERSION);
+            mvStore.commit();
+        } finally {
+            mvStore.setAutoCommitDelay(autoCommitDelay);
         }
     }
 
+    private <K, V> void migrateMap(MVMap<String, Object> formatMap, String mapName,
+                                   BiFunction<MVStore, String, MVMap<K, V>> openMap) {
+        Object state = formatMap.get(mapName);
+        if (MAP_MIGRATED.equals(state)) {
+            return;
+        }
+
+        String migrationMapName = MIGRATION_PREFIX + mapName;
+        // the legacy map is only removed once it was copied completely
+        boolean copied = MAP_COPIED.equals(state) || !mvStore.hasMap(mapName);
+        if (!copied) {
+            log.info("migrating '{}' to the storage format version {}", mapName, FORMAT_VERSION);
+            if (mvStore.hasMap(migrationMapName)) {
+                // the copy was interrupted
+                mvStore.removeMap(openMap.apply(mvStore, migrationMapName));
+            }
+            MVMap<K, V> legacyMap = mvStore.openMap(mapName);
+            MVMap<K, V> migratedMap = openMap.apply(mvStore, migrationMapName);
+            migratedMap.putAll(legacyMap);
+            formatMap.put(mapName, MAP_COPIED);
+        }
+
+        if (mvStore.hasMap(migrationMapName)) {
+            if (mvStore.hasMap(mapName)) {
+                mvStore.removeMap(mvStore.openMap(mapName));
+            }
+            mvStore.renameMap(openMap.apply(mvStore, migrationMapName), mapName);
+        }
+        formatMap.put(mapName, MAP_MIGRATED);
+    }
+
     public H2Backend(String fileName) {
-        this(openMvStore(fileName));
+        this(fileName, 0);
+    }
+
+    public H2Backend(String fileName, int prewarmParallelism) {
+        this(openMvStore(fileName), prewarmParallelism);
     }
 
     private static MVStore openMvStore(String fileName) {
+        return openMvStore(fileName, new MVStore.Builder().fileName(fileName));
+    }
+
+    private static MVStore openMvStore(String fileName, MVStore.Builder storeBuilder) {
         if (fileName == null) {
             log.info("opening in-memory MVStore");
         } else {
             log.info("opening MVStore in '{}'", fileName);
         }
-        return MVStore.open(fileName);
+        return storeBuilder.open();
+    }
+
+    private void scheduleCompaction(long intervalMillis, int fillRateThreshold, int maxBytesPerRun) {
+        compactor = new H2Compactor(mvStore, fillRateThreshold, maxBytesPerRun);
+        compactionExecutor = Executors.newSingleThreadScheduledExecutor(new MongoThreadFactory("mongo-server-h2-compaction-"));
+        compactionExecutor.scheduleWithFixedDelay(compactor, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the statistics of the background compaction or null if it is disabled
+     */
+    Document getCompactionStats() {
+        return compactor != null ? compactor.getStats() : null;
     }
 
     @Override
@@ -62,9 +275,26 @@ public class H2Backend extends AbstractMongoBackend {
     @Override
     public void close() {
         log.info("closing {}", this);
+        closing = true;
+        // the threads must not be interrupted since an interrupt closes the file channel of the store
+        awaitTermination(compactionExecutor);
+        awaitTermination(prewarmExecutor);
+        flushDataSizes();
         mvStore.close();
     }
 
+    private static void awaitTermination(ExecutorService executor) {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     public boolean isInMemory() {
         return mvStore.getFileStore() == null;
     }
@@ -77,4 +307,151 @@ public class H2Backend extends AbstractMongoBackend {
             return getClass().getSimpleName() + "[" + mvStore.getFileStore().getFileName() + "]";
         }
     }
+
+    public static final class Builder {
+
+        private String fileName;
+        private int cacheSizeMb = 16;
+        private int autoCommitDelayMillis = 1000;
+        private int retentionTimeMillis = -1;
+        private int pageSplitSize;
+        private boolean compress;
+        private boolean compressHigh;
+        private int prewarmParallelism;
+        private long compactionIntervalMillis = TimeUnit.MINUTES.toMillis(1);
+        private int compactionFillRateThreshold = 50;
+        private int compactionMaxBytesPerRun = 16 * 1024 * 1024;
+
+        private Builder() {
+        }
+
+        /**
+         * @param fileName the file of the store or null for an in-memory store
+         */
+        public Builder fileName(String fileName) {
+            this.fileName = fileName;
+            return this;
+        }
+
+        public Builder cacheSizeMb(int cacheSizeMb) {
+            this.cacheSizeMb = cacheSizeMb;
+            return this;
+        }
+
+        /**
+         * @param autoCommitDelayMillis the maximum delay until changes are written
+         *                              to the file, or 0 to write them only on commit
+         */
+        public Builder autoCommitDelayMillis(int autoCommitDelayMillis) {
+            this.autoCommitDelayMillis = autoCommitDelayMillis;
+            return this;
+        }
+
+        /**
+         * A retention time of 0 is rejected if the background compaction is enabled,
+         * since the compaction would free the chunks that concurrent reads still use.
+         *
+         * @param retentionTimeMillis the time for which old chunks are kept before
+         *                            they are compacted or their space is reused
+         */
+        public Builder retentionTimeMillis(int retentionTimeMillis) {
+            this.retentionTimeMillis = retentionTimeMillis;
+            return this;
+        }
+
+        /**
+         * @param pageSplitSize the page size in bytes above which pages are split,
+         *                      or 0 to use the default of the MVStore
+         */
+        public Builder pageSplitSize(int pageSplitSize) {
+            this.pageSplitSize = pageSplitSize;
+            return this;
+        }
+
+        /**
+         * Compresses pages with the fast LZF algorithm.
+         */
+        public Builder compress() {
+            this.compress = true;
+            return this;
+        }
+
+        /**
+         * Compresses pages with the slower but stronger Deflate algorithm.
+         */
+        public Builder compressHigh() {
+            this.compressHigh = true;
+            return this;
+        }
+
+        public Builder prewarmParallelism(int prewarmParallelism) {
+            this.prewarmParallelism = prewarmParallelism;
+            return this;
+        }
+
+        /**
+         * @param compactionIntervalMillis the delay between two checks of the fill
+         *                                 rate, or 0 to disable the background compaction
+         */
+        public Builder compactionIntervalMillis(long compactionIntervalMillis) {
+            this.compactionIntervalMillis = compactionIntervalMillis;
+            return this;
+        }
+
+        /**
+         * @param compactionFillRateThreshold the fill rate in percent below which the
+         *                                    file is compacted
+         */
+        public Builder compactionFillRateThreshold(int compactionFillRateThreshold) {
+            this.compactionFillRateThreshold = compactionFillRateThreshold;
+            return this;
+        }
+
+        /**
+         * @param compactionMaxBytesPerRun the maximum number of bytes that a single
+         *                                 compaction run rewrites or moves
+         */
+        public Builder compactionMaxBytesPerRun(int compactionMaxBytesPerRun) {
+            this.compactionMaxBytesPerRun = compactionMaxBytesPerRun;
+            return this;
+        }
+
+        public H2Backend build() {
+            boolean compaction = fileName != null && compactionIntervalMillis > 0;
+            if (compaction && retentionTimeMillis == 0) {
+                throw new IllegalArgumentException("Illegal retention time with background compaction: " + retentionTimeMillis);
+            }
+
+            MVStore.Builder storeBuilder = new MVStore.Builder()
+                .fileName(fileName)
+                .cacheSize(cacheSizeMb);
+            if (pageSplitSize > 0) {
+                storeBuilder.pageSplitSize(pageSplitSize);
+            }
+            if (compressHigh) {
+                storeBuilder.compressHigh();
+            } else if (compress) {
+                storeBuilder.compress();
+            }
+            if (autoCommitDelayMillis == 0) {
+                storeBuilder.autoCommitDisabled();
+            }
+
+            MVStore mvStore = openMvStore(fileName, storeBuilder);
+            if (autoCommitDelayMillis > 0) {
+                mvStore.setAutoCommitDelay(autoCommitDelayMillis);
+            }
+            if (retentionTimeMillis >= 0) {
+                mvStore.setRetentionTime(retentionTimeMillis);
+            }
+
+            H2Backend backend = new H2Backend(mvStore, prewarmParallelism);
+            if (compaction) {
+                backend.scheduleCompaction(compactionIntervalMillis, compactionFillRateThreshold, compactionMaxBytesPerRun);
+            }
+            return backend;
+        }
+
+    }
+
 }
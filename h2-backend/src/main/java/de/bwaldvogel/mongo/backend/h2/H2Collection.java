@@ -6,17 +6,25 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
 import org.h2.mvstore.MVMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.bwaldvogel.mongo.backend.AbstractMongoCollection;
-import de.bwaldvogel.mongo.backend.DocumentComparator;
+import de.bwaldvogel.mongo.backend.DocumentWithPosition;
+import de.bwaldvogel.mongo.backend.Index;
 import de.bwaldvogel.mongo.backend.Missing;
 import de.bwaldvogel.mongo.backend.Utils;
 import de.bwaldvogel.mongo.bson.Document;
 
+/**
+ * The data size is tracked in memory and only written to the meta map by
+ * {@link #flushDataSize()}. The first write after a flush marks the stored
+ * value as stale, so it is recalculated if the store was not closed cleanly.
+ */
 public class H2Collection extends AbstractMongoCollection<Object> {
 
     private static final Logger log = LoggerFactory.getLogger(H2Collection.class);
@@ -25,33 +33,92 @@ public class H2Collection extends AbstractMongoCollection<Object> {
     private final MVMap<String, Object> metaMap;
 
     private static final String DATA_SIZE_KEY = "dataSize";
+    private static final String DATA_SIZE_STALE_KEY = "dataSizeStale";
+    private static final String COMPLETE_INDEX_PREFIX = "completeIndex.";
+
+    private final LongAdder dataSize = new LongAdder();
+    private volatile boolean dataSizeStale;
 
     public H2Collection(String databaseName, String collectionName, String idField, MVMap<Object, Document> dataMap, MVMap<String, Object> metaMap) {
         super(databaseName, collectionName, idField);
         this.dataMap = dataMap;
         this.metaMap = metaMap;
-        if (!this.metaMap.containsKey(DATA_SIZE_KEY)) {
+        Number storedDataSize = (Number) metaMap.get(DATA_SIZE_KEY);
+        if (storedDataSize == null) {
             this.metaMap.put(DATA_SIZE_KEY, Long.valueOf(0));
+        } else if (metaMap.containsKey(DATA_SIZE_STALE_KEY)) {
+            dataSize.add(calculateDataSize());
+            dataSizeStale = true;
+            log.info("recalculated dataSize of {}: {}", getFullName(), getDataSize());
         } else {
+            dataSize.add(storedDataSize.longValue());
             log.debug("dataSize of {}: {}", getFullName(), getDataSize());
         }
     }
 
+    private long calculateDataSize() {
+        long size = 0;
+        for (Document document : dataMap.values()) {
+            size += Utils.calculateSize(document);
+        }
+        return size;
+    }
+
+    /**
+     * Non-unique indexes are marked as complete once all documents are indexed. An
+     * index without the mark was left behind by an interrupted build or a dropped
+     * collection of the same name, so it is cleared and built again.
+     */
     @Override
-    protected void updateDataSize(long sizeDelta) {
-        synchronized (metaMap) {
-            Number value = (Number) metaMap.get(DATA_SIZE_KEY);
-            Long newValue = Long.valueOf(value.longValue() + sizeDelta);
-            metaMap.put(DATA_SIZE_KEY, newValue);
+    public synchronized void addIndex(Index<Object> index) {
+        if (!(index instanceof H2NonUniqueIndex)) {
+            super.addIndex(index);
+            return;
         }
+        String completeIndexKey = COMPLETE_INDEX_PREFIX + index.getName();
+        if (!metaMap.containsKey(completeIndexKey) && index.getCount() > 0) {
+            log.info("rebuilding incomplete index {} of {}", index.getName(), getFullName());
+            ((H2NonUniqueIndex) index).clear();
+        }
+        super.addIndex(index);
+        metaMap.put(completeIndexKey, Boolean.TRUE);
+    }
+
+    @Override
+    protected void updateDataSize(long sizeDelta) {
+        markDataSizeStale();
+        dataSize.add(sizeDelta);
     }
 
     @Override
     protected long getDataSize() {
-        Number value = (Number) metaMap.get(DATA_SIZE_KEY);
-        return value.longValue();
+        return dataSize.sum();
     }
 
+    private synchronized void markDataSizeStale() {
+        if (!dataSizeStale) {
+            metaMap.put(DATA_SIZE_STALE_KEY, Boolean.TRUE);
+            dataSizeStale = true;
+        }
+    }
+
+    /**
+     * Writers hold the monitor of the collection while they change the data and
+     * its size, so the flush takes the same lock to never store a size that does
+     * not match the documents.
+     */
+    synchronized void flushDataSize() {
+        if (!dataSizeStale || metaMap.isClosed()) {
+            return;
+        }
+        dataSizeStale = false;
+        metaMap.put(DATA_SIZE_KEY, Long.valueOf(dataSize.sum()));
+        metaMap.remove(DATA_SIZE_STALE_KEY);
+    }
+
+    boolean isClosed() {
+        return metaMap.isClosed();
+    }
 
     @Override
     protected Object addDocumentInternal(Document document) {
@@ -88,8 +155,17 @@ public class H2Collection extends AbstractMongoCollection<Object> {
         }
     }
 
+    /**
+     * Documents are stored under their id, so the position of a document is
+     * found by a single key lookup instead of a scan over the collection.
+     */
     @Override
     protected Object findDocumentPosition(Document document) {
+        if (idField != null) {
+            Object key = Missing.ofNullable(Utils.getSubdocumentValue(document, idField));
+            Document storedDocument = dataMap.get(key);
+            return document.equals(storedDocument) ? key : null;
+        }
         for (Entry<Object, Document> entry : dataMap.entrySet()) {
             if (entry.getValue().equals(document)) {
                 return entry.getKey();
@@ -100,71 +176,32 @@ public class H2Collection extends AbstractMongoCollection<Object> {
 
 
     @Override
-    protected Iterable<Document> matchDocuments(Document query, Iterable<Object> positions, Document orderBy, int numberToSkip, int numberToReturn) {
-
-        List<Document> matchedDocuments = new ArrayList<>();
-
-        for (Object position : positions) {
-            Document document = getDocument(position);
-            if (documentMatchesQuery(document, query)) {
-                matchedDocuments.add(document);
-            }
-        }
-
-        sortDocumentsInMemory(matchedDocuments, orderBy);
-
-        if (numberToSkip > 0) {
-            matchedDocuments = matchedDocuments.subList(numberToSkip, matchedDocuments.size());
-        }
-
-        if (numberToReturn > 0 && matchedDocuments.size() > numberToReturn) {
-            matchedDocuments = matchedDocuments.subList(0, numberToReturn);
-        }
+    protected Stream<DocumentWithPosition<Object>> streamAllDocumentsWithPosition() {
+        return dataMap.entrySet().stream()
+            .map(entry -> new DocumentWithPosition<>(entry.getValue(), entry.getKey()));
+    }
 
-        return matchedDocuments;
+    @Override
+    protected Iterable<Document> matchDocuments(Document query, Iterable<Object> positions, Document orderBy, int numberToSkip, int numberToReturn) {
+        return matchDocumentsAtPositions(query, positions, orderBy, numberToSkip, numberToReturn);
     }
 
     @Override
     protected Iterable<Document> matchDocuments(Document query, Document orderBy, int numberToSkip,
             int numberToReturn) {
-        List<Document> matchedDocuments = new ArrayList<>();
-
-        for (Document document : dataMap.values()) {
-            if (documentMatchesQuery(document, query)) {
-                matchedDocuments.add(document);
-            }
-        }
-
-        if (orderBy != null && !orderBy.keySet().isEmpty()) {
-            if (orderBy.keySet().iterator().next().equals("$natural")) {
-                int sortValue = ((Integer) orderBy.get("$natural")).intValue();
-                if (sortValue == 1) {
-                    // already sorted
-                } else if (sortValue == -1) {
-                    Collections.reverse(matchedDocuments);
-                }
-            } else {
-                matchedDocuments.sort(new DocumentComparator(orderBy));
-            }
-        }
-
-        if (numberToSkip > 0) {
-            if (numberToSkip < matchedDocuments.size()) {
-                matchedDocuments = matchedDocuments.subList(numberToSkip, matchedDocuments.size());
-            } else {
-                return Collections.emptyList();
-            }
-        }
-
-        if (numberToReturn > 0 && matchedDocuments.size() > numberToReturn) {
-            matchedDocuments = matchedDocuments.subList(0, numberToReturn);
+        final Stream<Document> documents;
+        if (isNaturalDescending(orderBy)) {
+            List<Document> reversedDocuments = new ArrayList<>(dataMap.values());
+            Collections.reverse(reversedDocuments);
+            documents = reversedDocuments.stream();
+        } else {
+            documents = dataMap.values().stream();
         }
-
-        return matchedDocuments;
+        return matchDocuments(query, documents, orderBy, numberToSkip, numberToReturn);
     }
 
     @Override
-    protected void handleUpdate(Document document) {
+    protected void handleUpdate(Object position, Document document) {
         // noop
     }
 
@@ -0,0 +1,90 @@
+package de.bwaldvogel.mongo.backend.h2;
+
+import java.util.Date;
+
+import org.h2.mvstore.FileStore;
+import org.h2.mvstore.MVStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.bwaldvogel.mongo.bson.Document;
+
+/**
+ * Compacts the file of an MVStore when the fill rate of its chunks or of the file
+ * drops below a threshold. A run rewrites and moves a limited number of bytes, so
+ * a fragmented store is compacted over several runs instead of blocking writers
+ * for a long time.
+ */
+class H2Compactor implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(H2Compactor.class);
+
+    private final MVStore mvStore;
+    private final int fillRateThreshold;
+    private final int maxBytesPerRun;
+
+    // only written by the synchronized runs and read without blocking by getStats()
+    private volatile long runs;
+    private volatile long reclaimedBytes;
+    private volatile Date lastRun;
+    private volatile long lastRunMillis;
+
+    H2Compactor(MVStore mvStore, int fillRateThreshold, int maxBytesPerRun) {
+        this.mvStore = mvStore;
+        this.fillRateThreshold = fillRateThreshold;
+        this.maxBytesPerRun = maxBytesPerRun;
+    }
+
+    @Override
+    public synchronized void run() {
+        FileStore fileStore = mvStore.getFileStore();
+        if (fileStore == null || mvStore.isClosed()) {
+            return;
+        }
+        try {
+            int chunkFillRate = mvStore.getCurrentFillRate();
+            int fileFillRate = fileStore.getFillRate();
+            if (chunkFillRate >= fillRateThreshold && fileFillRate >= fillRateThreshold) {
+                return;
+            }
+
+            long start = System.currentTimeMillis();
+            long sizeBefore = fileStore.size();
+            if (chunkFillRate < fillRateThreshold) {
+                mvStore.compact(fillRateThreshold, maxBytesPerRun);
+            }
+            if (fileFillRate < fillRateThreshold) {
+                mvStore.compactMoveChunks(fillRateThreshold, maxBytesPerRun);
+            }
+            long reclaimed = Math.max(0, sizeBefore - fileStore.size());
+
+            runs++;
+            reclaimedBytes += reclaimed;
+            lastRun = new Date(start);
+            lastRunMillis = System.currentTimeMillis() - start;
+            log.debug("compacted {} in {} ms with fill rates of {}% (chunks) and {}% (file), reclaimed {} bytes",
+                fileStore.getFileName(), Long.valueOf(lastRunMillis), Integer.valueOf(chunkFillRate),
+                Integer.valueOf(fileFillRate), Long.valueOf(reclaimed));
+        } catch (IllegalStateException e) {
+            if (!mvStore.isClosed()) {
+                log.error("failed to compact {}", fileStore.getFileName(), e);
+            }
+        }
+    }
+
+    Document getStats() {
+        Document stats = new Document();
+        FileStore fileStore = mvStore.getFileStore();
+        if (fileStore != null && !mvStore.isClosed()) {
+            stats.put("chunkFillRate", Integer.valueOf(mvStore.getCurrentFillRate()));
+            stats.put("fileFillRate", Integer.valueOf(fileStore.getFillRate()));
+        }
+        stats.put("fillRateThreshold", Integer.valueOf(fillRateThreshold));
+        stats.put("runs", Long.valueOf(runs));
+        stats.put("reclaimedBytes", Long.valueOf(reclaimedBytes));
+        stats.put("lastRun", lastRun);
+        stats.put("lastRunMillis", Long.valueOf(lastRunMillis));
+        return stats;
+    }
+
+}
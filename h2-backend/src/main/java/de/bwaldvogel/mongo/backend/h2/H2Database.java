@@ -8,7 +8,6 @@ import org.h2.mvstore.FileStore;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 
-import de.bwaldvogel.mongo.MongoBackend;
 import de.bwaldvogel.mongo.MongoCollection;
 import de.bwaldvogel.mongo.MongoDatabase;
 import de.bwaldvogel.mongo.backend.AbstractMongoDatabase;
@@ -20,21 +19,52 @@ public class H2Database extends AbstractMongoDatabase<Object> {
 
     private static final String META_PREFIX = "meta.";
     static final String DATABASES_PREFIX = "databases.";
+    private static final String INDEX_INFIX = "._index_";
+    private static final String NON_UNIQUE_SUFFIX = ".nonunique";
 
     private MVStore mvStore;
+    private final H2Backend backend;
 
-    public H2Database(String databaseName, MongoBackend backend, MVStore mvStore) {
+    public H2Database(String databaseName, H2Backend backend, MVStore mvStore) {
         super(databaseName, backend);
         this.mvStore = mvStore;
+        this.backend = backend;
         initializeNamespacesAndIndexes();
     }
 
     @Override
     protected Index<Object> openOrCreateUniqueIndex(String collectionName, List<IndexKey> keys) {
-        MVMap<List<Object>, Object> mvMap = mvStore.openMap(databaseName + "." + collectionName + "._index_" + indexName(keys));
+        MVMap<List<Object>, Object> mvMap = openIndexMap(mvStore, databaseName + "." + collectionName + INDEX_INFIX + indexName(keys));
         return new H2UniqueIndex(mvMap, keys);
     }
 
+    @Override
+    protected Index<Object> openOrCreateNonUniqueIndex(String collectionName, List<IndexKey> keys) {
+        MVMap<List<Object>, Object> mvMap = openIndexMap(mvStore, databaseName + "." + collectionName + INDEX_INFIX
+            + indexName(keys) + NON_UNIQUE_SUFFIX);
+        return new H2NonUniqueIndex(mvMap, keys);
+    }
+
+    static MVMap<Object, Document> openDataMap(MVStore mvStore, String mapName) {
+        return mvStore.openMap(mapName, new MVMap.Builder<Object, Document>()
+            .keyType(KeyDataType.INSTANCE)
+            .valueType(DocumentDataType.INSTANCE));
+    }
+
+    static MVMap<List<Object>, Object> openIndexMap(MVStore mvStore, String mapName) {
+        return mvStore.openMap(mapName, new MVMap.Builder<List<Object>, Object>()
+            .keyType(KeyDataType.INSTANCE)
+            .valueType(KeyDataType.INSTANCE));
+    }
+
+    static boolean isDataMap(String mapName) {
+        return mapName.startsWith(DATABASES_PREFIX);
+    }
+
+    static boolean isIndexMap(String mapName) {
+        return !mapName.startsWith(META_PREFIX) && mapName.contains(INDEX_INFIX);
+    }
+
     static String indexName(List<IndexKey> keys) {
         if (keys.isEmpty()) {
             throw new IllegalArgumentException("No keys");
@@ -47,9 +77,11 @@ public class H2Database extends AbstractMongoDatabase<Object> {
     @Override
     protected MongoCollection<Object> openOrCreateCollection(String collectionName, String idField) {
         String fullCollectionName = databaseName + "." + collectionName;
-        MVMap<Object, Document> dataMap = mvStore.openMap(DATABASES_PREFIX + fullCollectionName);
+        MVMap<Object, Document> dataMap = openDataMap(mvStore, DATABASES_PREFIX + fullCollectionName);
         MVMap<String, Object> metaMap = mvStore.openMap(META_PREFIX + fullCollectionName);
-        return new H2Collection(databaseName, collectionName, idField, dataMap, metaMap);
+        H2Collection collection = new H2Collection(databaseName, collectionName, idField, dataMap, metaMap);
+        backend.registerCollection(collection);
+        return collection;
     }
 
     @Override
@@ -71,11 +103,19 @@ public class H2Database extends AbstractMongoDatabase<Object> {
         return getStorageSize();
     }
 
+    @Override
+    protected void appendStorageStats(Document stats) {
+        Document compactionStats = backend.getCompactionStats();
+        if (compactionStats != null) {
+            stats.put("compaction", compactionStats);
+        }
+    }
+
     @Override
     public void dropCollection(String collectionName) {
         super.dropCollection(collectionName);
         String fullCollectionName = getDatabaseName() + "." + collectionName;
-        MVMap<Object, Document> dataMap = mvStore.openMap(DATABASES_PREFIX + fullCollectionName);
+        MVMap<Object, Document> dataMap = openDataMap(mvStore, DATABASES_PREFIX + fullCollectionName);
         MVMap<String, Object> metaMap = mvStore.openMap(META_PREFIX + fullCollectionName);
         mvStore.removeMap(dataMap);
         mvStore.removeMap(metaMap);
@@ -86,7 +126,7 @@ public class H2Database extends AbstractMongoDatabase<Object> {
         super.moveCollection(oldDatabase, collection, newCollectionName);
         String fullCollectionName = collection.getFullName();
         String newFullName = collection.getDatabaseName() + "." + newCollectionName;
-        MVMap<Object, Document> dataMap = mvStore.openMap(DATABASES_PREFIX + fullCollectionName);
+        MVMap<Object, Document> dataMap = openDataMap(mvStore, DATABASES_PREFIX + fullCollectionName);
         MVMap<String, Object> metaMap = mvStore.openMap(META_PREFIX + fullCollectionName);
 
         mvStore.renameMap(dataMap, DATABASES_PREFIX + newFullName);
@@ -0,0 +1,152 @@
+package de.bwaldvogel.mongo.backend.h2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.h2.mvstore.Cursor;
+import org.h2.mvstore.MVMap;
+
+import de.bwaldvogel.mongo.backend.AbstractNonUniqueIndex;
+import de.bwaldvogel.mongo.backend.IndexKey;
+import de.bwaldvogel.mongo.bson.MaxKey;
+
+/**
+ * Stores every entry as the composite key (value 1, ..., value n, position) in an
+ * {@link MVMap} that is ordered by {@link KeyDataType}. The entries of a key are
+ * therefore stored next to each other and are found with a cursor that starts at
+ * the key, which sorts before all of its composite keys.
+ */
+public class H2NonUniqueIndex extends AbstractNonUniqueIndex<Object> {
+
+    private final MVMap<List<Object>, Object> mvMap;
+    private final int keyCount;
+
+    H2NonUniqueIndex(MVMap<List<Object>, Object> mvMap, List<IndexKey> keys) {
+        super(keys);
+        this.mvMap = mvMap;
+        this.keyCount = keys.size();
+        if (!mvMap.isEmpty()) {
+            // it is unknown whether the existing keys were derived from array values
+            markMultikey();
+        }
+    }
+
+    void clear() {
+        mvMap.clear();
+    }
+
+    @Override
+    protected void addEntry(List<Object> key, Object position) {
+        mvMap.put(toEntryKey(key, position), Boolean.TRUE);
+    }
+
+    @Override
+    protected boolean removeEntry(List<Object> key, Object position) {
+        return mvMap.remove(toEntryKey(key, position)) != null;
+    }
+
+    private static List<Object> toEntryKey(List<Object> key, Object position) {
+        List<Object> entryKey = new ArrayList<>(key.size() + 1);
+        entryKey.addAll(key);
+        entryKey.add(position);
+        return entryKey;
+    }
+
+    @Override
+    protected Iterable<Object> getPositionsForKeyPrefix(List<Object> keyPrefix) {
+        Set<Object> positions = new LinkedHashSet<>();
+        Cursor<List<Object>, Object> cursor = mvMap.cursor(keyPrefix);
+        while (cursor.hasNext()) {
+            List<Object> entryKey = cursor.next();
+            if (!startsWith(entryKey, keyPrefix)) {
+                break;
+            }
+            positions.add(entryKey.get(keyCount));
+        }
+        return positions;
+    }
+
+    private static boolean startsWith(List<Object> entryKey, List<Object> keyPrefix) {
+        for (int i = 0; i < keyPrefix.size(); i++) {
+            if (KeyDataType.INSTANCE.compare(entryKey.get(i), keyPrefix.get(i)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Keys of the same type are stored next to each other, so the scan starts at
+     * the lower bound or the first key of the queried type and ends at the upper
+     * bound or after the last key of the queried type.
+     */
+    @Override
+    protected Iterable<Object> getPositionsForRange(Object lowerBound, Object upperBound) {
+        Class<?> type = (lowerBound != null ? lowerBound : upperBound).getClass();
+        Object to = upperBound != null ? upperBound : KeyDataType.upperTypeBound(lowerBound);
+        Set<Object> positions = new LinkedHashSet<>();
+        Cursor<List<Object>, Object> cursor = mvMap.cursor(getLowerRangeKey(lowerBound, upperBound));
+        while (cursor.hasNext()) {
+            List<Object> entryKey = cursor.next();
+            Object value = entryKey.get(0);
+            if (KeyDataType.INSTANCE.compare(value, to) > 0) {
+                break;
+            }
+            if (value != null && value.getClass().equals(type)) {
+                positions.add(entryKey.get(keyCount));
+            }
+        }
+        return positions;
+    }
+
+    @Override
+    protected long countKeyPrefix(List<Object> keyPrefix) {
+        return getRank(withMaxKey(keyPrefix)) - getRank(keyPrefix);
+    }
+
+    @Override
+    protected long countRange(Object lowerBound, Object upperBound) {
+        long lowerRank = getRank(getLowerRangeKey(lowerBound, upperBound));
+        List<Object> upperKey = upperBound != null
+            ? withMaxKey(Collections.singletonList(upperBound))
+            : Collections.singletonList(KeyDataType.upperTypeBound(lowerBound));
+        return Math.max(0, getRank(upperKey) - lowerRank);
+    }
+
+    private static List<Object> getLowerRangeKey(Object lowerBound, Object upperBound) {
+        return Collections.singletonList(lowerBound != null ? lowerBound : KeyDataType.lowerTypeBound(upperBound));
+    }
+
+    /**
+     * Returns the number of entries that sort before the given key, which is a
+     * lookup in the counted B-tree and does not iterate over the entries.
+     */
+    private long getRank(List<Object> key) {
+        long index = mvMap.getKeyIndex(key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Returns a key that sorts after all composite keys starting with the given values.
+     */
+    private static List<Object> withMaxKey(List<Object> keyPrefix) {
+        List<Object> key = new ArrayList<>(keyPrefix.size() + 1);
+        key.addAll(keyPrefix);
+        key.add(MaxKey.getInstance());
+        return key;
+    }
+
+    @Override
+    public long getCount() {
+        return mvMap.sizeAsLong();
+    }
+
+    @Override
+    public long getDataSize() {
+        return getCount();
+    }
+
+}
@@ -1,8 +1,12 @@
 package de.bwaldvogel.mongo.backend.h2;
 
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
 
+import org.h2.mvstore.Cursor;
 import org.h2.mvstore.MVMap;
 
 import de.bwaldvogel.mongo.backend.AbstractUniqueIndex;
@@ -16,6 +20,10 @@ public class H2UniqueIndex extends AbstractUniqueIndex<Object> {
     H2UniqueIndex(MVMap<List<Object>, Object> mvMap, List<IndexKey> keys) {
         super(keys);
         this.mvMap = mvMap;
+        if (!mvMap.isEmpty()) {
+            // it is unknown whether the existing keys were derived from array values
+            markMultikey();
+        }
     }
 
     @Override
@@ -44,6 +52,36 @@ public class H2UniqueIndex extends AbstractUniqueIndex<Object> {
         return mvMap.get(key);
     }
 
+    @Override
+    protected boolean canHandleRange() {
+        return !isCompoundIndex();
+    }
+
+    /**
+     * The keys are ordered by {@link KeyDataType}, which stores keys of the same
+     * type next to each other, so the scan starts at the lower bound or the first
+     * key of the queried type and ends at the upper bound or after the last key of
+     * the queried type.
+     */
+    @Override
+    protected Iterable<Object> getPositionsForRange(Object lowerBound, Object upperBound) {
+        Class<?> type = (lowerBound != null ? lowerBound : upperBound).getClass();
+        Object from = lowerBound != null ? lowerBound : KeyDataType.lowerTypeBound(upperBound);
+        Object to = upperBound != null ? upperBound : KeyDataType.upperTypeBound(lowerBound);
+        Set<Object> positions = new LinkedHashSet<>();
+        Cursor<List<Object>, Object> cursor = mvMap.cursor(Collections.singletonList(from));
+        while (cursor.hasNext()) {
+            Object value = cursor.next().get(0);
+            if (KeyDataType.INSTANCE.compare(value, to) > 0) {
+                break;
+            }
+            if (value != null && value.getClass().equals(type)) {
+                positions.add(cursor.getValue());
+            }
+        }
+        return positions;
+    }
+
     @Override
     public long getCount() {
         return mvMap.sizeAsLong();
@@ -0,0 +1,459 @@
+package de.bwaldvogel.mongo.backend.h2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.UUID;
+
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.type.DataType;
+
+import de.bwaldvogel.mongo.backend.Missing;
+import de.bwaldvogel.mongo.bson.BsonRegularExpression;
+import de.bwaldvogel.mongo.bson.BsonTimestamp;
+import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.bson.MaxKey;
+import de.bwaldvogel.mongo.bson.MinKey;
+import de.bwaldvogel.mongo.bson.ObjectId;
+import de.bwaldvogel.mongo.exception.MongoServerException;
+
+/**
+ * The type of the document ids and index keys in the MVStore. Values are written
+ * in a compact tagged binary form and are ordered like BSON values in MongoDB:
+ * MinKey, null, numbers, strings, documents, arrays, binary data, ObjectIds,
+ * booleans, dates, timestamps, regular expressions and MaxKey.
+ * <p>
+ * Numbers of different types are ordered by their value and only then by their
+ * type, so the order is consistent with {@link Object#equals(Object)}.
+ */
+class KeyDataType implements DataType {
+
+    static final KeyDataType INSTANCE = new KeyDataType();
+
+    private static final byte MIN_KEY = 0;
+    private static final byte MISSING = 1;
+    private static final byte NULL = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte STRING = 6;
+    private static final byte DOCUMENT = 7;
+    private static final byte LIST = 8;
+    private static final byte BINARY = 9;
+    private static final byte UUID_VALUE = 10;
+    private static final byte OBJECT_ID = 11;
+    private static final byte FALSE = 12;
+    private static final byte TRUE = 13;
+    private static final byte DATE = 14;
+    private static final byte TIMESTAMP = 15;
+    private static final byte REGULAR_EXPRESSION = 16;
+    private static final byte SERIALIZED = 17;
+    private static final byte MAX_KEY = 18;
+
+    private static final int OBJECT_ID_LENGTH = 12;
+
+    private KeyDataType() {
+    }
+
+    /**
+     * Returns a key that sorts before all values of the type of the given value and
+     * after all values of the preceding types. It is only used to look up keys.
+     */
+    static Object lowerTypeBound(Object value) {
+        return new TypeBound(getTypeOrder(value), -1);
+    }
+
+    /**
+     * Returns a key that sorts after all values of the type of the given value and
+     * before all values of the following types. It is only used to look up keys.
+     */
+    static Object upperTypeBound(Object value) {
+        return new TypeBound(getTypeOrder(value), 1);
+    }
+
+    private static final class TypeBound {
+
+        private final int typeOrder;
+        private final int boundOrder;
+
+        private TypeBound(int typeOrder, int boundOrder) {
+            this.typeOrder = typeOrder;
+            this.boundOrder = boundOrder;
+        }
+
+    }
+
+    @Override
+    public int compare(Object a, Object b) {
+        if (a == b) {
+            return 0;
+        }
+        int typeOrder = getTypeOrder(a);
+        int compareTypes = Integer.compare(typeOrder, getTypeOrder(b));
+        if (compareTypes != 0) {
+            return compareTypes;
+        }
+        if (a instanceof TypeBound || b instanceof TypeBound) {
+            return Integer.compare(getBoundOrder(a), getBoundOrder(b));
+        }
+        if (typeOrder == SERIALIZED) {
+            int compare = a.getClass().getName().compareTo(b.getClass().getName());
+            return compare != 0 ? compare : compareBytes(serialize(a), serialize(b));
+        } else if (a instanceof Number) {
+            return compareNumbers((Number) a, (Number) b);
+        } else if (a instanceof String) {
+            return ((String) a).compareTo((String) b);
+        } else if (a instanceof Document) {
+            return compareDocuments((Document) a, (Document) b);
+        } else if (a instanceof Collection) {
+            return compareCollections((Collection<?>) a, (Collection<?>) b);
+        } else if (a instanceof byte[]) {
+            return compareBytes((byte[]) a, (byte[]) b);
+        } else if (a instanceof UUID) {
+            return ((UUID) a).compareTo((UUID) b);
+        } else if (a instanceof ObjectId) {
+            return ((ObjectId) a).compareTo((ObjectId) b);
+        } else if (a instanceof Boolean) {
+            return Boolean.compare(((Boolean) a).booleanValue(), ((Boolean) b).booleanValue());
+        } else if (a instanceof Date) {
+            return Long.compare(((Date) a).getTime(), ((Date) b).getTime());
+        } else if (a instanceof BsonTimestamp) {
+            return Long.compare(((BsonTimestamp) a).getTimestamp(), ((BsonTimestamp) b).getTimestamp());
+        } else if (a instanceof BsonRegularExpression) {
+            BsonRegularExpression regex1 = (BsonRegularExpression) a;
+            BsonRegularExpression regex2 = (BsonRegularExpression) b;
+            int compare = regex1.getPattern().compareTo(regex2.getPattern());
+            return compare != 0 ? compare : regex1.getOptions().compareTo(regex2.getOptions());
+        }
+        // null, Missing, MinKey and MaxKey
+        return 0;
+    }
+
+    private static int getBoundOrder(Object value) {
+        return value instanceof TypeBound ? ((TypeBound) value).boundOrder : 0;
+    }
+
+    private static int getTypeOrder(Object value) {
+        if (value instanceof TypeBound) {
+            return ((TypeBound) value).typeOrder;
+        } else if (value == null) {
+            return NULL;
+        } else if (value instanceof Missing) {
+            return MISSING;
+        } else if (value instanceof MinKey) {
+            return MIN_KEY;
+        } else if (value instanceof MaxKey) {
+            return MAX_KEY;
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Double) {
+            return INT;
+        } else if (value instanceof String) {
+            return STRING;
+        } else if (value instanceof Document) {
+            return DOCUMENT;
+        } else if (value instanceof Collection) {
+            return LIST;
+        } else if (value instanceof byte[]) {
+            return BINARY;
+        } else if (value instanceof UUID) {
+            return UUID_VALUE;
+        } else if (value instanceof ObjectId) {
+            return OBJECT_ID;
+        } else if (value instanceof Boolean) {
+            return FALSE;
+        } else if (value instanceof Date) {
+            return DATE;
+        } else if (value instanceof BsonTimestamp) {
+            return TIMESTAMP;
+        } else if (value instanceof BsonRegularExpression) {
+            return REGULAR_EXPRESSION;
+        } else {
+            return SERIALIZED;
+        }
+    }
+
+    private static int compareNumbers(Number a, Number b) {
+        if (!(a instanceof Double) && !(b instanceof Double)) {
+            int compare = Long.compare(a.longValue(), b.longValue());
+            return compare != 0 ? compare : Boolean.compare(a instanceof Long, b instanceof Long);
+        }
+        int compare = Double.compare(a.doubleValue(), b.doubleValue());
+        if (compare != 0) {
+            return compare;
+        }
+        if (a instanceof Long && !(b instanceof Long)) {
+            // large longs can be rounded to the same double
+            compare = Long.compare(a.longValue(), (long) b.doubleValue());
+        } else if (b instanceof Long && !(a instanceof Long)) {
+            compare = Long.compare((long) a.doubleValue(), b.longValue());
+        }
+        return compare != 0 ? compare : Integer.compare(getNumberTypeOrder(a), getNumberTypeOrder(b));
+    }
+
+    private static int getNumberTypeOrder(Number value) {
+        if (value instanceof Integer) {
+            return INT;
+        } else if (value instanceof Long) {
+            return LONG;
+        } else {
+            return DOUBLE;
+        }
+    }
+
+    private int compareDocuments(Document a, Document b) {
+        Iterator<Entry<String, Object>> iterator1 = a.entrySet().iterator();
+        Iterator<Entry<String, Object>> iterator2 = b.entrySet().iterator();
+        while (iterator1.hasNext() && iterator2.hasNext()) {
+            Entry<String, Object> entry1 = iterator1.next();
+            Entry<String, Object> entry2 = iterator2.next();
+            int compare = entry1.getKey().compareTo(entry2.getKey());
+            if (compare == 0) {
+                compare = compare(entry1.getValue(), entry2.getValue());
+            }
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return Boolean.compare(iterator1.hasNext(), iterator2.hasNext());
+    }
+
+    private int compareCollections(Collection<?> a, Collection<?> b) {
+        Iterator<?> iterator1 = a.iterator();
+        Iterator<?> iterator2 = b.iterator();
+        while (iterator1.hasNext() && iterator2.hasNext()) {
+            int compare = compare(iterator1.next(), iterator2.next());
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return Boolean.compare(iterator1.hasNext(), iterator2.hasNext());
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        if (a.length != b.length) {
+            return Integer.compare(a.length, b.length);
+        }
+        for (int i = 0; i < a.length; i++) {
+            int compare = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public int getMemory(Object obj) {
+        return estimateMemory(obj);
+    }
+
+    static int estimateMemory(Object value) {
+        if (value instanceof String) {
+            return 40 + 2 * ((String) value).length();
+        } else if (value instanceof Document) {
+            int memory = 64;
+            for (Entry<String, Object> entry : ((Document) value).entrySet()) {
+                memory += 16 + estimateMemory(entry.getKey()) + estimateMemory(entry.getValue());
+            }
+            return memory;
+        } else if (value instanceof Collection) {
+            int memory = 40;
+            for (Object element : (Collection<?>) value) {
+                memory += 8 + estimateMemory(element);
+            }
+            return memory;
+        } else if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        } else {
+            return 24;
+        }
+    }
+
+    @Override
+    public void write(WriteBuffer buff, Object obj) {
+        if (obj == null) {
+            buff.put(NULL);
+        } else if (obj instanceof Missing) {
+            buff.put(MISSING);
+        } else if (obj instanceof MinKey) {
+            buff.put(MIN_KEY);
+        } else if (obj instanceof MaxKey) {
+            buff.put(MAX_KEY);
+        } else if (obj instanceof Integer) {
+            int value = ((Integer) obj).intValue();
+            buff.put(INT).putVarInt((value << 1) ^ (value >> 31));
+        } else if (obj instanceof Long) {
+            long value = ((Long) obj).longValue();
+            buff.put(LONG).putVarLong((value << 1) ^ (value >> 63));
+        } else if (obj instanceof Double) {
+            buff.put(DOUBLE).putDouble(((Double) obj).doubleValue());
+        } else if (obj instanceof String) {
+            buff.put(STRING);
+            writeString(buff, (String) obj);
+        } else if (obj instanceof Document) {
+            Document document = (Document) obj;
+            buff.put(DOCUMENT).putVarInt(document.size());
+            for (Entry<String, Object> entry : document.entrySet()) {
+                writeString(buff, entry.getKey());
+                write(buff, entry.getValue());
+            }
+        } else if (obj instanceof Collection) {
+            Collection<?> collection = (Collection<?>) obj;
+            buff.put(LIST).putVarInt(collection.size());
+            for (Object element : collection) {
+                write(buff, element);
+            }
+        } else if (obj instanceof byte[]) {
+            byte[] bytes = (byte[]) obj;
+            buff.put(BINARY).putVarInt(bytes.length).put(bytes);
+        } else if (obj instanceof UUID) {
+            UUID uuid = (UUID) obj;
+            buff.put(UUID_VALUE).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+        } else if (obj instanceof ObjectId) {
+            buff.put(OBJECT_ID).put(((ObjectId) obj).toByteArray());
+        } else if (obj instanceof Boolean) {
+            buff.put(((Boolean) obj).booleanValue() ? TRUE : FALSE);
+        } else if (obj instanceof Date) {
+            buff.put(DATE).putLong(((Date) obj).getTime());
+        } else if (obj instanceof BsonTimestamp) {
+            buff.put(TIMESTAMP).putLong(((BsonTimestamp) obj).getTimestamp());
+        } else if (obj instanceof BsonRegularExpression) {
+            BsonRegularExpression regex = (BsonRegularExpression) obj;
+            buff.put(REGULAR_EXPRESSION);
+            writeString(buff, regex.getPattern());
+            writeString(buff, regex.getOptions());
+        } else {
+            byte[] bytes = serialize(obj);
+            buff.put(SERIALIZED).putVarInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static void writeString(WriteBuffer buff, String value) {
+        buff.putVarInt(value.length()).putStringData(value, value.length());
+    }
+
+    @Override
+    public void write(WriteBuffer buff, Object[] obj, int len, boolean key) {
+        for (int i = 0; i < len; i++) {
+            write(buff, obj[i]);
+        }
+    }
+
+    @Override
+    public Object read(ByteBuffer buff) {
+        byte tag = buff.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case MISSING:
+                return Missing.getInstance();
+            case MIN_KEY:
+                return MinKey.getInstance();
+            case MAX_KEY:
+                return MaxKey.getInstance();
+            case INT: {
+                int value = DataUtils.readVarInt(buff);
+                return Integer.valueOf((value >>> 1) ^ -(value & 1));
+            }
+            case LONG: {
+                long value = DataUtils.readVarLong(buff);
+                return Long.valueOf((value >>> 1) ^ -(value & 1));
+            }
+            case DOUBLE:
+                return Double.valueOf(buff.getDouble());
+            case STRING:
+                return readString(buff);
+            case DOCUMENT: {
+                int size = DataUtils.readVarInt(buff);
+                Document document = new Document();
+                for (int i = 0; i < size; i++) {
+                    String key = readString(buff);
+                    document.put(key, read(buff));
+                }
+                return document;
+            }
+            case LIST: {
+                int size = DataUtils.readVarInt(buff);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(read(buff));
+                }
+                return list;
+            }
+            case BINARY: {
+                byte[] bytes = new byte[DataUtils.readVarInt(buff)];
+                buff.get(bytes);
+                return bytes;
+            }
+            case UUID_VALUE:
+                return new UUID(buff.getLong(), buff.getLong());
+            case OBJECT_ID: {
+                byte[] bytes = new byte[OBJECT_ID_LENGTH];
+                buff.get(bytes);
+                return new ObjectId(bytes);
+            }
+            case FALSE:
+                return Boolean.FALSE;
+            case TRUE:
+                return Boolean.TRUE;
+            case DATE:
+                return new Date(buff.getLong());
+            case TIMESTAMP:
+                return new BsonTimestamp(buff.getLong());
+            case REGULAR_EXPRESSION: {
+                String pattern = readString(buff);
+                return new BsonRegularExpression(pattern, readString(buff));
+            }
+            case SERIALIZED: {
+                byte[] bytes = new byte[DataUtils.readVarInt(buff)];
+                buff.get(bytes);
+                return deserialize(bytes);
+            }
+            default:
+                throw new MongoServerException("unknown key type: " + tag);
+        }
+    }
+
+    private static String readString(ByteBuffer buff) {
+        return DataUtils.readString(buff, DataUtils.readVarInt(buff));
+    }
+
+    @Override
+    public void read(ByteBuffer buff, Object[] obj, int len, boolean key) {
+        for (int i = 0; i < len; i++) {
+            obj[i] = read(buff);
+        }
+    }
+
+    private static byte[] serialize(Object value) {
+        if (!(value instanceof Serializable)) {
+            throw new MongoServerException("cannot store " + value.getClass());
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        } catch (IOException e) {
+            throw new MongoServerException("failed to serialize " + value, e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new MongoServerException("failed to deserialize a key", e);
+        }
+    }
+
+}
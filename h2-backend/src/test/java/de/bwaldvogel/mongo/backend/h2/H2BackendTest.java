@@ -0,0 +1,227 @@
+package de.bwaldvogel.mongo.backend.h2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.bwaldvogel.mongo.backend.Utils;
+import de.bwaldvogel.mongo.bson.Document;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+public class H2BackendTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testMigrateSerializedDocuments() throws Exception {
+        File file = tempFolder.newFile("legacy.mv");
+
+        // maps with the default data type, as written by earlier versions
+        MVStore legacyStore = MVStore.open(file.toString());
+        legacyStore.<Object, Document> openMap("databases.testdb.system.namespaces")
+            .put("testdb.testcoll", new Document("name", "testdb.testcoll"));
+        legacyStore.<Object, Document> openMap("databases.testdb.system.indexes")
+            .put(UUID.randomUUID(), new Document("name", "_id_").append("ns", "testdb.testcoll")
+                .append("key", new Document("_id", 1)));
+        MVMap<Object, Document> legacyData = legacyStore.openMap("databases.testdb.testcoll");
+        legacyData.put(1, new Document("_id", 1).append("tags", Arrays.asList("a", "b")));
+        legacyData.put("x", new Document("_id", "x").append("sub", new Document("value", 2.5)));
+        MVMap<List<Object>, Object> legacyIndex = legacyStore.openMap("testdb.testcoll._index__id.ASC");
+        legacyIndex.put(Collections.singletonList(1.0), 1);
+        legacyIndex.put(Collections.singletonList("x"), "x");
+        legacyStore.close();
+
+        H2Backend backend = new H2Backend(file.toString());
+        backend.close();
+
+        MVStore store = MVStore.open(file.toString());
+        try {
+            assertThat(store.getMapNames()).doesNotHaveDuplicates()
+                .noneMatch(mapName -> mapName.startsWith("migration."));
+
+            MVMap<Object, Document> data = H2Database.openDataMap(store, "databases.testdb.testcoll");
+            assertThat(data.keyList()).containsExactly(1, "x");
+            assertThat(data.get(1)).isEqualTo(new Document("_id", 1).append("tags", Arrays.asList("a", "b")));
+            assertThat(data.get("x")).isEqualTo(new Document("_id", "x").append("sub", new Document("value", 2.5)));
+
+            MVMap<List<Object>, Object> index = H2Database.openIndexMap(store, "testdb.testcoll._index__id.ASC");
+            assertThat(index.get(Collections.singletonList(1.0))).isEqualTo(1);
+            assertThat(index.get(Collections.singletonList("x"))).isEqualTo("x");
+        } finally {
+            store.close();
+        }
+
+        // opening the migrated store again must not migrate it a second time
+        new H2Backend(file.toString()).close();
+    }
+
+    @Test
+    public void testResumeInterruptedMigration() throws Exception {
+        File file = tempFolder.newFile("interrupted.mv");
+
+        MVStore legacyStore = MVStore.open(file.toString());
+        legacyStore.<Object, Document> openMap("databases.testdb.first")
+            .put(1, new Document("_id", 1).append("value", "a"));
+        legacyStore.<Object, Document> openMap("databases.testdb.second")
+            .put(2, new Document("_id", 2).append("value", "b"));
+        legacyStore.close();
+
+        new H2Backend(file.toString()).close();
+
+        // the state of a migration that was saved after some maps were migrated
+        MVStore store = MVStore.open(file.toString());
+        store.openMap("format").remove("version");
+        store.<Object, Document> openMap("databases.testdb.third")
+            .put(3, new Document("_id", 3).append("value", "c"));
+        // the legacy map was removed after the copy but the copy was not renamed yet
+        store.openMap("format").remove("databases.testdb.second");
+        store.renameMap(H2Database.openDataMap(store, "databases.testdb.second"), "migration.databases.testdb.second");
+        store.close();
+
+        new H2Backend(file.toString()).close();
+
+        store = MVStore.open(file.toString());
+        try {
+            assertThat(store.getMapNames()).noneMatch(mapName -> mapName.startsWith("migration."));
+            assertThat(H2Database.openDataMap(store, "databases.testdb.first").get(1))
+                .isEqualTo(new Document("_id", 1).append("value", "a"));
+            assertThat(H2Database.openDataMap(store, "databases.testdb.second").get(2))
+                .isEqualTo(new Document("_id", 2).append("value", "b"));
+            assertThat(H2Database.openDataMap(store, "databases.testdb.third").get(3))
+                .isEqualTo(new Document("_id", 3).append("value", "c"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testRecalculateStaleDataSize() throws Exception {
+        File file = tempFolder.newFile("stale.mv");
+
+        H2Backend backend = new H2Backend(file.toString());
+        backend.close();
+
+        // a store that was not closed cleanly after the data size was marked as stale
+        MVStore store = MVStore.open(file.toString());
+        H2Database.openDataMap(store, "databases.testdb.system.namespaces")
+            .put("testdb.testcoll", new Document("name", "testdb.testcoll"));
+        MVMap<Object, Document> data = H2Database.openDataMap(store, "databases.testdb.testcoll");
+        data.put(1, new Document("_id", 1).append("value", "abc"));
+        data.put(2, new Document("_id", 2));
+        MVMap<String, Object> meta = store.openMap("meta.testdb.testcoll");
+        meta.put("dataSize", Long.valueOf(1));
+        meta.put("dataSizeStale", Boolean.TRUE);
+        store.close();
+
+        long expectedDataSize = Utils.calculateSize(new Document("_id", 1).append("value", "abc"))
+            + Utils.calculateSize(new Document("_id", 2));
+
+        backend = new H2Backend(file.toString());
+        try {
+            Document stats = backend.handleCommand(new EmbeddedChannel(), "testdb", "collStats", new Document("collStats", "testcoll"));
+            assertThat(stats.get("size")).isEqualTo(expectedDataSize);
+        } finally {
+            backend.close();
+        }
+
+        store = MVStore.open(file.toString());
+        try {
+            meta = store.openMap("meta.testdb.testcoll");
+            assertThat(meta.get("dataSize")).isEqualTo(expectedDataSize);
+            assertThat(meta).doesNotContainKey("dataSizeStale");
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testBuilderSchedulesCompaction() throws Exception {
+        File file = tempFolder.newFile("compaction.mv");
+
+        H2Backend backend = H2Backend.builder()
+            .fileName(file.toString())
+            .cacheSizeMb(4)
+            .autoCommitDelayMillis(0)
+            .retentionTimeMillis(1000)
+            .compress()
+            .compactionIntervalMillis(10)
+            .compactionFillRateThreshold(100)
+            .build();
+        try {
+            EmbeddedChannel channel = new EmbeddedChannel();
+            List<Document> documents = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                documents.add(new Document("_id", i).append("value", UUID.randomUUID().toString()));
+            }
+            backend.handleCommand(channel, "testdb", "insert", new Document("insert", "testcoll").append("documents", documents));
+            backend.commit();
+            backend.handleCommand(channel, "testdb", "delete", new Document("delete", "testcoll")
+                .append("deletes", Collections.singletonList(new Document("q", new Document("_id", new Document("$gte", 500))).append("limit", 0))));
+            backend.commit();
+
+            // the store is read while it is compacted
+            Document compactionStats = null;
+            for (int attempt = 0; attempt < 500; attempt++) {
+                Document result = backend.handleCommand(channel, "testdb", "count", new Document("count", "testcoll")
+                    .append("query", new Document("value", new Document("$exists", true))));
+                assertThat(result.get("n")).isEqualTo(500);
+                Document stats = backend.handleCommand(channel, "testdb", "dbStats", new Document("dbStats", 1));
+                compactionStats = (Document) stats.get("compaction");
+                if (((Number) compactionStats.get("runs")).longValue() > 0) {
+                    break;
+                }
+                Thread.sleep(10);
+            }
+            assertThat(compactionStats.get("runs")).isNotEqualTo(0L);
+            assertThat(compactionStats.get("fillRateThreshold")).isEqualTo(100);
+            assertThat(compactionStats).containsKeys("chunkFillRate", "fileFillRate", "reclaimedBytes", "lastRun", "lastRunMillis");
+        } finally {
+            backend.close();
+        }
+
+        backend = H2Backend.builder().fileName(file.toString()).build();
+        try {
+            EmbeddedChannel channel = new EmbeddedChannel();
+            Document dbStats = backend.handleCommand(channel, "testdb", "dbStats", new Document("dbStats", 1));
+            assertThat((Document) dbStats.get("compaction")).containsEntry("fillRateThreshold", 50);
+            Document collStats = backend.handleCommand(channel, "testdb", "collStats", new Document("collStats", "testcoll"));
+            assertThat(collStats.get("count")).isEqualTo(500);
+        } finally {
+            backend.close();
+        }
+    }
+
+    @Test
+    public void testBuilderRejectsZeroRetentionTimeWithCompaction() throws Exception {
+        File file = tempFolder.newFile("retention.mv");
+
+        assertThatExceptionOfType(IllegalArgumentException.class)
+            .isThrownBy(() -> H2Backend.builder().fileName(file.toString()).retentionTimeMillis(0).build())
+            .withMessage("Illegal retention time with background compaction: 0");
+
+        H2Backend backend = H2Backend.builder()
+            .fileName(file.toString())
+            .retentionTimeMillis(0)
+            .compactionIntervalMillis(0)
+            .build();
+        try {
+            assertThat(backend.getCompactionStats()).isNull();
+        } finally {
+            backend.close();
+        }
+    }
+
+}
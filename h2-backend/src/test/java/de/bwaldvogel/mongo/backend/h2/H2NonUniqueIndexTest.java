@@ -0,0 +1,53 @@
+package de.bwaldvogel.mongo.backend.h2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Collections;
+import java.util.Date;
+
+import org.h2.mvstore.MVStore;
+import org.junit.After;
+import org.junit.Test;
+
+import de.bwaldvogel.mongo.backend.IndexKey;
+import de.bwaldvogel.mongo.bson.Document;
+
+public class H2NonUniqueIndexTest {
+
+    private final MVStore mvStore = MVStore.open(null);
+    private final H2NonUniqueIndex index = new H2NonUniqueIndex(H2Database.openIndexMap(mvStore, "testdb.testcoll._index_a"),
+        Collections.singletonList(new IndexKey("a", true)));
+
+    @After
+    public void tearDown() {
+        mvStore.close();
+    }
+
+    @Test
+    public void testRangeQueriesWithMixedTypes() throws Exception {
+        index.add(new Document("a", null), 1);
+        index.add(new Document("a", 1), 2);
+        index.add(new Document("a", 2.5), 3);
+        index.add(new Document("a", 2.5), 4);
+        index.add(new Document("a", "abc"), 5);
+        index.add(new Document("a", "xyz"), 6);
+        index.add(new Document("a", true), 7);
+        index.add(new Document("a", new Date(1000)), 8);
+
+        assertThat(index.getPositions(new Document("a", new Document("$gte", 2)))).containsExactly(3, 4);
+        assertThat(index.getPositions(new Document("a", new Document("$gte", 0)))).containsExactly(2, 3, 4);
+        assertThat(index.getPositions(new Document("a", new Document("$lte", 2.5)))).containsExactly(2, 3, 4);
+        assertThat(index.getPositions(new Document("a", new Document("$gte", "b")))).containsExactly(6);
+        assertThat(index.getPositions(new Document("a", new Document("$lte", "b")))).containsExactly(5);
+        assertThat(index.getPositions(new Document("a", new Document("$gte", new Date(0))))).containsExactly(8);
+        assertThat(index.getPositions(new Document("a", new Document("$gte", 10)))).isEmpty();
+
+        assertThat(index.estimateCount(new Document("a", new Document("$gte", 2)))).isEqualTo(2);
+        assertThat(index.estimateCount(new Document("a", new Document("$gte", 0)))).isEqualTo(3);
+        assertThat(index.estimateCount(new Document("a", new Document("$lte", 2.5)))).isEqualTo(3);
+        assertThat(index.estimateCount(new Document("a", new Document("$gte", "b")))).isEqualTo(1);
+        assertThat(index.estimateCount(new Document("a", new Document("$lte", "b")))).isEqualTo(1);
+        assertThat(index.estimateCount(new Document("a", new Document("$gte", 10)))).isZero();
+    }
+
+}
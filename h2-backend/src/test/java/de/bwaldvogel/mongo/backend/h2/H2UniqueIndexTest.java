@@ -0,0 +1,45 @@
+package de.bwaldvogel.mongo.backend.h2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Collections;
+import java.util.Date;
+
+import org.h2.mvstore.MVStore;
+import org.junit.After;
+import org.junit.Test;
+
+import de.bwaldvogel.mongo.backend.IndexKey;
+import de.bwaldvogel.mongo.bson.Document;
+
+public class H2UniqueIndexTest {
+
+    private final MVStore mvStore = MVStore.open(null);
+    private final H2UniqueIndex index = new H2UniqueIndex(H2Database.openIndexMap(mvStore, "testdb.testcoll._index_a"),
+        Collections.singletonList(new IndexKey("a", true)));
+
+    @After
+    public void tearDown() {
+        mvStore.close();
+    }
+
+    @Test
+    public void testRangeQueriesWithMixedTypes() throws Exception {
+        index.add(new Document("a", null), 1);
+        index.add(new Document("a", 1), 2);
+        index.add(new Document("a", 2.5), 3);
+        index.add(new Document("a", "abc"), 4);
+        index.add(new Document("a", "xyz"), 5);
+        index.add(new Document("a", true), 6);
+        index.add(new Document("a", new Date(1000)), 7);
+
+        assertThat(index.getPositions(new Document("a", new Document("$gte", 2)))).containsExactly(3);
+        assertThat(index.getPositions(new Document("a", new Document("$gte", 0)))).containsExactly(2, 3);
+        assertThat(index.getPositions(new Document("a", new Document("$lte", 2.5)))).containsExactly(2, 3);
+        assertThat(index.getPositions(new Document("a", new Document("$gte", "b")))).containsExactly(5);
+        assertThat(index.getPositions(new Document("a", new Document("$lte", "b")))).containsExactly(4);
+        assertThat(index.getPositions(new Document("a", new Document("$gte", new Date(0))))).containsExactly(7);
+        assertThat(index.getPositions(new Document("a", new Document("$gte", 10)))).isEmpty();
+    }
+
+}
@@ -0,0 +1,87 @@
+package de.bwaldvogel.mongo.backend.h2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.h2.mvstore.WriteBuffer;
+import org.junit.Test;
+
+import de.bwaldvogel.mongo.backend.Missing;
+import de.bwaldvogel.mongo.bson.BsonRegularExpression;
+import de.bwaldvogel.mongo.bson.BsonTimestamp;
+import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.bson.MaxKey;
+import de.bwaldvogel.mongo.bson.MinKey;
+import de.bwaldvogel.mongo.bson.ObjectId;
+
+public class KeyDataTypeTest {
+
+    private final KeyDataType dataType = KeyDataType.INSTANCE;
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        List<Object> values = Arrays.asList(null, Missing.getInstance(), MinKey.getInstance(), MaxKey.getInstance(),
+            0, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE, 42L, -0.5, Double.NaN, "", "abcä",
+            new Document("a", 1).append("b", Arrays.asList(1, "x")), new ArrayList<>(Arrays.asList(1.0, null)),
+            new ObjectId(), UUID.randomUUID(), true, false, new Date(1234), new BsonTimestamp(5678),
+            new BsonRegularExpression("^a", "i"));
+
+        WriteBuffer buffer = new WriteBuffer();
+        dataType.write(buffer, values.toArray(), values.size(), true);
+        ByteBuffer bytes = buffer.getBuffer();
+        bytes.flip();
+
+        Object[] readValues = new Object[values.size()];
+        dataType.read(bytes, readValues, readValues.length, true);
+
+        assertThat(readValues).hasSize(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            assertThat(dataType.compare(readValues[i], values.get(i))).isZero();
+            if (values.get(i) != null) {
+                assertThat(readValues[i]).hasSameClassAs(values.get(i));
+            }
+        }
+        assertThat(bytes.hasRemaining()).isFalse();
+    }
+
+    @Test
+    public void testTypeBounds() throws Exception {
+        Object lowerNumberBound = KeyDataType.lowerTypeBound(2.5);
+        Object upperNumberBound = KeyDataType.upperTypeBound(2.5);
+
+        assertThat(dataType.compare(null, lowerNumberBound)).isNegative();
+        assertThat(dataType.compare(lowerNumberBound, Double.NEGATIVE_INFINITY)).isNegative();
+        assertThat(dataType.compare(lowerNumberBound, upperNumberBound)).isNegative();
+        assertThat(dataType.compare(Long.MAX_VALUE, upperNumberBound)).isNegative();
+        assertThat(dataType.compare(Double.POSITIVE_INFINITY, upperNumberBound)).isNegative();
+        assertThat(dataType.compare(upperNumberBound, "")).isNegative();
+        assertThat(dataType.compare(KeyDataType.upperTypeBound("x"), KeyDataType.lowerTypeBound(new Document()))).isNegative();
+        assertThat(dataType.compare(Collections.singletonList(upperNumberBound), Arrays.asList(1, 42L))).isPositive();
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        List<Object> expectedOrder = Arrays.asList(MinKey.getInstance(), Missing.getInstance(), null,
+            Double.NEGATIVE_INFINITY, -1L, 0, 0L, 0.0, 1.5, 2, 9007199254740992L, 9007199254740993L,
+            "", "a", "b",
+            new Document("a", 1), new Document("a", 1).append("b", 1), new Document("b", 0),
+            Collections.singletonList(1), Arrays.asList(1, 2),
+            new byte[] { 1 }, new byte[] { 0, 1 },
+            new ObjectId(new byte[12]), false, true, new Date(1), new BsonTimestamp(1),
+            MaxKey.getInstance());
+
+        List<Object> values = new ArrayList<>(expectedOrder);
+        Collections.reverse(values);
+        values.sort(dataType::compare);
+
+        assertThat(values).containsExactlyElementsOf(expectedOrder);
+    }
+
+}
@@ -1,5 +1,14 @@
 package de.bwaldvogel.mongo.backend.memory;
 
+import static de.bwaldvogel.mongo.backend.TestUtils.json;
+import static de.bwaldvogel.mongo.backend.TestUtils.toArray;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.junit.Test;
+
 import de.bwaldvogel.mongo.MongoBackend;
 import de.bwaldvogel.mongo.backend.AbstractBackendTest;
 import de.bwaldvogel.mongo.backend.h2.H2Backend;
@@ -11,4 +20,70 @@ public class H2BackendTest extends AbstractBackendTest {
         return H2Backend.inMemory();
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testRangeQueryOnIdExaminesOnlyKeysInRange() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            collection.insertOne(new Document("_id", i));
+            collection.insertOne(new Document("_id", "id" + i));
+        }
+
+        String collectionName = collection.getNamespace().getCollectionName();
+        Document explain = db.runCommand(new Document("explain", new Document("find", collectionName)
+            .append("filter", json("_id: {$gte: 10, $lt: 20}"))));
+        Document queryPlanner = (Document) explain.get("queryPlanner");
+        assertThat(queryPlanner.get("winningPlan"))
+            .isEqualTo(json("stage: 'FETCH', inputStage: {stage: 'IXSCAN', keyPattern: {_id: 1}, indexName: '_id_'}"));
+        Document executionStats = (Document) explain.get("executionStats");
+        assertThat(executionStats.get("nReturned")).isEqualTo(10);
+        assertThat(executionStats.get("totalKeysExamined")).isEqualTo(11L);
+
+        explain = db.runCommand(new Document("explain", new Document("find", collectionName)
+            .append("filter", json("_id: {$gt: 'id95'}"))));
+        executionStats = (Document) explain.get("executionStats");
+        assertThat(executionStats.get("nReturned")).isEqualTo(4);
+        assertThat(executionStats.get("totalKeysExamined")).isEqualTo(5L);
+    }
+
+    @Test
+    public void testNonUniqueIndex() throws Exception {
+        collection.createIndex(json("a: 1, b: 1"));
+        collection.insertOne(json("_id: 1, a: 1, b: 'x'"));
+        collection.insertOne(json("_id: 2, a: 1.0, b: 'y'"));
+        collection.insertOne(json("_id: 3, a: 2, b: 'x'"));
+        collection.insertOne(json("_id: 4, a: [2, 3], b: 'z'"));
+        collection.insertOne(json("_id: 5, a: 'abc'"));
+        collection.insertOne(json("_id: 6, a: 'abd'"));
+        collection.insertOne(json("_id: 7, b: 'x'"));
+
+        assertThat(toArray(collection.find(json("a: 1")))).extracting(document -> document.get("_id")).containsOnly(1, 2);
+        assertThat(toArray(collection.find(json("a: 2, b: 'x'")))).extracting(document -> document.get("_id")).containsOnly(3);
+        assertThat(toArray(collection.find(json("a: 2, c: null")))).extracting(document -> document.get("_id")).containsOnly(3, 4);
+        assertThat(toArray(collection.find(json("a: {$in: [1, 3]}")))).extracting(document -> document.get("_id")).containsOnly(1, 2, 4);
+        assertThat(toArray(collection.find(json("a: {$gt: 1, $lte: 3}")))).extracting(document -> document.get("_id")).containsOnly(3, 4);
+        assertThat(toArray(collection.find(json("a: {$lt: 'abd'}")))).extracting(document -> document.get("_id")).containsOnly(5);
+        assertThat(toArray(collection.find(json("a: {$regex: '^ab'}")))).extracting(document -> document.get("_id")).containsOnly(5, 6);
+        assertThat(toArray(collection.find(new Document("a", Pattern.compile("^abc")))))
+            .extracting(document -> document.get("_id")).containsOnly(5);
+
+        String collectionName = collection.getNamespace().getCollectionName();
+        Document explain = db.runCommand(new Document("explain", new Document("find", collectionName)
+            .append("filter", json("a: 2"))));
+        Document queryPlanner = (Document) explain.get("queryPlanner");
+        assertThat(queryPlanner.get("winningPlan"))
+            .isEqualTo(json("stage: 'FETCH', inputStage: {stage: 'IXSCAN', keyPattern: {a: 1, b: 1}, indexName: 'a_1_b_1'}"));
+        Document executionStats = (Document) explain.get("executionStats");
+        assertThat(executionStats.get("nReturned")).isEqualTo(2);
+        assertThat(executionStats.get("totalKeysExamined")).isEqualTo(2L);
+
+        collection.updateOne(json("_id: 4"), json("$set: {a: 1}"));
+        collection.deleteOne(json("_id: 1"));
+        collection.insertOne(json("_id: 8, a: 1"));
+
+        assertThat(toArray(collection.find(json("a: 1")))).extracting(document -> document.get("_id")).containsOnly(2, 4, 8);
+        assertThat(toArray(collection.find(json("a: 3")))).isEmpty();
+
+        collection.deleteMany(json("a: 1"));
+        assertThat(toArray(collection.find(json("a: {$gte: 0}")))).extracting(document -> document.get("_id")).containsOnly(3);
+    }
+
+}
@@ -30,6 +30,8 @@ public class H2OnDiskBackendTest extends AbstractBackendTest {
 
     private File tempFile;
 
+    private int prewarmParallelism;
+
     @Override
     public void setUp() throws Exception {
         tempFile = tempFolder.newFile(getClass().getSimpleName() + ".mv");
@@ -39,7 +41,7 @@ public class H2OnDiskBackendTest extends AbstractBackendTest {
 
     @Override
     protected MongoBackend createBackend() throws Exception {
-        backend = new H2Backend(tempFile.toString());
+        backend = new H2Backend(tempFile.toString(), prewarmParallelism);
         return backend;
     }
 
@@ -109,6 +111,46 @@ public class H2OnDiskBackendTest extends AbstractBackendTest {
         assertThat(statsAfter).isEqualTo(statsBefore);
     }
 
+    @Test
+    public void testShutdownAndRestartKeepsNonUniqueIndex() throws Exception {
+        collection.insertOne(json("_id: 1, a: 'x'"));
+        collection.insertOne(json("_id: 2, a: 'y'"));
+        collection.createIndex(json("a: 1"));
+        collection.insertOne(json("_id: 3, a: 'x'"));
+
+        restart();
+
+        collection.insertOne(json("_id: 4, a: 'x'"));
+        collection.deleteOne(json("_id: 1"));
+
+        assertThat(toArray(collection.find(json("a: 'x'")))).containsOnly(json("_id: 3, a: 'x'"), json("_id: 4, a: 'x'"));
+
+        String collectionName = collection.getNamespace().getCollectionName();
+        Document explain = db.runCommand(new Document("explain", new Document("find", collectionName)
+            .append("filter", json("a: 'x'"))));
+        Document executionStats = (Document) explain.get("executionStats");
+        assertThat(executionStats.get("totalKeysExamined")).isEqualTo(2L);
+    }
+
+    @Test
+    public void testShutdownAndRestartOpensDatabasesOnFirstAccess() throws Exception {
+        collection.createIndex(json("a: 1"));
+        collection.insertOne(json("_id: 1, a: 'x'"));
+        syncClient.getDatabase("otherdb").getCollection("coll").insertOne(json("_id: 1"));
+        syncClient.getDatabase("droppeddb").getCollection("coll").insertOne(json("_id: 1"));
+
+        prewarmParallelism = 2;
+        restart();
+
+        syncClient.getDatabase("droppeddb").drop();
+        getAdminDb().runCommand(new Document("renameCollection", "otherdb.coll")
+            .append("to", db.getName() + ".renamed"));
+
+        assertThat(toArray(collection.find(json("a: 'x'")))).containsExactly(json("_id: 1, a: 'x'"));
+        assertThat(toArray(db.getCollection("renamed").find())).containsExactly(json("_id: 1"));
+        assertThat(toArray(syncClient.listDatabaseNames())).containsExactly("otherdb", db.getName());
+    }
+
     private void restart() throws Exception {
         shutdownServer();
         spinUpServer();
@@ -0,0 +1,116 @@
+package de.bwaldvogel.mongo.backend.memory;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import de.bwaldvogel.mongo.bson.Document;
+
+/**
+ * The documents of a {@link MemoryCollection}, addressed by slot. Free slots are
+ * reused in LIFO order and an occupancy bitmap lets scans skip over empty regions.
+ * When more than half of the slots are free, {@link #compact(SlotMoveListener)}
+ * moves the remaining documents to the front and releases the unused capacity.
+ * Not thread-safe.
+ */
+class DocumentSlots {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    static final int MIN_FREE_SLOTS_FOR_COMPACTION = 1024;
+
+    interface SlotMoveListener {
+        void documentMoved(Document document, int newSlot);
+    }
+
+    private Document[] documents = new Document[INITIAL_CAPACITY];
+    private BitSet occupied = new BitSet();
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+    private int freeSlotCount;
+    private int end;
+    private int size;
+
+    int add(Document document) {
+        int slot;
+        if (freeSlotCount > 0) {
+            slot = freeSlots[--freeSlotCount];
+        } else {
+            slot = end++;
+            if (slot == documents.length) {
+                documents = Arrays.copyOf(documents, documents.length * 2);
+            }
+        }
+        documents[slot] = document;
+        occupied.set(slot);
+        size++;
+        return slot;
+    }
+
+    Document get(int slot) {
+        return documents[slot];
+    }
+
+    Document remove(int slot) {
+        Document document = documents[slot];
+        if (document == null) {
+            return null;
+        }
+        documents[slot] = null;
+        occupied.clear(slot);
+        size--;
+        if (freeSlotCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeSlotCount++] = slot;
+        return document;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the first occupied slot at or after the given slot or -1
+     */
+    int nextSlot(int fromSlot) {
+        return occupied.nextSetBit(fromSlot);
+    }
+
+    /**
+     * @return the last occupied slot at or before the given slot or -1
+     */
+    int previousSlot(int fromSlot) {
+        return occupied.previousSetBit(fromSlot);
+    }
+
+    int lastSlot() {
+        return end - 1;
+    }
+
+    boolean needsCompaction() {
+        return freeSlotCount >= MIN_FREE_SLOTS_FOR_COMPACTION && freeSlotCount > size;
+    }
+
+    /**
+     * Moves all documents to the front while keeping their order and shrinks the
+     * storage. The listener is notified about every document that changed its slot.
+     */
+    void compact(SlotMoveListener listener) {
+        Document[] compacted = new Document[Math.max(INITIAL_CAPACITY, size + size / 2)];
+        int targetSlot = 0;
+        for (int slot = occupied.nextSetBit(0); slot >= 0; slot = occupied.nextSetBit(slot + 1)) {
+            Document document = documents[slot];
+            compacted[targetSlot] = document;
+            if (slot != targetSlot) {
+                listener.documentMoved(document, targetSlot);
+            }
+            targetSlot++;
+        }
+        documents = compacted;
+        occupied = new BitSet(compacted.length);
+        occupied.set(0, size);
+        end = size;
+        freeSlots = new int[INITIAL_CAPACITY];
+        freeSlotCount = 0;
+    }
+
+}
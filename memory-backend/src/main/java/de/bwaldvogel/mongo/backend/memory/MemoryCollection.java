@@ -1,26 +1,30 @@
 package de.bwaldvogel.mongo.backend.memory;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Queue;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.bwaldvogel.mongo.backend.AbstractMongoCollection;
-import de.bwaldvogel.mongo.backend.DocumentComparator;
+import de.bwaldvogel.mongo.backend.DocumentWithPosition;
 import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.bson.DocumentShapes;
 
 public class MemoryCollection extends AbstractMongoCollection<Integer> {
 
     private static final Logger log = LoggerFactory.getLogger(MemoryCollection.class);
 
-    private List<Document> documents = new ArrayList<>();
-    private Queue<Integer> emptyPositions = new LinkedList<>();
+    private final DocumentSlots documents = new DocumentSlots();
+    // documents are updated in place, so the stored instance identifies its position
+    private Map<Document, Integer> positions = new IdentityHashMap<>();
+    private final DocumentShapes shapes = new DocumentShapes();
     private AtomicLong dataSize = new AtomicLong();
 
     public MemoryCollection(String databaseName, String collectionName, String idField) {
@@ -39,217 +43,103 @@ public class MemoryCollection extends AbstractMongoCollection<Integer> {
 
     @Override
     protected Integer addDocumentInternal(Document document) {
-        Integer position = emptyPositions.poll();
-        if (position == null) {
-            position = Integer.valueOf(documents.size());
-        }
-
-        if (position.intValue() == documents.size()) {
-            documents.add(document);
-        } else {
-            documents.set(position.intValue(), document);
-        }
+        document.shareKeys(shapes);
+        Integer position = Integer.valueOf(documents.add(document));
+        positions.put(document, position);
         return position;
     }
 
     @Override
     protected Iterable<Document> matchDocuments(Document query, Iterable<Integer> positions, Document orderBy, int numberToSkip, int numberToReturn) {
-
-        List<Document> matchedDocuments = new ArrayList<>();
-
-        for (Integer position : positions) {
-            Document document = getDocument(position);
-            if (documentMatchesQuery(document, query)) {
-                matchedDocuments.add(document);
-            }
-        }
-
-        sortDocumentsInMemory(matchedDocuments, orderBy);
-
-        if (numberToSkip > 0) {
-            matchedDocuments = matchedDocuments.subList(numberToSkip, matchedDocuments.size());
-        }
-
-        if (numberToReturn > 0 && matchedDocuments.size() > numberToReturn) {
-            matchedDocuments = matchedDocuments.subList(0, numberToReturn);
-        }
-
-        return matchedDocuments;
+        return matchDocumentsAtPositions(query, positions, orderBy, numberToSkip, numberToReturn);
     }
 
     @Override
     protected Iterable<Document> matchDocuments(Document query, Document orderBy, int numberToSkip,
             int numberToReturn) {
-        List<Document> matchedDocuments = new ArrayList<>();
-
-        boolean ascending = true;
-        if (orderBy != null && !orderBy.keySet().isEmpty()) {
-            if (orderBy.keySet().iterator().next().equals("$natural")) {
-                int sortValue = ((Integer) orderBy.get("$natural")).intValue();
-                if (sortValue == -1) {
-                    ascending = false;
-                }
-            }
-        }
-
-        for (Document document : iterateAllDocuments(ascending)) {
-            if (documentMatchesQuery(document, query)) {
-                matchedDocuments.add(document);
-            }
-        }
-
-        if (orderBy != null && !orderBy.keySet().isEmpty()) {
-            if (orderBy.keySet().iterator().next().equals("$natural")) {
-                // already sorted
-            } else {
-                matchedDocuments.sort(new DocumentComparator(orderBy));
-            }
-        }
-
-        if (numberToSkip > 0) {
-            if (numberToSkip < matchedDocuments.size()) {
-                matchedDocuments = matchedDocuments.subList(numberToSkip, matchedDocuments.size());
-            } else {
-                return Collections.emptyList();
-            }
-        }
-
-        if (numberToReturn > 0 && matchedDocuments.size() > numberToReturn) {
-            matchedDocuments = matchedDocuments.subList(0, numberToReturn);
-        }
-
-        return matchedDocuments;
+        boolean ascending = !isNaturalDescending(orderBy);
+        Stream<Document> documents = StreamSupport.stream(iterateAllDocuments(ascending).spliterator(), false);
+        return matchDocuments(query, documents, orderBy, numberToSkip, numberToReturn);
     }
 
-    private static abstract class AbstractDocumentIterator implements Iterator<Document> {
+    private static class DocumentIterator implements Iterator<Document> {
 
-        protected int pos;
-        protected final List<Document> documents;
-        protected Document current;
+        private final DocumentSlots documents;
+        private final boolean ascending;
+        private int slot;
 
-        protected AbstractDocumentIterator(List<Document> documents, int pos) {
+        DocumentIterator(DocumentSlots documents, boolean ascending) {
             this.documents = documents;
-            this.pos = pos;
+            this.ascending = ascending;
+            this.slot = ascending ? documents.nextSlot(0) : documents.previousSlot(documents.lastSlot());
         }
 
-        protected abstract Document getNext();
-
         @Override
         public boolean hasNext() {
-            if (current == null) {
-                current = getNext();
-            }
-            return (current != null);
+            return slot >= 0;
         }
 
         @Override
         public Document next() {
-            Document document = current;
-            current = getNext();
-            return document;
-        }
-
-        @Override
-        public void remove() {
-            throw new UnsupportedOperationException();
-        }
-
-    }
-
-    private static class DocumentIterator extends AbstractDocumentIterator {
-
-        protected DocumentIterator(List<Document> documents) {
-            super(documents, 0);
-        }
-
-        @Override
-        protected Document getNext() {
-            while (pos < documents.size()) {
-                Document document = documents.get(pos++);
-                if (document != null) {
-                    return document;
-                }
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
-            return null;
+            Document document = documents.get(slot);
+            slot = ascending ? documents.nextSlot(slot + 1) : documents.previousSlot(slot - 1);
+            return document;
         }
 
     }
 
-    private static class ReverseDocumentIterator extends AbstractDocumentIterator {
-
-        protected ReverseDocumentIterator(List<Document> documents) {
-            super(documents, documents.size() - 1);
-        }
-
-        @Override
-        protected Document getNext() {
-            while (pos >= 0) {
-                Document document = documents.get(pos--);
-                if (document != null) {
-                    return document;
-                }
-            }
-            return null;
-        }
-
+    private Iterable<Document> iterateAllDocuments(boolean ascending) {
+        return () -> new DocumentIterator(documents, ascending);
     }
 
-    private static class DocumentIterable implements Iterable<Document> {
-
-        private List<Document> documents;
-
-        public DocumentIterable(List<Document> documents) {
-            this.documents = documents;
-        }
-
-        @Override
-        public Iterator<Document> iterator() {
-            return new DocumentIterator(documents);
-        }
-
+    @Override
+    public synchronized int count() {
+        return documents.size();
     }
 
-    private static class ReverseDocumentIterable implements Iterable<Document> {
-
-        private List<Document> documents;
-
-        public ReverseDocumentIterable(List<Document> documents) {
-            this.documents = documents;
-        }
-
-        @Override
-        public Iterator<Document> iterator() {
-            return new ReverseDocumentIterator(documents);
+    @Override
+    protected Integer findDocumentPosition(Document document) {
+        Integer storedPosition = positions.get(document);
+        if (storedPosition != null) {
+            return storedPosition;
         }
-
-    }
-
-    private Iterable<Document> iterateAllDocuments(boolean ascending) {
-        if (ascending) {
-            return new DocumentIterable(documents);
-        } else {
-            return new ReverseDocumentIterable(documents);
+        for (int slot = documents.nextSlot(0); slot >= 0; slot = documents.nextSlot(slot + 1)) {
+            if (documents.get(slot).equals(document)) {
+                return Integer.valueOf(slot);
+            }
         }
+        return null;
     }
 
     @Override
-    public synchronized int count() {
-        return documents.size() - emptyPositions.size();
+    protected Stream<DocumentWithPosition<Integer>> streamAllDocumentsWithPosition() {
+        return IntStream.iterate(documents.nextSlot(0), slot -> documents.nextSlot(slot + 1))
+            .limit(documents.size())
+            .mapToObj(slot -> new DocumentWithPosition<>(documents.get(slot), Integer.valueOf(slot)));
     }
 
     @Override
-    protected Integer findDocumentPosition(Document document) {
-        int position = documents.indexOf(document);
-        if (position < 0) {
-            return null;
+    protected void removeDocument(Integer position) {
+        Document document = documents.remove(position.intValue());
+        if (document != null) {
+            positions.remove(document);
+        }
+        if (documents.needsCompaction()) {
+            compact();
         }
-        return Integer.valueOf(position);
     }
 
-    @Override
-    protected void removeDocument(Integer position) {
-        documents.set(position.intValue(), null);
-        emptyPositions.add(position);
+    private void compact() {
+        int slotsBefore = documents.lastSlot() + 1;
+        documents.compact((document, newSlot) -> {
+            Integer newPosition = Integer.valueOf(newSlot);
+            positions.put(document, newPosition);
+            updateIndexPositions(document, newPosition);
+        });
+        log.debug("compacted {} from {} to {} slots", getFullName(), slotsBefore, documents.size());
     }
 
     @Override
@@ -258,8 +148,9 @@ public class MemoryCollection extends AbstractMongoCollection<Integer> {
     }
 
     @Override
-    protected void handleUpdate(Document document) {
-        // noop
+    protected void handleUpdate(Integer position, Document document) {
+        // the document was changed in place and might have lost its shared keys
+        document.shareKeys(shapes);
     }
 
 }
@@ -0,0 +1,141 @@
+package de.bwaldvogel.mongo.backend.memory.index;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash map from primitive long keys to non-negative int values.
+ * Collisions are resolved by linear probing and removed entries are filled by
+ * shifting the following entries back, so lookups never allocate and there are no
+ * tombstones. Not thread-safe.
+ */
+class LongIntHashMap {
+
+    static final int NO_VALUE = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    LongIntHashMap() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NO_VALUE);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(long key) {
+        int mask = values.length - 1;
+        for (int slot = slot(key, mask); values[slot] != NO_VALUE; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * @return the previous value or {@link #NO_VALUE}
+     */
+    int put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Illegal value: " + value);
+        }
+        int mask = values.length - 1;
+        int slot = slot(key, mask);
+        for (; values[slot] != NO_VALUE; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                int oldValue = values[slot];
+                values[slot] = value;
+                return oldValue;
+            }
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > values.length * 3 / 4) {
+            resize(values.length * 2);
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * @return the removed value or {@link #NO_VALUE}
+     */
+    int remove(long key) {
+        int mask = values.length - 1;
+        for (int slot = slot(key, mask); values[slot] != NO_VALUE; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                int oldValue = values[slot];
+                removeSlot(slot, mask);
+                size--;
+                return oldValue;
+            }
+        }
+        return NO_VALUE;
+    }
+
+    private void removeSlot(int freeSlot, int mask) {
+        int slot = freeSlot;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (values[slot] == NO_VALUE) {
+                break;
+            }
+            int home = slot(keys[slot], mask);
+            // move the entry back unless its home slot lies cyclically in (freeSlot, slot]
+            if (((slot - home) & mask) >= ((slot - freeSlot) & mask)) {
+                keys[freeSlot] = keys[slot];
+                values[freeSlot] = values[slot];
+                freeSlot = slot;
+            }
+        }
+        values[freeSlot] = NO_VALUE;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != NO_VALUE) {
+                int slot = slot(oldKeys[i], mask);
+                while (values[slot] != NO_VALUE) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    interface EntryConsumer {
+        void accept(long key, int value);
+    }
+
+    void forEach(EntryConsumer consumer) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != NO_VALUE) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        return mix((int) (key ^ (key >>> 32))) & mask;
+    }
+
+    static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -1,24 +1,56 @@
 package de.bwaldvogel.mongo.backend.memory.index;
 
+import static de.bwaldvogel.mongo.backend.memory.index.LongIntHashMap.NO_VALUE;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import de.bwaldvogel.mongo.backend.AbstractUniqueIndex;
 import de.bwaldvogel.mongo.backend.IndexKey;
+import de.bwaldvogel.mongo.backend.Utils;
+import de.bwaldvogel.mongo.bson.ObjectId;
 
+/**
+ * Keys of compound indexes are stored as lists. Keys of single-field indexes are
+ * stored by type: numbers by the bits of their normalized double value and ObjectIds
+ * by their packed bytes in open addressing maps, strings in an ordered map that also
+ * serves prefix range scans and all other values in a map that compares them by
+ * {@link Object#equals(Object)}. Point lookups in a single-field index neither build
+ * a key list nor box the key.
+ */
 public class MemoryUniqueIndex extends AbstractUniqueIndex<Integer> {
 
-    private Map<List<Object>, Integer> index = new ConcurrentHashMap<>();
+    private final Map<List<Object>, Integer> index = new ConcurrentHashMap<>();
+
+    private final LongIntHashMap numberKeys = new LongIntHashMap();
+    private final ObjectIdIntHashMap objectIdKeys = new ObjectIdIntHashMap();
+    private final ObjectIntHashMap<Object> otherKeys = new ObjectIntHashMap<>();
+
+    private final NavigableMap<String, Integer> stringKeys = new ConcurrentSkipListMap<>();
+    // the size of the skip list is not constant-time
+    private int stringKeyCount;
 
     public MemoryUniqueIndex(List<IndexKey> keys) {
         super(keys);
     }
 
     @Override
-    public long getCount() {
-        return index.size();
+    public synchronized long getCount() {
+        if (isCompoundIndex()) {
+            return index.size();
+        }
+        return stringKeyCount + getNonStringKeyCount();
+    }
+
+    private long getNonStringKeyCount() {
+        return numberKeys.size() + objectIdKeys.size() + otherKeys.size();
     }
 
     @Override
@@ -28,28 +60,119 @@ public class MemoryUniqueIndex extends AbstractUniqueIndex<Integer> {
 
     @Override
     protected Integer removeDocument(List<Object> key) {
-        return index.remove(key);
+        if (isCompoundIndex()) {
+            return index.remove(key);
+        }
+        Object value = key.get(0);
+        int position;
+        if (value instanceof Number) {
+            position = numberKeys.remove(toLongBits((Number) value));
+        } else if (value instanceof ObjectId) {
+            position = objectIdKeys.remove((ObjectId) value);
+        } else if (value instanceof String) {
+            Integer removedPosition = stringKeys.remove(value);
+            if (removedPosition != null) {
+                stringKeyCount--;
+            }
+            return removedPosition;
+        } else {
+            position = otherKeys.remove(value);
+        }
+        return toPosition(position);
     }
 
     @Override
     protected boolean containsKey(List<Object> key) {
-        return index.containsKey(key);
+        return getPosition(key) != null;
     }
 
     @Override
     protected boolean putKeyPosition(List<Object> key, Integer position) {
-        Integer oldValue = index.put(key, position);
-        return oldValue == null;
+        if (isCompoundIndex()) {
+            return index.put(key, position) == null;
+        }
+        Object value = key.get(0);
+        int oldPosition;
+        if (value instanceof Number) {
+            oldPosition = numberKeys.put(toLongBits((Number) value), position.intValue());
+        } else if (value instanceof ObjectId) {
+            oldPosition = objectIdKeys.put((ObjectId) value, position.intValue());
+        } else if (value instanceof String) {
+            if (stringKeys.put((String) value, position) != null) {
+                return false;
+            }
+            stringKeyCount++;
+            return true;
+        } else {
+            oldPosition = otherKeys.put(value, position.intValue());
+        }
+        return oldPosition == NO_VALUE;
+    }
+
+    @Override
+    protected Iterable<Integer> getPositionsForStringRange(String fromInclusive, String toExclusive) {
+        // regular expressions also match the string form of other values
+        if (isCompoundIndex() || getNonStringKeyCount() > 0) {
+            return null;
+        }
+        if (toExclusive == null) {
+            return stringKeys.tailMap(fromInclusive, true).values();
+        }
+        return stringKeys.subMap(fromInclusive, true, toExclusive, false).values();
     }
 
     @Override
     protected Integer getPosition(List<Object> key) {
-        return index.get(key);
+        if (isCompoundIndex()) {
+            return index.get(key);
+        }
+        return getPositionForSingleValue(key.get(0));
+    }
+
+    @Override
+    protected Integer getPositionForSingleValue(Object value) {
+        int position;
+        if (value instanceof Number) {
+            position = numberKeys.get(toLongBits((Number) value));
+        } else if (value instanceof ObjectId) {
+            position = objectIdKeys.get((ObjectId) value);
+        } else if (value instanceof String) {
+            return stringKeys.get(value);
+        } else {
+            position = otherKeys.get(Utils.normalizeValue(value));
+        }
+        return toPosition(position);
     }
 
     @Override
     protected Iterable<Entry<List<Object>, Integer>> getIterable() {
-        return index.entrySet();
+        if (isCompoundIndex()) {
+            return index.entrySet();
+        }
+        List<Entry<List<Object>, Integer>> entries = new ArrayList<>();
+        numberKeys.forEach((bits, position) -> entries.add(entry(Double.longBitsToDouble(bits), position)));
+        objectIdKeys.forEach((objectId, position) -> entries.add(entry(objectId, position)));
+        stringKeys.forEach((value, position) -> entries.add(entry(value, position.intValue())));
+        otherKeys.forEach((value, position) -> entries.add(entry(value, position)));
+        return entries;
+    }
+
+    private static Entry<List<Object>, Integer> entry(Object value, int position) {
+        return new SimpleImmutableEntry<>(Collections.singletonList(value), Integer.valueOf(position));
+    }
+
+    /**
+     * Numbers are indexed by their normalized double value, see {@link Utils#normalizeValue(Object)}.
+     */
+    private static long toLongBits(Number value) {
+        return Double.doubleToLongBits(value.doubleValue());
+    }
+
+    private static Integer toPosition(int position) {
+        if (position == NO_VALUE) {
+            return null;
+        }
+        return Integer.valueOf(position);
     }
 
 }
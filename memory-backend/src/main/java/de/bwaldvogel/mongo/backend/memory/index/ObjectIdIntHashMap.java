@@ -0,0 +1,180 @@
+package de.bwaldvogel.mongo.backend.memory.index;
+
+import static de.bwaldvogel.mongo.backend.memory.index.LongIntHashMap.NO_VALUE;
+import static de.bwaldvogel.mongo.backend.memory.index.LongIntHashMap.mix;
+
+import java.util.Arrays;
+import java.util.function.ObjIntConsumer;
+
+import de.bwaldvogel.mongo.bson.ObjectId;
+
+/**
+ * An open addressing hash map from {@link ObjectId ObjectIds} to non-negative int
+ * values. The twelve bytes of an ObjectId are packed into a long and an int, so
+ * the map keeps no reference to the ObjectId instances.
+ *
+ * @see LongIntHashMap
+ */
+class ObjectIdIntHashMap {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] highKeys;
+    private int[] lowKeys;
+    private int[] values;
+    private int size;
+
+    ObjectIdIntHashMap() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        highKeys = new long[capacity];
+        lowKeys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NO_VALUE);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(ObjectId objectId) {
+        byte[] data = objectId.toByteArray();
+        long high = high(data);
+        int low = low(data);
+        int mask = values.length - 1;
+        for (int slot = slot(high, low, mask); values[slot] != NO_VALUE; slot = (slot + 1) & mask) {
+            if (highKeys[slot] == high && lowKeys[slot] == low) {
+                return values[slot];
+            }
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * @return the previous value or {@link LongIntHashMap#NO_VALUE}
+     */
+    int put(ObjectId objectId, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Illegal value: " + value);
+        }
+        byte[] data = objectId.toByteArray();
+        long high = high(data);
+        int low = low(data);
+        int mask = values.length - 1;
+        int slot = slot(high, low, mask);
+        for (; values[slot] != NO_VALUE; slot = (slot + 1) & mask) {
+            if (highKeys[slot] == high && lowKeys[slot] == low) {
+                int oldValue = values[slot];
+                values[slot] = value;
+                return oldValue;
+            }
+        }
+        highKeys[slot] = high;
+        lowKeys[slot] = low;
+        values[slot] = value;
+        if (++size > values.length * 3 / 4) {
+            resize(values.length * 2);
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * @return the removed value or {@link LongIntHashMap#NO_VALUE}
+     */
+    int remove(ObjectId objectId) {
+        byte[] data = objectId.toByteArray();
+        long high = high(data);
+        int low = low(data);
+        int mask = values.length - 1;
+        for (int slot = slot(high, low, mask); values[slot] != NO_VALUE; slot = (slot + 1) & mask) {
+            if (highKeys[slot] == high && lowKeys[slot] == low) {
+                int oldValue = values[slot];
+                removeSlot(slot, mask);
+                size--;
+                return oldValue;
+            }
+        }
+        return NO_VALUE;
+    }
+
+    private void removeSlot(int freeSlot, int mask) {
+        int slot = freeSlot;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (values[slot] == NO_VALUE) {
+                break;
+            }
+            int home = slot(highKeys[slot], lowKeys[slot], mask);
+            if (((slot - home) & mask) >= ((slot - freeSlot) & mask)) {
+                highKeys[freeSlot] = highKeys[slot];
+                lowKeys[freeSlot] = lowKeys[slot];
+                values[freeSlot] = values[slot];
+                freeSlot = slot;
+            }
+        }
+        values[freeSlot] = NO_VALUE;
+    }
+
+    private void resize(int capacity) {
+        long[] oldHighKeys = highKeys;
+        int[] oldLowKeys = lowKeys;
+        int[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != NO_VALUE) {
+                int slot = slot(oldHighKeys[i], oldLowKeys[i], mask);
+                while (values[slot] != NO_VALUE) {
+                    slot = (slot + 1) & mask;
+                }
+                highKeys[slot] = oldHighKeys[i];
+                lowKeys[slot] = oldLowKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    void forEach(ObjIntConsumer<ObjectId> consumer) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != NO_VALUE) {
+                consumer.accept(toObjectId(highKeys[i], lowKeys[i]), values[i]);
+            }
+        }
+    }
+
+    private static long high(byte[] data) {
+        long high = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (data[i] & 0xFF);
+        }
+        return high;
+    }
+
+    private static int low(byte[] data) {
+        int low = 0;
+        for (int i = 8; i < 12; i++) {
+            low = (low << 8) | (data[i] & 0xFF);
+        }
+        return low;
+    }
+
+    private static ObjectId toObjectId(long high, int low) {
+        byte[] data = new byte[12];
+        for (int i = 7; i >= 0; i--) {
+            data[i] = (byte) high;
+            high >>>= 8;
+        }
+        for (int i = 11; i >= 8; i--) {
+            data[i] = (byte) low;
+            low >>>= 8;
+        }
+        return new ObjectId(data);
+    }
+
+    private static int slot(long high, int low, int mask) {
+        return mix((int) (high ^ (high >>> 32)) * 31 + low) & mask;
+    }
+
+}
@@ -0,0 +1,152 @@
+package de.bwaldvogel.mongo.backend.memory.index;
+
+import static de.bwaldvogel.mongo.backend.memory.index.LongIntHashMap.NO_VALUE;
+import static de.bwaldvogel.mongo.backend.memory.index.LongIntHashMap.mix;
+
+import java.util.Arrays;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * An open addressing hash map from arbitrary keys, including null, to non-negative
+ * int values. Keys are compared with {@link Object#equals(Object)}.
+ *
+ * @see LongIntHashMap
+ */
+class ObjectIntHashMap<K> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Object[] keys;
+    private int[] values;
+    private int size;
+    private int nullKeyValue = NO_VALUE;
+
+    ObjectIntHashMap() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        keys = new Object[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NO_VALUE);
+    }
+
+    int size() {
+        return nullKeyValue == NO_VALUE ? size : size + 1;
+    }
+
+    int get(K key) {
+        if (key == null) {
+            return nullKeyValue;
+        }
+        int mask = values.length - 1;
+        for (int slot = slot(key, mask); values[slot] != NO_VALUE; slot = (slot + 1) & mask) {
+            if (keys[slot].equals(key)) {
+                return values[slot];
+            }
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * @return the previous value or {@link LongIntHashMap#NO_VALUE}
+     */
+    int put(K key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Illegal value: " + value);
+        }
+        if (key == null) {
+            int oldValue = nullKeyValue;
+            nullKeyValue = value;
+            return oldValue;
+        }
+        int mask = values.length - 1;
+        int slot = slot(key, mask);
+        for (; values[slot] != NO_VALUE; slot = (slot + 1) & mask) {
+            if (keys[slot].equals(key)) {
+                int oldValue = values[slot];
+                values[slot] = value;
+                return oldValue;
+            }
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > values.length * 3 / 4) {
+            resize(values.length * 2);
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * @return the removed value or {@link LongIntHashMap#NO_VALUE}
+     */
+    int remove(K key) {
+        if (key == null) {
+            int oldValue = nullKeyValue;
+            nullKeyValue = NO_VALUE;
+            return oldValue;
+        }
+        int mask = values.length - 1;
+        for (int slot = slot(key, mask); values[slot] != NO_VALUE; slot = (slot + 1) & mask) {
+            if (keys[slot].equals(key)) {
+                int oldValue = values[slot];
+                removeSlot(slot, mask);
+                size--;
+                return oldValue;
+            }
+        }
+        return NO_VALUE;
+    }
+
+    private void removeSlot(int freeSlot, int mask) {
+        int slot = freeSlot;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (values[slot] == NO_VALUE) {
+                break;
+            }
+            int home = slot(keys[slot], mask);
+            if (((slot - home) & mask) >= ((slot - freeSlot) & mask)) {
+                keys[freeSlot] = keys[slot];
+                values[freeSlot] = values[slot];
+                freeSlot = slot;
+            }
+        }
+        keys[freeSlot] = null;
+        values[freeSlot] = NO_VALUE;
+    }
+
+    private void resize(int capacity) {
+        Object[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != NO_VALUE) {
+                int slot = slot(oldKeys[i], mask);
+                while (values[slot] != NO_VALUE) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(ObjIntConsumer<K> consumer) {
+        if (nullKeyValue != NO_VALUE) {
+            consumer.accept(null, nullKeyValue);
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != NO_VALUE) {
+                consumer.accept((K) keys[i], values[i]);
+            }
+        }
+    }
+
+    private static int slot(Object key, int mask) {
+        return mix(key.hashCode()) & mask;
+    }
+
+}
@@ -0,0 +1,38 @@
+package de.bwaldvogel.mongo.backend.memory.offheap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.bwaldvogel.mongo.backend.AbstractMongoBackend;
+
+/**
+ * An in-memory backend that stores the documents in direct memory, so the heap
+ * usage and the garbage collection pauses do not grow with the amount of data.
+ * Indexes are kept on the heap.
+ */
+public class OffHeapBackend extends AbstractMongoBackend {
+
+    private static final Logger log = LoggerFactory.getLogger(OffHeapBackend.class);
+
+    private final SlabAllocator allocator;
+
+    public OffHeapBackend() {
+        this(SlabAllocator.DEFAULT_SLAB_SIZE);
+    }
+
+    public OffHeapBackend(int slabSize) {
+        this.allocator = new SlabAllocator(slabSize);
+    }
+
+    @Override
+    public OffHeapDatabase openOrCreateDatabase(String databaseName) {
+        return new OffHeapDatabase(this, databaseName, allocator);
+    }
+
+    @Override
+    public void close() {
+        log.info("closing {}, releasing {} bytes of direct memory", this, allocator.getAllocatedBytes());
+        allocator.close();
+    }
+
+}
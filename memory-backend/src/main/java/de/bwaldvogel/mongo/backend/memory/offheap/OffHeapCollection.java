@@ -0,0 +1,246 @@
+package de.bwaldvogel.mongo.backend.memory.offheap;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import de.bwaldvogel.mongo.backend.AbstractMongoCollection;
+import de.bwaldvogel.mongo.backend.DocumentWithPosition;
+import de.bwaldvogel.mongo.backend.Missing;
+import de.bwaldvogel.mongo.backend.Utils;
+import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.exception.MongoServerException;
+import de.bwaldvogel.mongo.wire.BsonDecoder;
+import de.bwaldvogel.mongo.wire.BsonEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * A collection that keeps its documents BSON encoded in direct memory. The heap
+ * only holds one block handle per document, so documents are decoded on every
+ * access and updated documents are written back in {@link #handleUpdate}.
+ */
+public class OffHeapCollection extends AbstractMongoCollection<Integer> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final SlabAllocator allocator;
+    private final BsonEncoder encoder = new BsonEncoder();
+    private final BsonDecoder decoder = new BsonDecoder();
+
+    private long[] handles = new long[INITIAL_CAPACITY];
+    private final BitSet occupied = new BitSet();
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+    private int freeSlotCount;
+    private int end;
+    private int size;
+    // the _id of a document does not change, so its slot is found without decoding other documents
+    private final Map<Object, Integer> slotsById = new HashMap<>();
+
+    private AtomicLong dataSize = new AtomicLong();
+
+    public OffHeapCollection(String databaseName, String collectionName, String idField, SlabAllocator allocator) {
+        super(databaseName, collectionName, idField);
+        this.allocator = allocator;
+    }
+
+    @Override
+    protected void updateDataSize(long sizeDelta) {
+        dataSize.addAndGet(sizeDelta);
+    }
+
+    @Override
+    protected long getDataSize() {
+        return dataSize.get();
+    }
+
+    @Override
+    protected synchronized Integer addDocumentInternal(Document document) {
+        int slot;
+        if (freeSlotCount > 0) {
+            slot = freeSlots[--freeSlotCount];
+        } else {
+            slot = end++;
+            if (slot == handles.length) {
+                handles = Arrays.copyOf(handles, handles.length * 2);
+            }
+        }
+        handles[slot] = store(document);
+        occupied.set(slot);
+        size++;
+        Integer position = Integer.valueOf(slot);
+        Object id = getId(document);
+        if (id != null) {
+            slotsById.putIfAbsent(id, position);
+        }
+        return position;
+    }
+
+    @Override
+    protected Iterable<Document> matchDocuments(Document query, Iterable<Integer> positions, Document orderBy,
+                                                int numberToSkip, int numberToReturn) {
+        return matchDocumentsAtPositions(query, positions, orderBy, numberToSkip, numberToReturn);
+    }
+
+    @Override
+    protected Iterable<Document> matchDocuments(Document query, Document orderBy, int numberToSkip,
+                                                int numberToReturn) {
+        Stream<Document> documents = streamSlots(!isNaturalDescending(orderBy)).mapToObj(this::load);
+        return matchDocuments(query, documents, orderBy, numberToSkip, numberToReturn);
+    }
+
+    @Override
+    public synchronized int count() {
+        return size;
+    }
+
+    /**
+     * Looks up the slot of the document's _id. Only documents with a duplicate _id,
+     * which is possible without a unique index, are searched for by decoding all documents.
+     */
+    @Override
+    protected synchronized Integer findDocumentPosition(Document document) {
+        Object id = getId(document);
+        if (id != null) {
+            Integer slot = slotsById.get(id);
+            if (slot != null && load(slot.intValue()).equals(document)) {
+                return slot;
+            }
+        }
+        return streamSlots(true)
+            .filter(slot -> load(slot).equals(document))
+            .boxed()
+            .findFirst()
+            .orElse(null);
+    }
+
+    @Override
+    protected Stream<DocumentWithPosition<Integer>> streamAllDocumentsWithPosition() {
+        return streamSlots(true)
+            .mapToObj(slot -> new DocumentWithPosition<>(load(slot), Integer.valueOf(slot)));
+    }
+
+    @Override
+    protected synchronized void removeDocument(Integer position) {
+        int slot = position.intValue();
+        if (!occupied.get(slot)) {
+            return;
+        }
+        Object id = getId(load(slot));
+        if (id != null) {
+            slotsById.remove(id, position);
+        }
+        long handle = handles[slot];
+        allocator.free(handle, getLength(handle));
+        occupied.clear(slot);
+        size--;
+        if (freeSlotCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeSlotCount++] = slot;
+    }
+
+    @Override
+    protected Document getDocument(Integer position) {
+        return load(position.intValue());
+    }
+
+    @Override
+    protected synchronized void handleUpdate(Integer position, Document document) {
+        int slot = position.intValue();
+        long oldHandle = handles[slot];
+        int oldLength = getLength(oldHandle);
+        ByteBuf encoded = encode(document);
+        try {
+            int length = encoded.readableBytes();
+            if (SlabAllocator.isSameSizeClass(oldLength, length)) {
+                allocator.buffer(oldHandle, length).setBytes(0, encoded, encoded.readerIndex(), length);
+            } else {
+                handles[slot] = copyToNewBlock(encoded);
+                allocator.free(oldHandle, oldLength);
+            }
+        } finally {
+            encoded.release();
+        }
+    }
+
+    /**
+     * Frees the memory of all documents, e.g. when the collection is dropped.
+     */
+    synchronized void release() {
+        for (int slot = occupied.nextSetBit(0); slot >= 0; slot = occupied.nextSetBit(slot + 1)) {
+            allocator.free(handles[slot], getLength(handles[slot]));
+        }
+        occupied.clear();
+        slotsById.clear();
+        handles = new long[INITIAL_CAPACITY];
+        freeSlots = new int[INITIAL_CAPACITY];
+        freeSlotCount = 0;
+        end = 0;
+        size = 0;
+    }
+
+    private Object getId(Document document) {
+        if (idField == null) {
+            return null;
+        }
+        Object id = Utils.getSubdocumentValue(document, idField);
+        return Missing.isNullOrMissing(id) ? null : id;
+    }
+
+    private IntStream streamSlots(boolean ascending) {
+        if (ascending) {
+            return occupied.stream();
+        }
+        return IntStream.iterate(occupied.previousSetBit(end - 1), slot -> occupied.previousSetBit(slot - 1))
+            .limit(size);
+    }
+
+    private long store(Document document) {
+        ByteBuf encoded = encode(document);
+        try {
+            return copyToNewBlock(encoded);
+        } finally {
+            encoded.release();
+        }
+    }
+
+    private long copyToNewBlock(ByteBuf encoded) {
+        int length = encoded.readableBytes();
+        long handle = allocator.allocate(length);
+        allocator.buffer(handle, length).setBytes(0, encoded, encoded.readerIndex(), length);
+        return handle;
+    }
+
+    private synchronized Document load(int slot) {
+        long handle = handles[slot];
+        ByteBuf buffer = allocator.buffer(handle, getLength(handle));
+        try {
+            return decoder.decodeBson(buffer);
+        } catch (IOException e) {
+            throw new MongoServerException("failed to decode document at position " + slot + " of " + this, e);
+        }
+    }
+
+    private int getLength(long handle) {
+        // the first four bytes of a BSON document hold its total length
+        return allocator.buffer(handle, 4).getIntLE(0);
+    }
+
+    private ByteBuf encode(Document document) {
+        ByteBuf buffer = Unpooled.buffer();
+        try {
+            encoder.encodeDocument(document, buffer);
+            return buffer;
+        } catch (IOException e) {
+            buffer.release();
+            throw new MongoServerException("failed to encode document", e);
+        }
+    }
+
+}
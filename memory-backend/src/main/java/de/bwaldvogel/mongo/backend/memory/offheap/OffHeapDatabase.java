@@ -0,0 +1,49 @@
+package de.bwaldvogel.mongo.backend.memory.offheap;
+
+import java.util.List;
+
+import de.bwaldvogel.mongo.MongoBackend;
+import de.bwaldvogel.mongo.MongoCollection;
+import de.bwaldvogel.mongo.backend.AbstractMongoDatabase;
+import de.bwaldvogel.mongo.backend.Index;
+import de.bwaldvogel.mongo.backend.IndexKey;
+import de.bwaldvogel.mongo.backend.memory.index.MemoryUniqueIndex;
+
+public class OffHeapDatabase extends AbstractMongoDatabase<Integer> {
+
+    private final SlabAllocator allocator;
+
+    public OffHeapDatabase(MongoBackend backend, String databaseName, SlabAllocator allocator) {
+        super(databaseName, backend);
+        this.allocator = allocator;
+        initializeNamespacesAndIndexes();
+    }
+
+    @Override
+    protected OffHeapCollection openOrCreateCollection(String collectionName, String idField) {
+        return new OffHeapCollection(getDatabaseName(), collectionName, idField, allocator);
+    }
+
+    @Override
+    protected Index<Integer> openOrCreateUniqueIndex(String collectionName, List<IndexKey> keys) {
+        return new MemoryUniqueIndex(keys);
+    }
+
+    @Override
+    public void dropCollection(String collectionName) {
+        MongoCollection<Integer> collection = resolveCollection(collectionName, true);
+        super.dropCollection(collectionName);
+        ((OffHeapCollection) collection).release();
+    }
+
+    @Override
+    protected long getStorageSize() {
+        return 0;
+    }
+
+    @Override
+    protected long getFileSize() {
+        return 0;
+    }
+
+}
@@ -0,0 +1,194 @@
+package de.bwaldvogel.mongo.backend.memory.offheap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.bwaldvogel.mongo.exception.MongoServerException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Allocates blocks of direct memory out of large slabs. Block sizes are rounded up
+ * to the next power of two and freed blocks are kept in one free list per size, so
+ * they can be reused by blocks of the same size class. A block is addressed by a
+ * handle that packs the slab number and the offset within the slab into a long.
+ */
+public class SlabAllocator {
+
+    public static final int DEFAULT_SLAB_SIZE = 32 * 1024 * 1024;
+
+    private static final int MIN_BLOCK_SIZE_SHIFT = 5;
+    private static final int MAX_BLOCK_SIZE_SHIFT = 30;
+
+    private final int slabSize;
+    private final List<ByteBuf> slabs = new ArrayList<>();
+    private final LongStack[] freeLists = new LongStack[MAX_BLOCK_SIZE_SHIFT + 1];
+
+    private int currentSlabNumber = -1;
+    private int currentOffset;
+    private long allocatedBytes;
+    private long usedBytes;
+
+    public SlabAllocator() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    public SlabAllocator(int slabSize) {
+        if (Integer.bitCount(slabSize) != 1 || slabSize < (1 << MIN_BLOCK_SIZE_SHIFT)) {
+            throw new IllegalArgumentException("Illegal slab size: " + slabSize);
+        }
+        this.slabSize = slabSize;
+        for (int shift = MIN_BLOCK_SIZE_SHIFT; shift <= MAX_BLOCK_SIZE_SHIFT; shift++) {
+            freeLists[shift] = new LongStack();
+        }
+    }
+
+    /**
+     * @return the handle of a block that can hold at least the given number of bytes
+     */
+    public synchronized long allocate(int size) {
+        int shift = getSizeClass(size);
+        LongStack freeList = freeLists[shift];
+        if (!freeList.isEmpty()) {
+            usedBytes += 1L << shift;
+            return freeList.pop();
+        }
+
+        int blockSize = 1 << shift;
+        if (blockSize > slabSize) {
+            // blocks that do not fit into a regular slab get a slab of their own
+            long handle = toHandle(addSlab(blockSize), 0);
+            usedBytes += blockSize;
+            return handle;
+        }
+
+        if (currentSlabNumber < 0 || currentOffset + blockSize > slabSize) {
+            releaseRemainder();
+            currentSlabNumber = addSlab(slabSize);
+            currentOffset = 0;
+        }
+        long handle = toHandle(currentSlabNumber, currentOffset);
+        currentOffset += blockSize;
+        usedBytes += blockSize;
+        return handle;
+    }
+
+    /**
+     * Frees a block that was allocated with the given size.
+     */
+    public synchronized void free(long handle, int size) {
+        int shift = getSizeClass(size);
+        freeLists[shift].push(handle);
+        usedBytes -= 1L << shift;
+    }
+
+    /**
+     * @return true if a block allocated with the first size can also hold the second size
+     */
+    public static boolean isSameSizeClass(int size, int otherSize) {
+        return getSizeClass(size) == getSizeClass(otherSize);
+    }
+
+    /**
+     * Returns a view of the given block. The view shares its memory with the slab
+     * and is only valid until the block is freed.
+     */
+    public ByteBuf buffer(long handle, int size) {
+        ByteBuf slab;
+        synchronized (this) {
+            slab = slabs.get(getSlabNumber(handle));
+        }
+        return slab.slice(getOffset(handle), size);
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized void close() {
+        for (ByteBuf slab : slabs) {
+            slab.release();
+        }
+        slabs.clear();
+        for (int shift = MIN_BLOCK_SIZE_SHIFT; shift <= MAX_BLOCK_SIZE_SHIFT; shift++) {
+            freeLists[shift] = new LongStack();
+        }
+        currentSlabNumber = -1;
+        allocatedBytes = 0;
+        usedBytes = 0;
+    }
+
+    private int addSlab(int size) {
+        ByteBuf slab = Unpooled.directBuffer(size, size);
+        slabs.add(slab);
+        allocatedBytes += slab.capacity();
+        return slabs.size() - 1;
+    }
+
+    /**
+     * Splits the unused end of the current slab into free blocks.
+     */
+    private void releaseRemainder() {
+        if (currentSlabNumber < 0) {
+            return;
+        }
+        int remaining = slabSize - currentOffset;
+        while (remaining >= (1 << MIN_BLOCK_SIZE_SHIFT)) {
+            int shift = 31 - Integer.numberOfLeadingZeros(remaining);
+            freeLists[shift].push(toHandle(currentSlabNumber, currentOffset));
+            currentOffset += 1 << shift;
+            remaining -= 1 << shift;
+        }
+    }
+
+    private static int getSizeClass(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Illegal size: " + size);
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        if (shift > MAX_BLOCK_SIZE_SHIFT) {
+            throw new MongoServerException("Cannot allocate " + size + " bytes");
+        }
+        return Math.max(shift, MIN_BLOCK_SIZE_SHIFT);
+    }
+
+    private static long toHandle(int slabNumber, int offset) {
+        return ((long) slabNumber << 32) | offset;
+    }
+
+    private static int getSlabNumber(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int getOffset(long handle) {
+        return (int) handle;
+    }
+
+    private static class LongStack {
+
+        private long[] values = new long[16];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void push(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long pop() {
+            return values[--size];
+        }
+
+    }
+
+}
@@ -0,0 +1,402 @@
+package de.bwaldvogel.mongo.backend.memory.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.bwaldvogel.mongo.MongoThreadFactory;
+import de.bwaldvogel.mongo.backend.Utils;
+import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.exception.MongoServerException;
+
+/**
+ * Makes the documents of a {@link PersistentMemoryBackend} durable. Every insert,
+ * update and delete is appended to a {@link WriteAheadLog} and the complete data
+ * is written to a snapshot from time to time, which makes the older log segments
+ * obsolete. On startup the latest snapshot is loaded and the log tail is replayed.
+ * <p>
+ * Documents are identified by a record id that is unique within the backend, so
+ * replaying a record that is already contained in the snapshot has no effect.
+ */
+public class MemoryPersistence {
+
+    private static final Logger log = LoggerFactory.getLogger(MemoryPersistence.class);
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bson";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final String OPERATION = "op";
+    private static final String NAMESPACE = "ns";
+    private static final String RECORD_ID = "rid";
+    private static final String DOCUMENT = "doc";
+    private static final String NEW_NAMESPACE = "to";
+
+    private static final String INSERT = "i";
+    private static final String UPDATE = "u";
+    private static final String DELETE = "d";
+    private static final String DROP = "drop";
+    private static final String RENAME = "rename";
+
+    private final Path directory;
+    private final WriteAheadLog writeAheadLog;
+    private final AtomicLong lastRecordId = new AtomicLong();
+    private final Map<String, Map<Long, Document>> recoveredCollections = new LinkedHashMap<>();
+    private final Set<PersistentMemoryCollection> collections = ConcurrentHashMap.newKeySet();
+
+    // drops and renames must not interleave with a snapshot
+    private final ReadWriteLock structureLock = new ReentrantReadWriteLock();
+
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param syncIntervalMillis the interval in which the log is forced to the disk
+     *                           or 0 to force every record to the disk
+     * @param snapshotIntervalMillis the interval of background snapshots or 0 to
+     *                               write a snapshot only on {@link #close()}
+     */
+    public MemoryPersistence(Path directory, long syncIntervalMillis, long snapshotIntervalMillis) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+            long segment = recover();
+            writeAheadLog = new WriteAheadLog(directory, segment, syncIntervalMillis == 0);
+        } catch (IOException e) {
+            throw new MongoServerException("failed to open " + directory, e);
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new MongoThreadFactory("mongo-server-persistence-"));
+        if (syncIntervalMillis > 0) {
+            executor.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (snapshotIntervalMillis > 0) {
+            executor.scheduleWithFixedDelay(this::snapshotQuietly, snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Loads the latest snapshot and replays the log segments that follow it.
+     *
+     * @return the number of the segment to continue with
+     */
+    private long recover() throws IOException {
+        long snapshotSegment = -1;
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(TEMPORARY_SUFFIX)) {
+                    Files.delete(file);
+                    continue;
+                }
+                snapshotSegment = Math.max(snapshotSegment, parseSnapshotSegment(fileName));
+                long segment = WriteAheadLog.parseSegment(fileName);
+                if (segment >= 0) {
+                    segments.add(Long.valueOf(segment));
+                }
+            }
+        }
+        Collections.sort(segments);
+
+        if (snapshotSegment >= 0) {
+            Path snapshot = directory.resolve(getSnapshotFileName(snapshotSegment));
+            log.info("loading snapshot {}", snapshot);
+            long length = RecordFile.read(snapshot, this::replay);
+            if (length != Files.size(snapshot)) {
+                throw new MongoServerException("snapshot " + snapshot + " is corrupt");
+            }
+        }
+
+        long lastSegment = Math.max(snapshotSegment, 0);
+        for (int i = 0; i < segments.size(); i++) {
+            long segment = segments.get(i).longValue();
+            if (segment < snapshotSegment) {
+                continue;
+            }
+            Path segmentFile = directory.resolve(WriteAheadLog.getSegmentFileName(segment));
+            long length = RecordFile.read(segmentFile, this::replay);
+            long fileSize = Files.size(segmentFile);
+            if (length != fileSize) {
+                if (i < segments.size() - 1) {
+                    throw new MongoServerException("log segment " + segmentFile + " is corrupt");
+                }
+                log.warn("truncating {} bytes of a partially written record in {}", fileSize - length, segmentFile);
+                try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.WRITE)) {
+                    channel.truncate(length);
+                }
+            }
+            lastSegment = segment;
+        }
+
+        deleteFilesBefore(snapshotSegment);
+        // never append to a segment that might end with a truncated record
+        return lastSegment + 1;
+    }
+
+    private void replay(Document record) {
+        String operation = (String) record.get(OPERATION);
+        String namespace = (String) record.get(NAMESPACE);
+        switch (operation) {
+            case INSERT:
+            case UPDATE: {
+                Long recordId = (Long) record.get(RECORD_ID);
+                recoveredCollections.computeIfAbsent(namespace, k -> new LinkedHashMap<>())
+                    .put(recordId, (Document) record.get(DOCUMENT));
+                lastRecordId.accumulateAndGet(recordId.longValue(), Math::max);
+                break;
+            }
+            case DELETE: {
+                Map<Long, Document> documents = recoveredCollections.get(namespace);
+                if (documents != null) {
+                    documents.remove(record.get(RECORD_ID));
+                }
+                break;
+            }
+            case DROP:
+                recoveredCollections.remove(namespace);
+                break;
+            case RENAME: {
+                Map<Long, Document> documents = recoveredCollections.remove(namespace);
+                if (documents != null) {
+                    recoveredCollections.put((String) record.get(NEW_NAMESPACE), documents);
+                }
+                break;
+            }
+            default:
+                throw new MongoServerException("unknown log record: " + record);
+        }
+    }
+
+    /**
+     * @return the names of the databases that were recovered
+     */
+    Set<String> getRecoveredDatabaseNames() {
+        Set<String> databaseNames = new LinkedHashSet<>();
+        for (String namespace : recoveredCollections.keySet()) {
+            if (namespace.endsWith("." + PersistentMemoryDatabase.NAMESPACES_COLLECTION_NAME)) {
+                databaseNames.add(Utils.getDatabaseNameFromFullName(namespace));
+            }
+        }
+        return databaseNames;
+    }
+
+    /**
+     * Hands out the recovered documents of the collection with the given full name.
+     */
+    Map<Long, Document> takeRecoveredDocuments(String fullName) {
+        synchronized (recoveredCollections) {
+            Map<Long, Document> documents = recoveredCollections.remove(fullName);
+            return documents != null ? documents : Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Drops the recovered documents of collections that were not opened.
+     */
+    void discardRecoveredDocuments() {
+        synchronized (recoveredCollections) {
+            for (String namespace : recoveredCollections.keySet()) {
+                log.warn("discarding documents of unknown collection '{}'", namespace);
+            }
+            recoveredCollections.clear();
+        }
+    }
+
+    long nextRecordId() {
+        return lastRecordId.incrementAndGet();
+    }
+
+    void register(PersistentMemoryCollection collection) {
+        collections.add(collection);
+    }
+
+    void logInsert(String fullName, long recordId, Document document) {
+        append(new Document(OPERATION, INSERT)
+            .append(NAMESPACE, fullName)
+            .append(RECORD_ID, Long.valueOf(recordId))
+            .append(DOCUMENT, document));
+    }
+
+    void logUpdate(String fullName, long recordId, Document document) {
+        append(new Document(OPERATION, UPDATE)
+            .append(NAMESPACE, fullName)
+            .append(RECORD_ID, Long.valueOf(recordId))
+            .append(DOCUMENT, document));
+    }
+
+    void logDelete(String fullName, long recordId) {
+        append(new Document(OPERATION, DELETE)
+            .append(NAMESPACE, fullName)
+            .append(RECORD_ID, Long.valueOf(recordId)));
+    }
+
+    void drop(PersistentMemoryCollection collection, Runnable dropAction) {
+        structureLock.readLock().lock();
+        try {
+            dropAction.run();
+            collections.remove(collection);
+            append(new Document(OPERATION, DROP).append(NAMESPACE, collection.getFullName()));
+        } finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    void rename(PersistentMemoryCollection collection, Runnable renameAction) {
+        structureLock.readLock().lock();
+        try {
+            String oldFullName = collection.getFullName();
+            renameAction.run();
+            append(new Document(OPERATION, RENAME)
+                .append(NAMESPACE, oldFullName)
+                .append(NEW_NAMESPACE, collection.getFullName()));
+        } finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    private void append(Document record) {
+        try {
+            writeAheadLog.append(record);
+        } catch (IOException e) {
+            throw new MongoServerException("failed to write to the log in " + directory, e);
+        }
+    }
+
+    public void sync() {
+        try {
+            writeAheadLog.sync();
+        } catch (IOException e) {
+            throw new MongoServerException("failed to sync the log in " + directory, e);
+        }
+    }
+
+    /**
+     * Writes all documents to a new snapshot and deletes the log segments that
+     * are covered by it. The log is rotated first, so every change that is not
+     * contained in the snapshot is contained in the new segment.
+     */
+    public synchronized void snapshot() {
+        structureLock.writeLock().lock();
+        try {
+            long segment = writeAheadLog.rotate();
+            Path snapshot = directory.resolve(getSnapshotFileName(segment));
+            Path temporaryFile = directory.resolve(snapshot.getFileName() + TEMPORARY_SUFFIX);
+            try (FileOutputStream out = new FileOutputStream(temporaryFile.toFile());
+                 BufferedOutputStream buffered = new BufferedOutputStream(out)) {
+                RecordFile.Writer writer = new RecordFile.Writer(buffered);
+                for (PersistentMemoryCollection collection : collections) {
+                    collection.writeSnapshot((recordId, document) -> writer.write(new Document(OPERATION, INSERT)
+                        .append(NAMESPACE, collection.getFullName())
+                        .append(RECORD_ID, Long.valueOf(recordId))
+                        .append(DOCUMENT, document)));
+                }
+                buffered.flush();
+                out.getChannel().force(true);
+            }
+            Files.move(temporaryFile, snapshot, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("wrote snapshot {}", snapshot);
+            deleteFilesBefore(segment);
+        } catch (IOException e) {
+            throw new MongoServerException("failed to write a snapshot to " + directory, e);
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    private void deleteFilesBefore(long segment) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                long snapshotSegment = parseSnapshotSegment(fileName);
+                long logSegment = WriteAheadLog.parseSegment(fileName);
+                if ((snapshotSegment >= 0 && snapshotSegment < segment) || (logSegment >= 0 && logSegment < segment)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (RuntimeException e) {
+            log.error("failed to sync the log", e);
+        }
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (RuntimeException e) {
+            log.error("failed to write a snapshot", e);
+        }
+    }
+
+    /**
+     * Stops the background tasks, writes a final snapshot and closes the log.
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshot();
+        try {
+            writeAheadLog.close();
+        } catch (IOException e) {
+            throw new MongoServerException("failed to close the log in " + directory, e);
+        }
+    }
+
+    private static String getSnapshotFileName(long segment) {
+        return String.format("%s%019d%s", SNAPSHOT_PREFIX, segment, SNAPSHOT_SUFFIX);
+    }
+
+    private static long parseSnapshotSegment(String fileName) {
+        if (!fileName.startsWith(SNAPSHOT_PREFIX) || !fileName.endsWith(SNAPSHOT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fileName.substring(SNAPSHOT_PREFIX.length(), fileName.length() - SNAPSHOT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    interface SnapshotWriter {
+
+        void write(long recordId, Document document) throws IOException;
+
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + directory + "]";
+    }
+
+}
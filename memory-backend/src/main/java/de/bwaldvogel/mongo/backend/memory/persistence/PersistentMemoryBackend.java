@@ -0,0 +1,75 @@
+package de.bwaldvogel.mongo.backend.memory.persistence;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.bwaldvogel.mongo.backend.AbstractMongoBackend;
+import de.bwaldvogel.mongo.exception.MongoServerException;
+
+/**
+ * An in-memory backend that survives restarts and crashes. All changes are
+ * appended to a write-ahead log in the given directory and the data is written
+ * to a snapshot periodically and on {@link #close()}. Reads are served from
+ * memory like in the {@link de.bwaldvogel.mongo.backend.memory.MemoryBackend}.
+ */
+public class PersistentMemoryBackend extends AbstractMongoBackend {
+
+    private static final Logger log = LoggerFactory.getLogger(PersistentMemoryBackend.class);
+
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 100;
+    public static final long DEFAULT_SNAPSHOT_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    private final MemoryPersistence persistence;
+
+    public PersistentMemoryBackend(String directory) {
+        this(Paths.get(directory), DEFAULT_SYNC_INTERVAL_MILLIS, DEFAULT_SNAPSHOT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param syncIntervalMillis the interval in which the log is forced to the disk
+     *                           or 0 to force every change to the disk
+     * @param snapshotIntervalMillis the interval of background snapshots or 0 to
+     *                               write a snapshot only on {@link #close()}
+     */
+    public PersistentMemoryBackend(Path directory, long syncIntervalMillis, long snapshotIntervalMillis) {
+        log.info("opening persistent memory backend in '{}'", directory);
+        persistence = new MemoryPersistence(directory, syncIntervalMillis, snapshotIntervalMillis);
+
+        for (String databaseName : persistence.getRecoveredDatabaseNames()) {
+            log.info("opening database '{}'", databaseName);
+            try {
+                resolveDatabase(databaseName);
+            } catch (MongoServerException e) {
+                log.error("Failed to open {}", databaseName, e);
+            }
+        }
+        persistence.discardRecoveredDocuments();
+    }
+
+    @Override
+    protected PersistentMemoryDatabase openOrCreateDatabase(String databaseName) {
+        return new PersistentMemoryDatabase(this, databaseName, persistence);
+    }
+
+    /**
+     * Writes a snapshot of all documents and deletes the log segments covered by it.
+     */
+    public void snapshot() {
+        persistence.snapshot();
+    }
+
+    @Override
+    public void close() {
+        log.info("closing {}", this);
+        persistence.close();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + persistence + "]";
+    }
+
+}
@@ -0,0 +1,74 @@
+package de.bwaldvogel.mongo.backend.memory.persistence;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import de.bwaldvogel.mongo.backend.DocumentWithPosition;
+import de.bwaldvogel.mongo.backend.Utils;
+import de.bwaldvogel.mongo.backend.memory.MemoryCollection;
+import de.bwaldvogel.mongo.bson.Document;
+
+/**
+ * A {@link MemoryCollection} that logs every change to its {@link MemoryPersistence}.
+ * Stored documents are updated in place, so the record id of a document is looked
+ * up by the identity of the stored instance.
+ */
+public class PersistentMemoryCollection extends MemoryCollection {
+
+    private final MemoryPersistence persistence;
+    private final Map<Document, Long> recordIds = new IdentityHashMap<>();
+
+    public PersistentMemoryCollection(String databaseName, String collectionName, String idField,
+                                      MemoryPersistence persistence) {
+        super(databaseName, collectionName, idField);
+        this.persistence = persistence;
+        for (Entry<Long, Document> entry : persistence.takeRecoveredDocuments(getFullName()).entrySet()) {
+            Document document = entry.getValue();
+            recordIds.put(document, entry.getKey());
+            super.addDocumentInternal(document);
+            updateDataSize(Utils.calculateSize(document));
+        }
+        persistence.register(this);
+    }
+
+    @Override
+    protected Integer addDocumentInternal(Document document) {
+        long recordId = persistence.nextRecordId();
+        persistence.logInsert(getFullName(), recordId, document);
+        recordIds.put(document, Long.valueOf(recordId));
+        return super.addDocumentInternal(document);
+    }
+
+    @Override
+    protected void removeDocument(Integer position) {
+        Document document = getDocument(position);
+        if (document != null) {
+            persistence.logDelete(getFullName(), recordIds.remove(document).longValue());
+        }
+        super.removeDocument(position);
+    }
+
+    @Override
+    protected void handleUpdate(Integer position, Document document) {
+        super.handleUpdate(position, document);
+        Document storedDocument = getDocument(position);
+        persistence.logUpdate(getFullName(), recordIds.get(storedDocument).longValue(), storedDocument);
+    }
+
+    @Override
+    public void renameTo(String newDatabaseName, String newCollectionName) {
+        persistence.rename(this, () -> super.renameTo(newDatabaseName, newCollectionName));
+    }
+
+    synchronized void writeSnapshot(MemoryPersistence.SnapshotWriter writer) throws IOException {
+        Iterator<DocumentWithPosition<Integer>> documents = streamAllDocumentsWithPosition().iterator();
+        while (documents.hasNext()) {
+            Document document = documents.next().getDocument();
+            writer.write(recordIds.get(document).longValue(), document);
+        }
+    }
+
+}
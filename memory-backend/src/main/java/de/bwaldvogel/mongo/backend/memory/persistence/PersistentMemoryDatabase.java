@@ -0,0 +1,55 @@
+package de.bwaldvogel.mongo.backend.memory.persistence;
+
+import java.util.List;
+
+import de.bwaldvogel.mongo.MongoBackend;
+import de.bwaldvogel.mongo.MongoCollection;
+import de.bwaldvogel.mongo.backend.AbstractMongoDatabase;
+import de.bwaldvogel.mongo.backend.Index;
+import de.bwaldvogel.mongo.backend.IndexKey;
+import de.bwaldvogel.mongo.backend.memory.index.MemoryUniqueIndex;
+
+public class PersistentMemoryDatabase extends AbstractMongoDatabase<Integer> {
+
+    static final String NAMESPACES_COLLECTION_NAME = "system.namespaces";
+
+    private final MemoryPersistence persistence;
+
+    public PersistentMemoryDatabase(MongoBackend backend, String databaseName, MemoryPersistence persistence) {
+        super(databaseName, backend);
+        this.persistence = persistence;
+        initializeNamespacesAndIndexes();
+    }
+
+    @Override
+    protected PersistentMemoryCollection openOrCreateCollection(String collectionName, String idField) {
+        // on startup the indexes collection is opened a second time, which must not lose its recovered documents
+        MongoCollection<Integer> openCollection = resolveCollection(collectionName, false);
+        if (openCollection != null) {
+            return (PersistentMemoryCollection) openCollection;
+        }
+        return new PersistentMemoryCollection(getDatabaseName(), collectionName, idField, persistence);
+    }
+
+    @Override
+    protected Index<Integer> openOrCreateUniqueIndex(String collectionName, List<IndexKey> keys) {
+        return new MemoryUniqueIndex(keys);
+    }
+
+    @Override
+    public void dropCollection(String collectionName) {
+        MongoCollection<Integer> collection = resolveCollection(collectionName, true);
+        persistence.drop((PersistentMemoryCollection) collection, () -> super.dropCollection(collectionName));
+    }
+
+    @Override
+    protected long getStorageSize() {
+        return 0;
+    }
+
+    @Override
+    protected long getFileSize() {
+        return 0;
+    }
+
+}
@@ -0,0 +1,103 @@
+package de.bwaldvogel.mongo.backend.memory.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.wire.BsonDecoder;
+import de.bwaldvogel.mongo.wire.BsonEncoder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Reads and writes files of BSON encoded records. Every record is preceded by the
+ * CRC32 checksum of its bytes, so a record that was only partially written before
+ * a crash is detected when the file is read.
+ */
+final class RecordFile {
+
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    private RecordFile() {
+    }
+
+    static final class Writer {
+
+        private final OutputStream out;
+        private final BsonEncoder encoder = new BsonEncoder();
+        private final CRC32 checksum = new CRC32();
+
+        Writer(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(Document record) throws IOException {
+            ByteBuf buffer = Unpooled.buffer();
+            try {
+                buffer.writeInt(0);
+                encoder.encodeDocument(record, buffer);
+                checksum.reset();
+                checksum.update(buffer.nioBuffer(4, buffer.readableBytes() - 4));
+                buffer.setInt(0, (int) checksum.getValue());
+                buffer.readBytes(out, buffer.readableBytes());
+            } finally {
+                buffer.release();
+            }
+        }
+
+    }
+
+    /**
+     * Passes all intact records of the file to the consumer.
+     *
+     * @return the number of bytes of the intact records, which is less than the
+     * file size if the file ends with a partially written record
+     */
+    static long read(Path file, Consumer<Document> consumer) throws IOException {
+        BsonDecoder decoder = new BsonDecoder();
+        CRC32 checksum = new CRC32();
+        long validLength = 0;
+        try (InputStream in = Files.newInputStream(file);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+            while (true) {
+                byte[] bytes;
+                int expectedChecksum;
+                try {
+                    expectedChecksum = data.readInt();
+                    int length = Integer.reverseBytes(data.readInt());
+                    if (length < 5 || length > MAX_RECORD_SIZE) {
+                        return validLength;
+                    }
+                    bytes = new byte[length];
+                    writeIntLE(bytes, length);
+                    data.readFully(bytes, 4, length - 4);
+                } catch (EOFException e) {
+                    return validLength;
+                }
+                checksum.reset();
+                checksum.update(bytes);
+                if ((int) checksum.getValue() != expectedChecksum) {
+                    return validLength;
+                }
+                consumer.accept(decoder.decodeBson(Unpooled.wrappedBuffer(bytes)));
+                validLength += 4 + bytes.length;
+            }
+        }
+    }
+
+    private static void writeIntLE(byte[] bytes, int value) {
+        bytes[0] = (byte) value;
+        bytes[1] = (byte) (value >>> 8);
+        bytes[2] = (byte) (value >>> 16);
+        bytes[3] = (byte) (value >>> 24);
+    }
+
+}
@@ -0,0 +1,100 @@
+package de.bwaldvogel.mongo.backend.memory.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import de.bwaldvogel.mongo.bson.Document;
+
+/**
+ * An append-only log that is split into numbered segment files. Records are
+ * written to the file system immediately, while {@link #sync()} forces them to
+ * the disk. A new segment is started with {@link #rotate()}, so the segments that
+ * are covered by a snapshot can be deleted.
+ */
+class WriteAheadLog {
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final boolean syncOnAppend;
+
+    private long segment;
+    private FileOutputStream out;
+    private BufferedOutputStream buffered;
+    private RecordFile.Writer writer;
+    private boolean unsynced;
+
+    WriteAheadLog(Path directory, long segment, boolean syncOnAppend) throws IOException {
+        this.directory = directory;
+        this.syncOnAppend = syncOnAppend;
+        open(segment);
+    }
+
+    static String getSegmentFileName(long segment) {
+        return String.format("%s%019d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX);
+    }
+
+    /**
+     * @return the number of the segment file or -1 if it is not a segment file
+     */
+    static long parseSegment(String fileName) {
+        if (!fileName.startsWith(SEGMENT_PREFIX) || !fileName.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void open(long segment) throws IOException {
+        this.segment = segment;
+        out = new FileOutputStream(directory.resolve(getSegmentFileName(segment)).toFile(), true);
+        buffered = new BufferedOutputStream(out);
+        writer = new RecordFile.Writer(buffered);
+    }
+
+    synchronized void append(Document record) throws IOException {
+        writer.write(record);
+        buffered.flush();
+        if (syncOnAppend) {
+            out.getChannel().force(false);
+        } else {
+            unsynced = true;
+        }
+    }
+
+    synchronized void sync() throws IOException {
+        if (unsynced) {
+            out.getChannel().force(false);
+            unsynced = false;
+        }
+    }
+
+    /**
+     * Closes the current segment and continues with the next one.
+     *
+     * @return the number of the new segment
+     */
+    synchronized long rotate() throws IOException {
+        closeSegment();
+        open(segment + 1);
+        return segment;
+    }
+
+    synchronized void close() throws IOException {
+        closeSegment();
+    }
+
+    private void closeSegment() throws IOException {
+        buffered.flush();
+        out.getChannel().force(false);
+        unsynced = false;
+        out.close();
+    }
+
+}
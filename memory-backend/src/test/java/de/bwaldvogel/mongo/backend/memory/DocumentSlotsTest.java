@@ -0,0 +1,67 @@
+package de.bwaldvogel.mongo.backend.memory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import de.bwaldvogel.mongo.bson.Document;
+
+public class DocumentSlotsTest {
+
+    private final DocumentSlots slots = new DocumentSlots();
+
+    @Test
+    public void testFreeSlotsAreReused() throws Exception {
+        int first = slots.add(new Document("_id", 1));
+        int second = slots.add(new Document("_id", 2));
+        int third = slots.add(new Document("_id", 3));
+
+        slots.remove(first);
+        slots.remove(third);
+
+        assertThat(slots.size()).isEqualTo(1);
+        assertThat(slots.nextSlot(0)).isEqualTo(second);
+        assertThat(slots.previousSlot(slots.lastSlot())).isEqualTo(second);
+        assertThat(slots.add(new Document("_id", 4))).isEqualTo(third);
+        assertThat(slots.add(new Document("_id", 5))).isEqualTo(first);
+        assertThat(slots.add(new Document("_id", 6))).isEqualTo(3);
+    }
+
+    @Test
+    public void testCompactKeepsOrder() throws Exception {
+        int numberOfDocuments = 3 * DocumentSlots.MIN_FREE_SLOTS_FOR_COMPACTION;
+        for (int i = 0; i < numberOfDocuments; i++) {
+            slots.add(new Document("_id", i));
+        }
+        for (int slot = 0; slot < numberOfDocuments; slot++) {
+            if (slot % 3 != 0) {
+                slots.remove(slot);
+            }
+        }
+        assertThat(slots.needsCompaction()).isTrue();
+
+        Map<Object, Integer> movedDocuments = new LinkedHashMap<>();
+        slots.compact((document, newSlot) -> movedDocuments.put(document.get("_id"), newSlot));
+
+        assertThat(slots.needsCompaction()).isFalse();
+        assertThat(slots.lastSlot()).isEqualTo(numberOfDocuments / 3 - 1);
+        assertThat(movedDocuments).hasSize(numberOfDocuments / 3 - 1);
+        assertThat(movedDocuments.get(3)).isEqualTo(1);
+
+        List<Object> ids = new ArrayList<>();
+        for (int slot = slots.nextSlot(0); slot >= 0; slot = slots.nextSlot(slot + 1)) {
+            ids.add(slots.get(slot).get("_id"));
+        }
+        assertThat(ids).hasSize(numberOfDocuments / 3);
+        assertThat(ids.get(0)).isEqualTo(0);
+        assertThat(ids.get(ids.size() - 1)).isEqualTo(numberOfDocuments - 3);
+
+        assertThat(slots.add(new Document("_id", "new"))).isEqualTo(numberOfDocuments / 3);
+    }
+
+}
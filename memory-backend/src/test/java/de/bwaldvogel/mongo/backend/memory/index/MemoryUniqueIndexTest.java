@@ -0,0 +1,116 @@
+package de.bwaldvogel.mongo.backend.memory.index;
+
+import static de.bwaldvogel.mongo.backend.memory.index.LongIntHashMap.NO_VALUE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.bwaldvogel.mongo.backend.IndexKey;
+import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.bson.ObjectId;
+import de.bwaldvogel.mongo.exception.DuplicateKeyError;
+
+public class MemoryUniqueIndexTest {
+
+    private final MemoryUniqueIndex index = new MemoryUniqueIndex(Collections.singletonList(new IndexKey("a", true)));
+
+    @Test
+    public void testNumbersAreNormalized() throws Exception {
+        index.add(new Document("a", 1), 10);
+        index.add(new Document("a", 2.5), 11);
+
+        assertThat(index.getPosition(new Document("a", 1L))).isEqualTo(10);
+        assertThat(index.getPosition(new Document("a", 1.0))).isEqualTo(10);
+        assertThat(index.getPosition(new Document("a", 2.5))).isEqualTo(11);
+        assertThat(index.getPosition(new Document("a", 3))).isNull();
+        assertThat(index.getPositions(new Document("a", new Document("$in", Arrays.asList(1.0, 2.5, 4)))))
+            .containsExactly(10, 11);
+
+        try {
+            index.checkAdd(new Document("a", 1.0));
+            fail("DuplicateKeyError expected");
+        } catch (DuplicateKeyError e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testObjectIdStringAndNullKeys() throws Exception {
+        ObjectId objectId = new ObjectId();
+        index.add(new Document("a", objectId), 1);
+        index.add(new Document("a", "abc"), 2);
+        index.add(new Document("a", null), 3);
+        index.add(new Document("b", "no value"), 4);
+
+        assertThat(index.getCount()).isEqualTo(3);
+        assertThat(index.getPosition(new Document("a", new ObjectId(objectId.toByteArray())))).isEqualTo(1);
+        assertThat(index.getPosition(new Document("a", "abc"))).isEqualTo(2);
+        assertThat(index.getPosition(new Document("a", null))).isEqualTo(3);
+        assertThat(index.getPosition(new Document("b", "no value"))).isNull();
+
+        assertThat(index.remove(new Document("a", objectId))).isEqualTo(1);
+        assertThat(index.getPosition(new Document("a", objectId))).isNull();
+        assertThat(index.getCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testStringRangeOnlyWithStringKeys() throws Exception {
+        index.add(new Document("a", "abc"), 1);
+        index.add(new Document("a", "abd"), 2);
+        index.add(new Document("a", "b"), 3);
+
+        assertThat(index.getCount()).isEqualTo(3);
+        assertThat(index.getPositionsForStringRange("ab", "ac")).containsExactly(1, 2);
+        assertThat(index.getPositionsForStringRange("abd", null)).containsExactly(2, 3);
+
+        index.add(new Document("a", 1), 4);
+        assertThat(index.getCount()).isEqualTo(4);
+        assertThat(index.getPositionsForStringRange("ab", "ac")).isNull();
+
+        index.remove(new Document("a", 1));
+        index.remove(new Document("a", "b"));
+        assertThat(index.getCount()).isEqualTo(2);
+        assertThat(index.getPositionsForStringRange("ab", "ac")).containsExactly(1, 2);
+    }
+
+    @Test
+    public void testUpdateInPlace() throws Exception {
+        index.add(new Document("a", 1), 5);
+        index.updateInPlace(new Document("a", 1), new Document("a", "x"), 5);
+
+        assertThat(index.getPosition(new Document("a", 1))).isNull();
+        assertThat(index.getPosition(new Document("a", "x"))).isEqualTo(5);
+    }
+
+    @Test
+    public void testLongIntHashMapAgainstHashMap() throws Exception {
+        LongIntHashMap map = new LongIntHashMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(4711);
+        for (int i = 0; i < 100_000; i++) {
+            long key = random.nextInt(2000) * 1024L;
+            int value = random.nextInt(Integer.MAX_VALUE);
+            if (random.nextBoolean()) {
+                Integer oldValue = expected.put(key, value);
+                assertThat(map.put(key, value)).isEqualTo(oldValue == null ? NO_VALUE : oldValue);
+            } else {
+                Integer oldValue = expected.remove(key);
+                assertThat(map.remove(key)).isEqualTo(oldValue == null ? NO_VALUE : oldValue);
+            }
+        }
+
+        assertThat(map.size()).isEqualTo(expected.size());
+        for (long key = 0; key < 2000 * 1024L; key += 1024) {
+            Integer value = expected.get(key);
+            assertThat(map.get(key)).isEqualTo(value == null ? NO_VALUE : value);
+        }
+    }
+
+}
@@ -0,0 +1,13 @@
+package de.bwaldvogel.mongo.backend.memory.offheap;
+
+import de.bwaldvogel.mongo.MongoBackend;
+import de.bwaldvogel.mongo.backend.AbstractAggregationTest;
+
+public class OffHeapBackendAggregationTest extends AbstractAggregationTest {
+
+    @Override
+    protected MongoBackend createBackend() throws Exception {
+        return new OffHeapBackend(64 * 1024);
+    }
+
+}
@@ -0,0 +1,13 @@
+package de.bwaldvogel.mongo.backend.memory.offheap;
+
+import de.bwaldvogel.mongo.MongoBackend;
+import de.bwaldvogel.mongo.backend.AbstractBackendTest;
+
+public class OffHeapBackendTest extends AbstractBackendTest {
+
+    @Override
+    protected MongoBackend createBackend() {
+        return new OffHeapBackend(64 * 1024);
+    }
+
+}
@@ -0,0 +1,49 @@
+package de.bwaldvogel.mongo.backend.memory.offheap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.bwaldvogel.mongo.bson.Document;
+
+public class OffHeapCollectionTest {
+
+    private final SlabAllocator allocator = new SlabAllocator(1024);
+    private final OffHeapCollection collection = new OffHeapCollection("testdb", "testcoll", "_id", allocator);
+
+    @After
+    public void tearDown() {
+        collection.release();
+        allocator.close();
+    }
+
+    @Test
+    public void testFindDocumentPosition() throws Exception {
+        Integer first = collection.addDocumentInternal(new Document("_id", 1).append("value", "a"));
+        Integer second = collection.addDocumentInternal(new Document("_id", 2).append("value", "b"));
+        Integer withoutId = collection.addDocumentInternal(new Document("value", "c"));
+
+        assertThat(collection.findDocumentPosition(new Document("_id", 1).append("value", "a"))).isEqualTo(first);
+        assertThat(collection.findDocumentPosition(new Document("_id", 2).append("value", "b"))).isEqualTo(second);
+        assertThat(collection.findDocumentPosition(new Document("value", "c"))).isEqualTo(withoutId);
+        assertThat(collection.findDocumentPosition(new Document("_id", 2).append("value", "x"))).isNull();
+        assertThat(collection.findDocumentPosition(new Document("_id", 3))).isNull();
+
+        collection.removeDocument(first);
+        assertThat(collection.findDocumentPosition(new Document("_id", 1).append("value", "a"))).isNull();
+    }
+
+    @Test
+    public void testFindDocumentPositionWithDuplicateId() throws Exception {
+        Integer first = collection.addDocumentInternal(new Document("_id", 1).append("value", "a"));
+        Integer duplicate = collection.addDocumentInternal(new Document("_id", 1).append("value", "b"));
+
+        assertThat(collection.findDocumentPosition(new Document("_id", 1).append("value", "a"))).isEqualTo(first);
+        assertThat(collection.findDocumentPosition(new Document("_id", 1).append("value", "b"))).isEqualTo(duplicate);
+
+        collection.removeDocument(first);
+        assertThat(collection.findDocumentPosition(new Document("_id", 1).append("value", "b"))).isEqualTo(duplicate);
+    }
+
+}
@@ -0,0 +1,58 @@
+package de.bwaldvogel.mongo.backend.memory.offheap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SlabAllocatorTest {
+
+    private final SlabAllocator allocator = new SlabAllocator(1024);
+
+    @After
+    public void tearDown() {
+        allocator.close();
+    }
+
+    @Test
+    public void testFreedBlocksAreReused() throws Exception {
+        long first = allocator.allocate(100);
+        long second = allocator.allocate(120);
+        assertThat(first).isNotEqualTo(second);
+        assertThat(allocator.getUsedBytes()).isEqualTo(256);
+
+        allocator.buffer(second, 120).setIntLE(0, 4711);
+        allocator.free(first, 100);
+        assertThat(allocator.getUsedBytes()).isEqualTo(128);
+
+        assertThat(allocator.allocate(65)).isEqualTo(first);
+        assertThat(allocator.buffer(second, 120).getIntLE(0)).isEqualTo(4711);
+        assertThat(allocator.getAllocatedBytes()).isEqualTo(1024);
+    }
+
+    @Test
+    public void testRemainderOfSlabIsReused() throws Exception {
+        allocator.allocate(512);
+        allocator.allocate(256);
+        long large = allocator.allocate(512);
+        assertThat(allocator.getAllocatedBytes()).isEqualTo(2048);
+
+        // the remaining 256 bytes of the first slab
+        long small = allocator.allocate(200);
+        assertThat(small >>> 32).isEqualTo(0);
+        assertThat(large >>> 32).isEqualTo(1);
+        assertThat(allocator.getAllocatedBytes()).isEqualTo(2048);
+    }
+
+    @Test
+    public void testBlockLargerThanSlab() throws Exception {
+        long handle = allocator.allocate(3000);
+        allocator.buffer(handle, 3000).setByte(2999, 42);
+        assertThat(allocator.getAllocatedBytes()).isEqualTo(4096);
+        assertThat(allocator.buffer(handle, 3000).getByte(2999)).isEqualTo((byte) 42);
+
+        long next = allocator.allocate(10);
+        assertThat(next >>> 32).isEqualTo(1);
+    }
+
+}
@@ -0,0 +1,80 @@
+package de.bwaldvogel.mongo.backend.memory.persistence;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.bwaldvogel.mongo.bson.Document;
+
+public class MemoryPersistenceTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testReplayLogWithoutSnapshot() throws Exception {
+        Path directory = tempFolder.newFolder().toPath();
+        MemoryPersistence persistence = new MemoryPersistence(directory, 0, 0);
+        persistence.logInsert("db.coll", 1, new Document("_id", 1));
+        persistence.logInsert("db.coll", 2, new Document("_id", 2));
+        persistence.logUpdate("db.coll", 1, new Document("_id", 1).append("a", "b"));
+        persistence.logDelete("db.coll", 2);
+        persistence.logInsert("db.other", 3, new Document("_id", 3));
+
+        // the first instance is not closed, as after a crash
+        MemoryPersistence recovered = new MemoryPersistence(directory, 0, 0);
+
+        assertThat(recovered.takeRecoveredDocuments("db.coll").values())
+            .containsExactly(new Document("_id", 1).append("a", "b"));
+        assertThat(recovered.takeRecoveredDocuments("db.other").values())
+            .containsExactly(new Document("_id", 3));
+        assertThat(recovered.nextRecordId()).isEqualTo(4);
+        recovered.close();
+    }
+
+    @Test
+    public void testPartiallyWrittenRecordIsTruncated() throws Exception {
+        Path directory = tempFolder.newFolder().toPath();
+        MemoryPersistence persistence = new MemoryPersistence(directory, 0, 0);
+        persistence.logInsert("db.coll", 1, new Document("_id", 1));
+        persistence.logInsert("db.coll", 2, new Document("_id", 2));
+
+        Path segment = directory.resolve(WriteAheadLog.getSegmentFileName(1));
+        long validLength = Files.size(segment);
+        try (FileOutputStream out = new FileOutputStream(segment.toFile(), true)) {
+            out.write(new byte[] { 1, 2, 3, 4, 100, 0, 0, 0, 5 });
+        }
+
+        MemoryPersistence recovered = new MemoryPersistence(directory, 0, 0);
+
+        assertThat(Files.size(segment)).isEqualTo(validLength);
+        assertThat(recovered.takeRecoveredDocuments("db.coll").values())
+            .containsExactly(new Document("_id", 1), new Document("_id", 2));
+        recovered.close();
+    }
+
+    @Test
+    public void testSnapshotDeletesObsoleteFiles() throws Exception {
+        Path directory = tempFolder.newFolder().toPath();
+        MemoryPersistence persistence = new MemoryPersistence(directory, 0, 0);
+        persistence.logInsert("db.coll", 1, new Document("_id", 1));
+        persistence.snapshot();
+        persistence.snapshot();
+        persistence.close();
+
+        List<String> fileNames = new ArrayList<>();
+        Files.list(directory).forEach(file -> fileNames.add(file.getFileName().toString()));
+        assertThat(fileNames).containsOnly(
+            "snapshot-0000000000000000004.bson",
+            WriteAheadLog.getSegmentFileName(4));
+    }
+
+}
@@ -0,0 +1,137 @@
+package de.bwaldvogel.mongo.backend.memory.persistence;
+
+import static de.bwaldvogel.mongo.backend.TestUtils.json;
+import static de.bwaldvogel.mongo.backend.TestUtils.toArray;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mongodb.MongoNamespace;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Updates;
+
+import de.bwaldvogel.mongo.MongoBackend;
+import de.bwaldvogel.mongo.backend.AbstractBackendTest;
+
+public class PersistentMemoryBackendTest extends AbstractBackendTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File directory;
+
+    private PersistentMemoryBackend backend;
+
+    @Override
+    public void setUp() throws Exception {
+        directory = tempFolder.newFolder(getClass().getSimpleName());
+        super.setUp();
+    }
+
+    @Override
+    protected MongoBackend createBackend() throws Exception {
+        backend = new PersistentMemoryBackend(directory.toString());
+        return backend;
+    }
+
+    @Test
+    public void testShutdownAndRestart() throws Exception {
+        collection.insertOne(json("_id: 1, value: 'a'"));
+        collection.insertOne(json("_id: 2, value: 'b'"));
+        collection.insertOne(json("_id: 3, value: 'c'"));
+        collection.updateOne(Filters.eq("_id", 2), Updates.set("value", "x"));
+        collection.deleteOne(Filters.eq("_id", 3));
+
+        restart();
+
+        assertThat(toArray(collection.find()))
+            .containsExactly(json("_id: 1, value: 'a'"), json("_id: 2, value: 'x'"));
+    }
+
+    @Test
+    public void testShutdownAndRestartAfterSnapshot() throws Exception {
+        collection.insertOne(json("_id: 1"));
+        collection.insertOne(json("_id: 2"));
+        backend.snapshot();
+        collection.insertOne(json("_id: 3"));
+        collection.deleteOne(json("_id: 1"));
+        backend.snapshot();
+        collection.updateOne(json("_id: 2"), Updates.set("a", 1));
+
+        restart();
+
+        assertThat(toArray(collection.find())).containsExactly(json("_id: 2, a: 1"), json("_id: 3"));
+
+        collection.insertOne(json("_id: 4"));
+
+        restart();
+
+        assertThat(toArray(collection.find())).containsExactly(json("_id: 2, a: 1"), json("_id: 3"), json("_id: 4"));
+    }
+
+    @Test
+    public void testShutdownAndRestartOpensDatabasesAndCollections() throws Exception {
+        List<String> dbs = Arrays.asList("testdb1", "testdb2");
+        for (String db : dbs) {
+            for (String coll : new String[] { "collection1", "collection2" }) {
+                syncClient.getDatabase(db).getCollection(coll).insertOne(json(""));
+            }
+        }
+        List<String> dbNamesBefore = toArray(syncClient.listDatabaseNames());
+        assertThat(dbNamesBefore).isEqualTo(dbs);
+
+        restart();
+
+        List<String> dbNamesAfter = toArray(syncClient.listDatabaseNames());
+        assertThat(dbNamesAfter).isEqualTo(dbs);
+    }
+
+    @Test
+    public void testShutdownAndRestartOpensIndexes() throws Exception {
+        collection.createIndex(json("a: 1"), new IndexOptions().unique(true));
+        List<Document> indexes = toArray(getCollection("system.indexes").find());
+        assertThat(indexes).hasSize(2);
+
+        collection.insertOne(json("_id: 1, a: 1"));
+
+        restart();
+
+        assertThat(toArray(getCollection("system.indexes").find())).isEqualTo(indexes);
+        assertThatExceptionOfType(MongoWriteException.class)
+            .isThrownBy(() -> collection.insertOne(json("_id: 2, a: 1")))
+            .withMessage("duplicate key error index: a_1 dup key: { : 1.0 }");
+    }
+
+    @Test
+    public void testShutdownAndRestartAfterDropAndRename() throws Exception {
+        collection.insertOne(json("_id: 1"));
+        getCollection("other").insertOne(json("_id: 2"));
+        getCollection("dropped").insertOne(json("_id: 3"));
+        getCollection("dropped").drop();
+        getCollection("other").renameCollection(new MongoNamespace(TEST_DATABASE_NAME, "renamed"));
+        getCollection("other").insertOne(json("_id: 4"));
+
+        restart();
+
+        assertThat(toArray(db.listCollectionNames())).containsOnly("system.indexes", "testcoll", "other", "renamed");
+        assertThat(toArray(getCollection("renamed").find())).containsExactly(json("_id: 2"));
+        assertThat(toArray(getCollection("other").find())).containsExactly(json("_id: 4"));
+        assertThat(getCollection("dropped").count()).isZero();
+    }
+
+    private void restart() throws Exception {
+        shutdownServer();
+        spinUpServer();
+    }
+
+}
@@ -7,14 +7,25 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
+import java.util.stream.Stream;
 
 import de.bwaldvogel.mongo.backend.AbstractMongoCollection;
+import de.bwaldvogel.mongo.backend.CompiledQuery;
+import de.bwaldvogel.mongo.backend.DocumentWithPosition;
+import de.bwaldvogel.mongo.backend.Index;
+import de.bwaldvogel.mongo.backend.Utils;
+import de.bwaldvogel.mongo.backend.postgresql.index.PostgresUniqueIndex;
 import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.exception.MongoServerError;
 import de.bwaldvogel.mongo.exception.MongoServerException;
 
 public class PostgresqlCollection extends AbstractMongoCollection<Long> {
 
+    private static final String UNIQUE_VIOLATION = "23505";
+    private static final int FETCH_SIZE = 1000;
+
     private final PostgresqlBackend backend;
 
     public PostgresqlCollection(PostgresqlBackend backend, String databaseName, String collectionName, String idField) {
@@ -42,33 +53,80 @@ public class PostgresqlCollection extends AbstractMongoCollection<Long> {
         }
     }
 
+    /**
+     * Counts in the database if the filter is exact. Otherwise the remaining conditions
+     * are evaluated on every row that the filter selects.
+     */
+    @Override
+    public synchronized int count(Document query, int skip, int limit) {
+        SqlFilter filter = SqlFilter.fromQuery(query, idField);
+        if (query.isEmpty() || !filter.isExact()) {
+            return super.count(query, skip, limit);
+        }
+
+        String sql = "SELECT COUNT(*) FROM " + getQualifiedTablename() + filter.getWhereClause();
+        String skipAndLimit = convertSkipAndLimitToSql(skip, limit);
+        if (!skipAndLimit.isEmpty()) {
+            sql = "SELECT COUNT(*) FROM (SELECT id FROM " + getQualifiedTablename() + filter.getWhereClause() + " " + skipAndLimit + ") AS matched";
+        }
+        try (Connection connection = backend.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(sql)
+        ) {
+            filter.setParameters(stmt, 1);
+            return Math.toIntExact(querySingleValue(stmt));
+        } catch (SQLException e) {
+            throw new MongoServerException("failed to count " + this, e);
+        }
+    }
+
+    /**
+     * Skip and limit are applied by the database if the filter is exact. The rows are
+     * fetched in chunks, which the driver only does within a transaction.
+     */
     @Override
     protected Iterable<Document> matchDocuments(Document query, Document orderBy, int numberToSkip, int numberToReturn) {
         Collection<Document> matchedDocuments = new ArrayList<>();
 
         int numMatched = 0;
+        CompiledQuery compiledQuery = CompiledQuery.compile(query);
 
-        String sql = "SELECT data FROM " + getQualifiedTablename() + " " + convertOrderByToSql(orderBy);
-        try (Connection connection = backend.getConnection();
-             PreparedStatement stmt = connection.prepareStatement(sql)
-        ) {
-            try (ResultSet resultSet = stmt.executeQuery()) {
-                while (resultSet.next()) {
-                    String data = resultSet.getString("data");
-                    Document document = JsonConverter.fromJson(data);
-                    if (documentMatchesQuery(document, query)) {
-                        numMatched++;
-                        if (numberToSkip <= 0 || numMatched > numberToSkip) {
-                            matchedDocuments.add(document);
-                        }
-                        if (numberToReturn > 0 && matchedDocuments.size() == numberToReturn) {
-                            break;
+        SqlFilter filter = SqlFilter.fromQuery(query, idField);
+        String sql = "SELECT document FROM " + getQualifiedTablename() + filter.getWhereClause() + " " + convertOrderByToSql(orderBy);
+        if (filter.isExact()) {
+            sql += " " + convertSkipAndLimitToSql(numberToSkip, numberToReturn);
+            numberToSkip = 0;
+        }
+        try (Connection connection = backend.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setFetchSize(FETCH_SIZE);
+                filter.setParameters(stmt, 1);
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    while (resultSet.next()) {
+                        String json = resultSet.getString("document");
+                        Document document = JsonConverter.fromJson(json);
+                        // the filter selects a superset, conditions that are not translated remain
+                        if (documentMatchesQuery(document, compiledQuery)) {
+                            numMatched++;
+                            if (numberToSkip <= 0 || numMatched > numberToSkip) {
+                                matchedDocuments.add(document);
+                            }
+                            if (numberToReturn > 0 && matchedDocuments.size() == numberToReturn) {
+                                break;
+                            }
                         }
                     }
                 }
-            } catch (IOException e) {
-                throw new MongoServerException("failed to parse document", e);
+                connection.commit();
+            } catch (SQLException | IOException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
             }
+        } catch (IOException e) {
+            throw new MongoServerException("failed to parse document", e);
         } catch (SQLException e) {
             throw new MongoServerException("failed to query " + this, e);
         }
@@ -76,6 +134,20 @@ public class PostgresqlCollection extends AbstractMongoCollection<Long> {
         return matchedDocuments;
     }
 
+    static String convertSkipAndLimitToSql(int numberToSkip, int numberToReturn) {
+        StringBuilder sql = new StringBuilder();
+        if (numberToReturn > 0) {
+            sql.append("LIMIT ").append(numberToReturn);
+        }
+        if (numberToSkip > 0) {
+            if (sql.length() > 0) {
+                sql.append(" ");
+            }
+            sql.append("OFFSET ").append(numberToSkip);
+        }
+        return sql.toString();
+    }
+
     static String convertOrderByToSql(Document orderBy) {
         StringBuilder orderBySql = new StringBuilder();
         if (orderBy != null && !orderBy.isEmpty()) {
@@ -127,15 +199,20 @@ public class PostgresqlCollection extends AbstractMongoCollection<Long> {
 
     @Override
     protected void updateDataSize(long sizeDelta) {
-        try (Connection connection = backend.getConnection();
-             PreparedStatement stmt = connection.prepareStatement("UPDATE " + getDatabaseName() + "._meta" +
-                 " SET datasize = datasize + ? WHERE collection_name = ?")
+        try (Connection connection = backend.getConnection()) {
+            updateDataSize(connection, sizeDelta);
+        } catch (SQLException e) {
+            throw new MongoServerException("failed to update datasize", e);
+        }
+    }
+
+    private void updateDataSize(Connection connection, long sizeDelta) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("UPDATE " + getDatabaseName() + "._meta" +
+            " SET datasize = datasize + ? WHERE collection_name = ?")
         ) {
             stmt.setLong(1, sizeDelta);
             stmt.setString(2, getCollectionName());
             stmt.executeUpdate();
-        } catch (SQLException e) {
-            throw new MongoServerException("failed to update datasize", e);
         }
     }
 
@@ -169,19 +246,103 @@ public class PostgresqlCollection extends AbstractMongoCollection<Long> {
     protected Long addDocumentInternal(Document document) {
         try (Connection connection = backend.getConnection();
              PreparedStatement stmt = connection.prepareStatement("INSERT INTO " + getQualifiedTablename() +
-                 " (data) VALUES (?::json)" +
+                 " (data, document) VALUES (?::jsonb, ?)" +
                  " RETURNING ID")
         ) {
             String documentAsJson = JsonConverter.toJson(document);
             stmt.setString(1, documentAsJson);
+            stmt.setString(2, documentAsJson);
             return querySingleValue(stmt);
         } catch (SQLException e) {
+            if (isUniqueViolation(e)) {
+                for (Index<Long> index : getIndexes()) {
+                    if (index instanceof PostgresUniqueIndex) {
+                        ((PostgresUniqueIndex) index).checkNoDuplicateKey(document);
+                    }
+                }
+            }
             throw new MongoServerException("failed to insert " + document, e);
         } catch (IOException e) {
             throw new MongoServerException("failed to serialize " + document, e);
         }
     }
 
+    /**
+     * Documents with a null value for the keys of a unique index are added one by one,
+     * since the unique index of the table does not reject their duplicates.
+     */
+    @Override
+    protected boolean canAddDocumentsAtOnce(List<Document> documents) {
+        for (Index<Long> index : getIndexes()) {
+            if (index instanceof PostgresUniqueIndex) {
+                for (Document document : documents) {
+                    if (!((PostgresUniqueIndex) index).isEnforcedByConstraint(document)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Inserts the documents with a single batch and updates the data size in the same
+     * transaction. A duplicate key rolls back the transaction, so the documents are
+     * added one by one to find it.
+     */
+    @Override
+    protected List<Long> addDocumentsInternal(List<Document> documents) {
+        String sql = "INSERT INTO " + getQualifiedTablename() + " (data, document) VALUES (?::jsonb, ?)";
+        List<Long> positions = new ArrayList<>(documents.size());
+        try (Connection connection = backend.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement stmt = connection.prepareStatement(sql, new String[] { "id" })) {
+                long dataSize = 0;
+                for (Document document : documents) {
+                    String documentAsJson = JsonConverter.toJson(document);
+                    stmt.setString(1, documentAsJson);
+                    stmt.setString(2, documentAsJson);
+                    stmt.addBatch();
+                    dataSize += Utils.calculateSize(document);
+                }
+                stmt.executeBatch();
+                try (ResultSet generatedKeys = stmt.getGeneratedKeys()) {
+                    while (generatedKeys.next()) {
+                        positions.add(Long.valueOf(generatedKeys.getLong(1)));
+                    }
+                }
+                updateDataSize(connection, dataSize);
+                connection.commit();
+            } catch (SQLException | IOException | RuntimeException e) {
+                connection.rollback();
+                if (e instanceof SQLException && isUniqueViolation((SQLException) e)) {
+                    throw new MongoServerError(11000, "DuplicateKey", "duplicate key error in " + getFullName());
+                }
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new MongoServerException("failed to insert documents into " + this, e);
+        } catch (IOException e) {
+            throw new MongoServerException("failed to serialize documents of " + this, e);
+        }
+        if (positions.size() != documents.size()) {
+            throw new MongoServerException("got " + positions.size() + " ids for " + documents.size() + " documents");
+        }
+        return positions;
+    }
+
+    private static boolean isUniqueViolation(SQLException e) {
+        for (SQLException exception = e; exception != null; exception = exception.getNextException()) {
+            if (UNIQUE_VIOLATION.equals(exception.getSQLState())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private String getQualifiedTablename() {
         return getQualifiedTablename(getDatabaseName(), getCollectionName());
     }
@@ -211,10 +372,11 @@ public class PostgresqlCollection extends AbstractMongoCollection<Long> {
     @Override
     protected Long findDocumentPosition(Document document) {
         if (document.containsKey(idField)) {
-            String sql = "SELECT id FROM " + getQualifiedTablename() + " WHERE " + PostgresqlUtils.toDataKey(idField) + " = ?";
+            Object idValue = document.get(idField);
+            String sql = "SELECT id FROM " + getQualifiedTablename() + " WHERE " + PostgresqlUtils.toDataKey(idField) + " = " + PostgresqlUtils.toQueryPlaceholder(idValue);
             try (Connection connection = backend.getConnection();
                  PreparedStatement stmt = connection.prepareStatement(sql)) {
-                stmt.setString(1, PostgresqlUtils.toQueryValue(document.get(idField)));
+                stmt.setString(1, PostgresqlUtils.toQueryValue(idValue));
                 try (ResultSet resultSet = stmt.executeQuery()) {
                     if (!resultSet.next()) {
                         return null;
@@ -234,13 +396,42 @@ public class PostgresqlCollection extends AbstractMongoCollection<Long> {
     }
 
     @Override
-    protected void handleUpdate(Document document) {
-        String sql = "UPDATE " + getQualifiedTablename() + " SET data = ?::json WHERE " + PostgresqlUtils.toDataKey(idField) + " = ?";
+    protected Stream<DocumentWithPosition<Long>> streamAllDocumentsWithPosition() {
+        List<DocumentWithPosition<Long>> documents = new ArrayList<>();
+        try (Connection connection = backend.getConnection();
+             PreparedStatement stmt = connection.prepareStatement("SELECT id, document FROM " + getQualifiedTablename() + " ORDER BY id")
+        ) {
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    Long position = Long.valueOf(resultSet.getLong("id"));
+                    Document document = JsonConverter.fromJson(resultSet.getString("document"));
+                    documents.add(new DocumentWithPosition<>(document, position));
+                }
+            }
+        } catch (SQLException e) {
+            throw new MongoServerException("failed to read the documents of " + this, e);
+        } catch (IOException e) {
+            throw new MongoServerException("failed to parse document", e);
+        }
+        return documents.stream();
+    }
+
+    @Override
+    protected void indexExistingDocuments(Index<Long> index) {
+        // the unique index is created and filled by the database
+    }
+
+    @Override
+    protected void handleUpdate(Long position, Document document) {
+        Object idValue = document.get(idField);
+        String sql = "UPDATE " + getQualifiedTablename() + " SET data = ?::jsonb, document = ?" +
+            " WHERE " + PostgresqlUtils.toDataKey(idField) + " = " + PostgresqlUtils.toQueryPlaceholder(idValue);
         try (Connection connection = backend.getConnection();
              PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, JsonConverter.toJson(document));
-            Object idValue = document.get(idField);
-            stmt.setString(2, PostgresqlUtils.toQueryValue(idValue));
+            String documentAsJson = JsonConverter.toJson(document);
+            stmt.setString(1, documentAsJson);
+            stmt.setString(2, documentAsJson);
+            stmt.setString(3, PostgresqlUtils.toQueryValue(idValue));
             stmt.executeUpdate();
         } catch (SQLException | IOException e) {
             throw new MongoServerException("failed to update document in " + this, e);
@@ -2,18 +2,25 @@ package de.bwaldvogel.mongo.backend.postgresql;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import de.bwaldvogel.mongo.MongoCollection;
 import de.bwaldvogel.mongo.backend.AbstractMongoDatabase;
 import de.bwaldvogel.mongo.backend.Index;
 import de.bwaldvogel.mongo.backend.IndexKey;
+import de.bwaldvogel.mongo.backend.postgresql.index.PostgresNonUniqueIndex;
 import de.bwaldvogel.mongo.backend.postgresql.index.PostgresUniqueIndex;
 import de.bwaldvogel.mongo.exception.MongoServerException;
 
 public class PostgresqlDatabase extends AbstractMongoDatabase<Long> {
 
+    private static final Logger log = LoggerFactory.getLogger(PostgresqlDatabase.class);
+
     private final PostgresqlBackend backend;
 
     public PostgresqlDatabase(String databaseName, PostgresqlBackend backend) {
@@ -64,22 +71,37 @@ public class PostgresqlDatabase extends AbstractMongoDatabase<Long> {
         super.dropCollection(collectionName);
     }
 
+    @Override
+    protected Index<Long> openOrCreateNonUniqueIndex(String collectionName, List<IndexKey> keys) {
+        return new PostgresNonUniqueIndex(backend, databaseName, collectionName, keys);
+    }
+
+    /**
+     * The documents are queried in the jsonb column {@code data} and read from the text
+     * column {@code document}, which keeps the order of the keys.
+     */
     @Override
     protected MongoCollection<Long> openOrCreateCollection(String collectionName, String idField) {
         String tableName = PostgresqlCollection.getTablename(collectionName);
         String fullCollectionName = PostgresqlCollection.getQualifiedTablename(getDatabaseName(), collectionName);
         String createTableSql = "CREATE TABLE IF NOT EXISTS " + fullCollectionName + "" +
             " (id serial," +
-            "  data json," +
+            "  data jsonb," +
+            "  document text," +
             " CONSTRAINT \"pk_" + tableName + "\" PRIMARY KEY (id)" +
             ")";
+        String createIndexSql = "CREATE INDEX IF NOT EXISTS \"" + tableName + "_data\" ON " + fullCollectionName +
+            " USING GIN (data jsonb_path_ops)";
         String insertSql = "INSERT INTO " + getDatabaseName() + "._meta (collection_name, datasize) VALUES (?, 0) ON CONFLICT DO NOTHING";
         try (Connection connection = backend.getConnection();
              PreparedStatement stmt1 = connection.prepareStatement(createTableSql);
-             PreparedStatement stmt2 = connection.prepareStatement(insertSql)) {
+             PreparedStatement stmt2 = connection.prepareStatement(createIndexSql);
+             PreparedStatement stmt3 = connection.prepareStatement(insertSql)) {
             stmt1.executeUpdate();
-            stmt2.setString(1, collectionName);
+            upgradeJsonTable(connection, tableName, fullCollectionName);
             stmt2.executeUpdate();
+            stmt3.setString(1, collectionName);
+            stmt3.executeUpdate();
         } catch (SQLException e) {
             throw new MongoServerException("failed to create or open collection " + collectionName, e);
         }
@@ -87,6 +109,40 @@ public class PostgresqlDatabase extends AbstractMongoDatabase<Long> {
         return new PostgresqlCollection(this.backend, getDatabaseName(), collectionName, idField);
     }
 
+    /**
+     * Converts a table whose documents are stored in a json column.
+     */
+    private void upgradeJsonTable(Connection connection, String tableName, String fullCollectionName) throws SQLException {
+        String columnTypeSql = "SELECT data_type FROM information_schema.columns" +
+            " WHERE table_schema = ? AND table_name = ? AND column_name = 'data'";
+        try (PreparedStatement stmt = connection.prepareStatement(columnTypeSql)) {
+            stmt.setString(1, getSchemaName());
+            stmt.setString(2, tableName);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                if (!resultSet.next() || !resultSet.getString(1).equals("json")) {
+                    return;
+                }
+            }
+        }
+
+        log.info("converting the documents of {} to jsonb", fullCollectionName);
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement stmt1 = connection.prepareStatement("ALTER TABLE " + fullCollectionName + " ADD COLUMN IF NOT EXISTS document text");
+             PreparedStatement stmt2 = connection.prepareStatement("UPDATE " + fullCollectionName + " SET document = data::text");
+             PreparedStatement stmt3 = connection.prepareStatement("ALTER TABLE " + fullCollectionName + " ALTER COLUMN data TYPE jsonb USING data::jsonb")) {
+            stmt1.executeUpdate();
+            stmt2.executeUpdate();
+            stmt3.executeUpdate();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
     static String getSchemaName(String databaseName) {
         if (!databaseName.matches("^[a-zA-Z0-9_-]+$")) {
             throw new IllegalArgumentException("Illegal database name: " + databaseName);
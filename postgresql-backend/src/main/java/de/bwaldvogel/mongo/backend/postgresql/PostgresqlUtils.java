@@ -15,15 +15,34 @@ public final class PostgresqlUtils {
     private PostgresqlUtils() {
     }
 
+    public static boolean isValidKey(String key) {
+        return key.matches("^[a-zA-Z0-9_.]+$");
+    }
+
+    /**
+     * Returns the SQL expression of the value of the key as text.
+     */
     public static String toDataKey(String key) {
-        if (!key.matches("^[a-zA-Z0-9_.]+$")) {
+        return toDataKey(key, " ->> ");
+    }
+
+    /**
+     * Returns the SQL expression of the value of the key as JSON, which is NULL
+     * if the document does not contain the key.
+     */
+    public static String toJsonDataKey(String key) {
+        return toDataKey(key, " -> ");
+    }
+
+    private static String toDataKey(String key, String lastOperator) {
+        if (!isValidKey(key)) {
             throw new IllegalArgumentException("Illegal key: " + key);
         }
         List<String> keys = Arrays.asList(key.split("\\."));
         StringBuilder sb = new StringBuilder("data");
         for (int i = 0; i < keys.size(); i++) {
             if (i == keys.size() - 1) {
-                sb.append(" ->> ");
+                sb.append(lastOperator);
             } else {
                 sb.append(" -> ");
             }
@@ -50,6 +69,18 @@ public final class PostgresqlUtils {
         }
     }
 
+    /**
+     * Returns the placeholder of a value from {@link #toQueryValue(Object)} that is compared
+     * with {@link #toDataKey(String)}. Values that are serialized as JSON are normalized like
+     * the stored jsonb values, which for example do not keep the order of the keys.
+     */
+    public static String toQueryPlaceholder(Object queryValue) {
+        if (queryValue instanceof String || queryValue instanceof Number) {
+            return "?";
+        }
+        return "(?::jsonb)::text";
+    }
+
     private static String toJsonWithClass(Object queryValue) throws IOException {
         String valueAsJson = toJson(queryValue);
         return valueAsJson.replaceFirst("\\{", "\\{\"@class\":\"" + queryValue.getClass().getName() + "\",");
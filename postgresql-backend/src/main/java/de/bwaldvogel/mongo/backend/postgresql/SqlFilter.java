@@ -0,0 +1,439 @@
+package de.bwaldvogel.mongo.backend.postgresql;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.stream.Collectors;
+
+import de.bwaldvogel.mongo.backend.Utils;
+import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.bson.ObjectId;
+import de.bwaldvogel.mongo.exception.MongoServerException;
+
+/**
+ * The SQL predicate of a query on the jsonb column of a collection table.
+ * <p>
+ * The predicate selects a superset of the matching documents: conditions that cannot be
+ * expressed in SQL are left out and documents that might match through an array or a
+ * wrapped value, such as a {@code Long} that is stored as {@code ["java.lang.Long", 1]},
+ * are selected if the predicate cannot tell. The selected documents are therefore filtered
+ * by the query again. The filter is exact if it selects the matching documents only, which
+ * is the case if all conditions were translated and none of them had to select such
+ * documents.
+ * <p>
+ * Equality is translated to containment, which is answered by the GIN index of the table.
+ */
+final class SqlFilter {
+
+    private static final SqlFilter MATCH_ALL = new SqlFilter("TRUE", Collections.emptyList(), true);
+
+    private final String predicate;
+    private final List<Object> parameters;
+    private final boolean exact;
+
+    private SqlFilter(String predicate, List<Object> parameters, boolean exact) {
+        this.predicate = predicate;
+        this.parameters = parameters;
+        this.exact = exact;
+    }
+
+    static SqlFilter fromQuery(Document query, String idField) {
+        if (query == null || query.isEmpty()) {
+            return MATCH_ALL;
+        }
+        return new Translator(idField).translateQuery(query);
+    }
+
+    String getWhereClause() {
+        if (predicate.equals("TRUE")) {
+            return "";
+        }
+        return " WHERE " + predicate;
+    }
+
+    boolean isExact() {
+        return exact;
+    }
+
+    List<Object> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return the index of the next parameter
+     */
+    int setParameters(PreparedStatement stmt, int firstIndex) throws SQLException {
+        int index = firstIndex;
+        for (Object parameter : parameters) {
+            stmt.setObject(index++, parameter);
+        }
+        return index;
+    }
+
+    private static final class Translator {
+
+        private final String idField;
+        private final List<Object> parameters = new ArrayList<>();
+        private boolean exact = true;
+
+        private Translator(String idField) {
+            this.idField = idField;
+        }
+
+        private SqlFilter translateQuery(Document query) {
+            String predicate = translateDocument(query);
+            return new SqlFilter(predicate, parameters, exact);
+        }
+
+        private String translateDocument(Document query) {
+            List<String> predicates = new ArrayList<>();
+            for (Entry<String, Object> entry : query.entrySet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                if (key.equals("$and")) {
+                    predicates.add(translateConjunction(value));
+                } else if (key.equals("$or")) {
+                    predicates.add(translateDisjunction(value));
+                } else if (key.startsWith("$") || !PostgresqlUtils.isValidKey(key)) {
+                    predicates.add(residual());
+                } else {
+                    predicates.add(translateField(key, value));
+                }
+            }
+            return and(predicates);
+        }
+
+        private String translateConjunction(Object value) {
+            List<String> predicates = new ArrayList<>();
+            for (Document query : getSubqueries(value)) {
+                predicates.add(query != null ? translateDocument(query) : residual());
+            }
+            return and(predicates);
+        }
+
+        private String translateDisjunction(Object value) {
+            int firstParameter = parameters.size();
+            List<String> predicates = new ArrayList<>();
+            for (Document query : getSubqueries(value)) {
+                String predicate = query != null ? translateDocument(query) : residual();
+                if (predicate.equals("TRUE")) {
+                    return matchAll(firstParameter);
+                }
+                predicates.add(predicate);
+            }
+            return or(predicates);
+        }
+
+        private List<Document> getSubqueries(Object value) {
+            if (!(value instanceof Collection<?>) || ((Collection<?>) value).isEmpty()) {
+                // invalid, the query matcher reports the error
+                return Collections.singletonList(null);
+            }
+            List<Document> queries = new ArrayList<>();
+            for (Object query : (Collection<?>) value) {
+                queries.add(query instanceof Document ? (Document) query : null);
+            }
+            return queries;
+        }
+
+        private String translateField(String key, Object value) {
+            if (isOperatorDocument(value)) {
+                List<String> predicates = new ArrayList<>();
+                for (Entry<String, Object> entry : ((Document) value).entrySet()) {
+                    predicates.add(translateOperator(key, entry.getKey(), entry.getValue()));
+                }
+                return and(predicates);
+            }
+            return translateEquals(key, value);
+        }
+
+        private String translateOperator(String key, String operator, Object value) {
+            switch (operator) {
+                case "$eq":
+                    return translateEquals(key, value);
+                case "$in":
+                    return translateIn(key, value);
+                case "$gt":
+                    return translateComparison(key, ">", value);
+                case "$gte":
+                    return translateComparison(key, ">=", value);
+                case "$lt":
+                    return translateComparison(key, "<", value);
+                case "$lte":
+                    return translateComparison(key, "<=", value);
+                case "$exists":
+                    return translateExists(key, value);
+                default:
+                    return residual();
+            }
+        }
+
+        private String translateIn(String key, Object value) {
+            if (!(value instanceof Collection<?>)) {
+                return residual();
+            }
+            int firstParameter = parameters.size();
+            List<String> predicates = new ArrayList<>();
+            for (Object inValue : (Collection<?>) value) {
+                String predicate = translateEquals(key, inValue);
+                if (predicate.equals("TRUE")) {
+                    return matchAll(firstParameter);
+                }
+                predicates.add(predicate);
+            }
+            return or(predicates);
+        }
+
+        private String translateEquals(String key, Object value) {
+            if (key.equals(idField) && !(value instanceof Number)) {
+                return translateEqualsOnId(key, value);
+            }
+            List<String> literals = toJsonLiterals(value);
+            if (literals == null) {
+                return residual();
+            }
+            List<String> predicates = new ArrayList<>();
+            for (String literal : literals) {
+                predicates.add(contains(key, literal));
+                if (isTopLevel(key)) {
+                    // an array stored as ["class name", [elements]]
+                    predicates.add(contains(key, "[[" + literal + "]]"));
+                }
+            }
+            String predicate = or(predicates);
+            if (isTopLevel(key)) {
+                return predicate;
+            }
+            exact = false;
+            return or(predicate, arraysOnPath(key));
+        }
+
+        /**
+         * The id cannot be an array and its equality is answered by the unique index of the id.
+         */
+        private String translateEqualsOnId(String key, Object value) {
+            String json = PostgresqlUtils.toJsonDataKey(key);
+            String text = PostgresqlUtils.toDataKey(key);
+            final String type;
+            if (value instanceof String) {
+                type = "string";
+            } else if (value instanceof Boolean) {
+                type = "boolean";
+            } else if (value instanceof ObjectId) {
+                type = "object";
+            } else {
+                return residual();
+            }
+            parameters.add(toQueryValue(value));
+            return "jsonb_typeof(" + json + ") = '" + type + "' AND " + text + " = " + PostgresqlUtils.toQueryPlaceholder(value);
+        }
+
+        /**
+         * Returns the containment of the literal at the path of the key, which is answered
+         * by the GIN index of the data.
+         */
+        private String contains(String key, String literal) {
+            StringBuilder json = new StringBuilder();
+            String[] parts = key.split("\\.");
+            for (String part : parts) {
+                json.append("{\"").append(part).append("\":");
+            }
+            json.append(literal);
+            for (int i = 0; i < parts.length; i++) {
+                json.append("}");
+            }
+            parameters.add(json.toString());
+            return "data @> ?::jsonb";
+        }
+
+        /**
+         * Returns the JSON representations of a value as it is stored or null if the
+         * value is not supported. An integral number is also stored as a wrapped Long.
+         */
+        private static List<String> toJsonLiterals(Object value) {
+            if (value instanceof String) {
+                return Collections.singletonList(toJson(value));
+            } else if (value instanceof Boolean) {
+                return Collections.singletonList(value.toString());
+            } else if (value instanceof ObjectId) {
+                return Collections.singletonList(toQueryValue(value));
+            } else if (isFiniteNumber(value)) {
+                BigDecimal number = toBigDecimal((Number) value);
+                List<String> literals = new ArrayList<>();
+                literals.add(number.toPlainString());
+                if (isLong(number)) {
+                    literals.add("[\"" + Long.class.getName() + "\"," + number.longValue() + "]");
+                }
+                return literals;
+            }
+            return null;
+        }
+
+        private static boolean isLong(BigDecimal number) {
+            try {
+                number.longValueExact();
+                return true;
+            } catch (ArithmeticException e) {
+                return false;
+            }
+        }
+
+        private static String toJson(Object value) {
+            try {
+                return JsonConverter.toJson(value);
+            } catch (IOException e) {
+                throw new MongoServerException("failed to serialize " + value, e);
+            }
+        }
+
+        private static String toQueryValue(Object value) {
+            try {
+                return PostgresqlUtils.toQueryValue(value);
+            } catch (IOException e) {
+                throw new MongoServerException("failed to serialize " + value, e);
+            }
+        }
+
+        /**
+         * Strings are compared by their UTF-8 bytes like in MongoDB, and values of
+         * other types never match a comparison with a string or number.
+         */
+        private String translateComparison(String key, String comparator, Object value) {
+            String json = PostgresqlUtils.toJsonDataKey(key);
+            String text = PostgresqlUtils.toDataKey(key);
+            final String predicate;
+            if (value instanceof String) {
+                parameters.add(value);
+                predicate = "jsonb_typeof(" + json + ") = 'string' AND (" + text + ") COLLATE \"C\" " + comparator + " ?";
+            } else if (isFiniteNumber(value)) {
+                parameters.add(toBigDecimal((Number) value));
+                predicate = "CASE WHEN jsonb_typeof(" + json + ") = 'number' THEN (" + text + ")::numeric " + comparator + " ? ELSE FALSE END";
+            } else {
+                return residual();
+            }
+            return withArrays(key, value, predicate);
+        }
+
+        private String translateExists(String key, Object value) {
+            String json = PostgresqlUtils.toJsonDataKey(key);
+            String predicate = json + (Utils.isTrue(value) ? " IS NOT NULL" : " IS NULL");
+            if (!isTopLevel(key)) {
+                // a field of documents in an array does not have a JSON path
+                exact = false;
+                return or(predicate, arraysOnPath(key));
+            }
+            return predicate;
+        }
+
+        /**
+         * Adds the documents that have an array or a wrapped value on the path of the key.
+         * Their values are compared by the query matcher. The id cannot be an array, so
+         * ids that are stored as strings are compared exactly.
+         */
+        private String withArrays(String key, Object value, String predicate) {
+            if (key.equals(idField) && value instanceof String) {
+                return predicate;
+            }
+            exact = false;
+            return or(predicate, arraysOnPath(key));
+        }
+
+        private static String arraysOnPath(String key) {
+            List<String> predicates = new ArrayList<>();
+            StringBuilder path = new StringBuilder();
+            for (String part : key.split("\\.")) {
+                if (path.length() > 0) {
+                    path.append(".");
+                }
+                path.append(part);
+                predicates.add("jsonb_typeof(" + PostgresqlUtils.toJsonDataKey(path.toString()) + ") = 'array'");
+            }
+            return or(predicates);
+        }
+
+        /**
+         * Drops the parameters of the alternatives that were translated before one
+         * that matches all documents.
+         */
+        private String matchAll(int firstParameter) {
+            parameters.subList(firstParameter, parameters.size()).clear();
+            return "TRUE";
+        }
+
+        private String residual() {
+            exact = false;
+            return "TRUE";
+        }
+
+        private static boolean isOperatorDocument(Object value) {
+            if (!(value instanceof Document)) {
+                return false;
+            }
+            return ((Document) value).keySet().stream().anyMatch(key -> key.startsWith("$"));
+        }
+
+        private static boolean isTopLevel(String key) {
+            return !key.contains(".");
+        }
+
+        private static boolean isFiniteNumber(Object value) {
+            if (value instanceof Double || value instanceof Float) {
+                double doubleValue = ((Number) value).doubleValue();
+                return !Double.isNaN(doubleValue) && !Double.isInfinite(doubleValue);
+            }
+            return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+        }
+
+        private static BigDecimal toBigDecimal(Number value) {
+            if (value instanceof Double || value instanceof Float) {
+                return BigDecimal.valueOf(value.doubleValue());
+            }
+            return BigDecimal.valueOf(value.longValue());
+        }
+
+        private static String and(List<String> predicates) {
+            List<String> relevant = new ArrayList<>();
+            for (String predicate : predicates) {
+                if (!predicate.equals("TRUE")) {
+                    relevant.add(predicate);
+                }
+            }
+            if (relevant.isEmpty()) {
+                return "TRUE";
+            }
+            return join(relevant, " AND ");
+        }
+
+        private static String or(String... predicates) {
+            return or(Arrays.asList(predicates));
+        }
+
+        private static String or(List<String> predicates) {
+            if (predicates.isEmpty()) {
+                return "FALSE";
+            }
+            if (predicates.contains("TRUE")) {
+                return "TRUE";
+            }
+            return join(predicates, " OR ");
+        }
+
+        private static String join(List<String> predicates, String operator) {
+            if (predicates.size() == 1) {
+                return predicates.get(0);
+            }
+            return predicates.stream()
+                .map(predicate -> "(" + predicate + ")")
+                .collect(Collectors.joining(operator));
+        }
+
+    }
+
+}
@@ -0,0 +1,88 @@
+package de.bwaldvogel.mongo.backend.postgresql.index;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import de.bwaldvogel.mongo.backend.Index;
+import de.bwaldvogel.mongo.backend.IndexKey;
+import de.bwaldvogel.mongo.backend.postgresql.PostgresqlBackend;
+import de.bwaldvogel.mongo.backend.postgresql.PostgresqlCollection;
+import de.bwaldvogel.mongo.backend.postgresql.PostgresqlUtils;
+import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.exception.KeyConstraintError;
+import de.bwaldvogel.mongo.exception.MongoServerException;
+
+/**
+ * A B-tree expression index that is maintained by the database. Its expressions equal
+ * the ones of the ORDER BY clauses, so sorted queries are read in index order.
+ */
+public class PostgresNonUniqueIndex extends Index<Long> {
+
+    public PostgresNonUniqueIndex(PostgresqlBackend backend, String databaseName, String collectionName, List<IndexKey> keys) {
+        super(keys);
+        String fullCollectionName = PostgresqlCollection.getQualifiedTablename(databaseName, collectionName);
+        String indexName = collectionName + "_" + PostgresUniqueIndex.indexName(keys);
+        String sql = "CREATE INDEX IF NOT EXISTS \"" + indexName + "\" ON " + fullCollectionName + " (" + keyColumns(keys) + ")";
+        try (Connection connection = backend.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new MongoServerException("failed to create index on " + fullCollectionName, e);
+        }
+    }
+
+    private static String keyColumns(List<IndexKey> keys) {
+        return keys.stream()
+            .map(key -> "(" + PostgresqlUtils.toDataKey(key.getKey()) + ") " + (key.isAscending() ? "ASC" : "DESC") + " NULLS LAST")
+            .collect(Collectors.joining(", "));
+    }
+
+    @Override
+    public void checkAdd(Document document) {
+    }
+
+    @Override
+    public void add(Document document, Long position) {
+    }
+
+    @Override
+    public Long remove(Document document) {
+        return null;
+    }
+
+    @Override
+    public Long getPosition(Document document) {
+        return null;
+    }
+
+    @Override
+    public boolean canHandle(Document query) {
+        return false;
+    }
+
+    @Override
+    public Iterable<Long> getPositions(Document query) {
+        return null;
+    }
+
+    @Override
+    public long getCount() {
+        return 0;
+    }
+
+    @Override
+    public long getDataSize() {
+        return 0;
+    }
+
+    @Override
+    public void checkUpdate(Document oldDocument, Document newDocument) {
+    }
+
+    @Override
+    public void updateInPlace(Document oldDocument, Document newDocument, Long position) throws KeyConstraintError {
+    }
+}
@@ -8,6 +8,7 @@ import java.sql.SQLException;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.stream.Collectors;
 
 import de.bwaldvogel.mongo.backend.Index;
@@ -48,7 +49,7 @@ public class PostgresUniqueIndex extends Index<Long> {
             .collect(Collectors.joining(", "));
     }
 
-    private static String indexName(List<IndexKey> keys) {
+    static String indexName(List<IndexKey> keys) {
         if (keys.isEmpty()) {
             throw new IllegalArgumentException("No keys");
         }
@@ -57,8 +58,26 @@ public class PostgresUniqueIndex extends Index<Long> {
             .collect(Collectors.joining("_"));
     }
 
+    /**
+     * The unique index of the table rejects duplicates unless one of the key values is null,
+     * which is checked here.
+     */
     @Override
     public void checkAdd(Document document) {
+        if (!isEnforcedByConstraint(document)) {
+            checkNoDuplicateKey(document);
+        }
+    }
+
+    /**
+     * Returns true if the unique index of the table rejects a duplicate of the document.
+     * PostgreSQL does not consider rows with null values as duplicates.
+     */
+    public boolean isEnforcedByConstraint(Document document) {
+        return getKeyValues(document).values().stream().allMatch(Objects::nonNull);
+    }
+
+    public void checkNoDuplicateKey(Document document) {
         Map<String, Object> keyValues = getKeyValues(document);
         String sql = createSelectStatement(keyValues);
         try (Connection connection = backend.getConnection();
@@ -95,7 +114,15 @@ public class PostgresUniqueIndex extends Index<Long> {
 
     @Override
     public Long remove(Document document) {
+        return getPosition(document);
+    }
+
+    @Override
+    public Long getPosition(Document document) {
         Map<String, Object> keyValues = getKeyValues(document);
+        if (keyValues.values().stream().allMatch(Objects::isNull)) {
+            return null;
+        }
         String sql = createSelectStatement(keyValues);
         try (Connection connection = backend.getConnection();
              PreparedStatement stmt = connection.prepareStatement(sql)) {
@@ -111,7 +138,7 @@ public class PostgresUniqueIndex extends Index<Long> {
                 return Long.valueOf(position);
             }
         } catch (SQLException | IOException e) {
-            throw new MongoServerException("failed to remove document from " + fullCollectionName, e);
+            throw new MongoServerException("failed to find document position in " + fullCollectionName, e);
         }
     }
 
@@ -128,7 +155,7 @@ public class PostgresUniqueIndex extends Index<Long> {
     private String createSelectStatement(Map<String, Object> keyValues) {
         return "SELECT id FROM " + fullCollectionName + " WHERE " +
             keyValues.entrySet().stream()
-                .map(entry -> PostgresqlUtils.toDataKey(entry.getKey()) + (entry.getValue() == null ? " IS NULL" : " = ?"))
+                .map(entry -> PostgresqlUtils.toDataKey(entry.getKey()) + (entry.getValue() == null ? " IS NULL" : " = " + PostgresqlUtils.toQueryPlaceholder(entry.getValue())))
                 .collect(Collectors.joining(" AND "));
 
     }
@@ -158,6 +185,6 @@ public class PostgresUniqueIndex extends Index<Long> {
     }
 
     @Override
-    public void updateInPlace(Document oldDocument, Document newDocument) throws KeyConstraintError {
+    public void updateInPlace(Document oldDocument, Document newDocument, Long position) throws KeyConstraintError {
     }
 }
@@ -26,4 +26,13 @@ public class PostgresqlCollectionTest {
             .withMessage("Illegal key: $foo");
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testConvertSkipAndLimitToSql() throws Exception {
+        assertThat(PostgresqlCollection.convertSkipAndLimitToSql(0, 0)).isEqualTo("");
+        assertThat(PostgresqlCollection.convertSkipAndLimitToSql(0, 10)).isEqualTo("LIMIT 10");
+        assertThat(PostgresqlCollection.convertSkipAndLimitToSql(5, 0)).isEqualTo("OFFSET 5");
+        assertThat(PostgresqlCollection.convertSkipAndLimitToSql(5, 10)).isEqualTo("LIMIT 10 OFFSET 5");
+        assertThat(PostgresqlCollection.convertSkipAndLimitToSql(-1, -1)).isEqualTo("");
+    }
+
+}
@@ -22,6 +22,16 @@ public class PostgresqlUtilsTest {
         assertThat(PostgresqlUtils.toDataKey("foo.bar.bla")).isEqualTo("data -> 'foo' -> 'bar' ->> 'bla'");
     }
 
+    @Test
+    public void testToJsonDataKey() throws Exception {
+        assertThat(PostgresqlUtils.toJsonDataKey("foo")).isEqualTo("data -> 'foo'");
+        assertThat(PostgresqlUtils.toJsonDataKey("foo.bar")).isEqualTo("data -> 'foo' -> 'bar'");
+
+        assertThatExceptionOfType(IllegalArgumentException.class)
+            .isThrownBy(() -> PostgresqlUtils.toJsonDataKey("foo'bar"))
+            .withMessage("Illegal key: foo'bar");
+    }
+
     @Test
     public void testToQueryValue() throws Exception {
         assertThat(PostgresqlUtils.toQueryValue(123)).isEqualTo("123");
@@ -39,4 +49,12 @@ public class PostgresqlUtilsTest {
             .withMessage(null);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testToQueryPlaceholder() throws Exception {
+        assertThat(PostgresqlUtils.toQueryPlaceholder("foobar")).isEqualTo("?");
+        assertThat(PostgresqlUtils.toQueryPlaceholder(123)).isEqualTo("?");
+        assertThat(PostgresqlUtils.toQueryPlaceholder(new ObjectId())).isEqualTo("(?::jsonb)::text");
+        assertThat(PostgresqlUtils.toQueryPlaceholder(new Document("key", "value"))).isEqualTo("(?::jsonb)::text");
+    }
+
+}
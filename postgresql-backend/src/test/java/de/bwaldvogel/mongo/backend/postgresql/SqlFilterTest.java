@@ -0,0 +1,117 @@
+package de.bwaldvogel.mongo.backend.postgresql;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import de.bwaldvogel.mongo.bson.Document;
+import de.bwaldvogel.mongo.bson.ObjectId;
+
+public class SqlFilterTest {
+
+    @Test
+    public void testEmptyQuery() throws Exception {
+        SqlFilter filter = SqlFilter.fromQuery(new Document(), "_id");
+        assertThat(filter.getWhereClause()).isEmpty();
+        assertThat(filter.getParameters()).isEmpty();
+        assertThat(filter.isExact()).isTrue();
+    }
+
+    @Test
+    public void testEqualsOnId() throws Exception {
+        SqlFilter filter = SqlFilter.fromQuery(new Document("_id", "abc"), "_id");
+        assertThat(filter.getWhereClause()).isEqualTo(" WHERE jsonb_typeof(data -> '_id') = 'string' AND data ->> '_id' = ?");
+        assertThat(filter.getParameters()).containsExactly("abc");
+        assertThat(filter.isExact()).isTrue();
+    }
+
+    @Test
+    public void testEqualsOnObjectId() throws Exception {
+        ObjectId id = new ObjectId("foobarfoobar".getBytes(StandardCharsets.UTF_8));
+        SqlFilter filter = SqlFilter.fromQuery(new Document("_id", id), "_id");
+        assertThat(filter.getWhereClause()).isEqualTo(" WHERE jsonb_typeof(data -> '_id') = 'object' AND data ->> '_id' = (?::jsonb)::text");
+        assertThat(filter.getParameters()).containsExactly("{\"@class\":\"de.bwaldvogel.mongo.bson.ObjectId\",\"data\":\"Zm9vYmFyZm9vYmFy\"}");
+        assertThat(filter.isExact()).isTrue();
+    }
+
+    @Test
+    public void testEqualsIsTranslatedToContainment() throws Exception {
+        SqlFilter filter = SqlFilter.fromQuery(new Document("a", "x"), "_id");
+        assertThat(filter.getWhereClause()).isEqualTo(" WHERE (data @> ?::jsonb) OR (data @> ?::jsonb)");
+        assertThat(filter.getParameters()).containsExactly("{\"a\":\"x\"}", "{\"a\":[[\"x\"]]}");
+        assertThat(filter.isExact()).isTrue();
+    }
+
+    @Test
+    public void testEqualsOnNumberMatchesWrappedLongs() throws Exception {
+        SqlFilter filter = SqlFilter.fromQuery(new Document("a", 2.0), "_id");
+        assertThat(filter.getWhereClause()).isEqualTo(" WHERE (data @> ?::jsonb) OR (data @> ?::jsonb) OR (data @> ?::jsonb) OR (data @> ?::jsonb)");
+        assertThat(filter.getParameters()).containsExactly(
+            "{\"a\":2.0}",
+            "{\"a\":[[2.0]]}",
+            "{\"a\":[\"java.lang.Long\",2]}",
+            "{\"a\":[[[\"java.lang.Long\",2]]]}");
+        assertThat(filter.isExact()).isTrue();
+    }
+
+    @Test
+    public void testEqualsOnFieldThatMightBeInAnArray() throws Exception {
+        SqlFilter filter = SqlFilter.fromQuery(new Document("a.b", 1.5), "_id");
+        assertThat(filter.getWhereClause()).isEqualTo(" WHERE (data @> ?::jsonb)" +
+            " OR ((jsonb_typeof(data -> 'a') = 'array') OR (jsonb_typeof(data -> 'a' -> 'b') = 'array'))");
+        assertThat(filter.getParameters()).containsExactly("{\"a\":{\"b\":1.5}}");
+        assertThat(filter.isExact()).isFalse();
+    }
+
+    @Test
+    public void testRangeOnFieldThatMightBeAnArray() throws Exception {
+        SqlFilter filter = SqlFilter.fromQuery(new Document("a", new Document("$gt", 1)), "_id");
+        assertThat(filter.getWhereClause()).isEqualTo(" WHERE (CASE WHEN jsonb_typeof(data -> 'a') = 'number'" +
+            " THEN (data ->> 'a')::numeric > ? ELSE FALSE END) OR (jsonb_typeof(data -> 'a') = 'array')");
+        assertThat(filter.getParameters()).containsExactly(BigDecimal.valueOf(1));
+        assertThat(filter.isExact()).isFalse();
+    }
+
+    @Test
+    public void testInAndRange() throws Exception {
+        SqlFilter filter = SqlFilter.fromQuery(new Document("$and", Arrays.asList(
+            new Document("_id", new Document("$in", Arrays.asList("a", "b"))),
+            new Document("_id", new Document("$gte", "a").append("$lt", "c")))), "_id");
+        assertThat(filter.getWhereClause()).isEqualTo(" WHERE (" +
+            "(jsonb_typeof(data -> '_id') = 'string' AND data ->> '_id' = ?) OR (jsonb_typeof(data -> '_id') = 'string' AND data ->> '_id' = ?)) AND (" +
+            "(jsonb_typeof(data -> '_id') = 'string' AND (data ->> '_id') COLLATE \"C\" >= ?) AND (jsonb_typeof(data -> '_id') = 'string' AND (data ->> '_id') COLLATE \"C\" < ?))");
+        assertThat(filter.getParameters()).containsExactly("a", "b", "a", "c");
+        assertThat(filter.isExact()).isTrue();
+    }
+
+    @Test
+    public void testExists() throws Exception {
+        SqlFilter filter = SqlFilter.fromQuery(new Document("a", new Document("$exists", true))
+            .append("b", new Document("$exists", false)), "_id");
+        assertThat(filter.getWhereClause()).isEqualTo(" WHERE (data -> 'a' IS NOT NULL) AND (data -> 'b' IS NULL)");
+        assertThat(filter.isExact()).isTrue();
+    }
+
+    @Test
+    public void testUntranslatableConditionsRemainForTheQueryMatcher() throws Exception {
+        SqlFilter filter = SqlFilter.fromQuery(new Document("_id", "abc").append("a", new Document("$ne", 1)), "_id");
+        assertThat(filter.getWhereClause()).isEqualTo(" WHERE jsonb_typeof(data -> '_id') = 'string' AND data ->> '_id' = ?");
+        assertThat(filter.getParameters()).containsExactly("abc");
+        assertThat(filter.isExact()).isFalse();
+    }
+
+    @Test
+    public void testOrWithUntranslatableAlternativeMatchesAll() throws Exception {
+        SqlFilter filter = SqlFilter.fromQuery(new Document("$or", Arrays.asList(
+            new Document("_id", "abc"),
+            new Document("a", new Document("$size", 2)))), "_id");
+        assertThat(filter.getWhereClause()).isEmpty();
+        assertThat(filter.getParameters()).isEmpty();
+        assertThat(filter.isExact()).isFalse();
+    }
+
+}
@@ -51,6 +51,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.mongodb.DBRef;
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoCommandException;
 import com.mongodb.MongoException;
 import com.mongodb.MongoNamespace;
@@ -69,6 +70,7 @@ import com.mongodb.client.model.DeleteManyModel;
 import com.mongodb.client.model.EstimatedDocumentCountOptions;
 import com.mongodb.client.model.FindOneAndUpdateOptions;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertManyOptions;
 import com.mongodb.client.model.InsertOneModel;
 import com.mongodb.client.model.RenameCollectionOptions;
 import com.mongodb.client.model.ReplaceOptions;
@@ -739,6 +741,35 @@ public abstract class AbstractBackendTest extends AbstractTest {
             .containsOnly(json("_id: 'jon', foo: 'ba'"));
     }
 
+    @Test
+    public void testFindWithAnchoredPatternOnIndex() {
+        collection.createIndex(json("name: 1"), new IndexOptions().unique(true));
+        collection.insertOne(json("_id: 1, name: 'abc'"));
+        collection.insertOne(json("_id: 2, name: 'abd'"));
+        collection.insertOne(json("_id: 3, name: 'abcde'"));
+        collection.insertOne(json("_id: 4, name: 'xabc'"));
+        collection.insertOne(json("_id: 5, name: 'ABC'"));
+        collection.insertOne(json("_id: 6, name: 'ac'"));
+
+        assertThat(toArray(collection.find(new Document("name", Pattern.compile("^abc")))))
+            .containsOnly(json("_id: 1, name: 'abc'"), json("_id: 3, name: 'abcde'"));
+
+        assertThat(toArray(collection.find(new Document("name", Pattern.compile("^abc$")))))
+            .containsOnly(json("_id: 1, name: 'abc'"));
+
+        assertThat(toArray(collection.find(new Document("name", Pattern.compile("^ab?c")))))
+            .containsOnly(json("_id: 1, name: 'abc'"), json("_id: 3, name: 'abcde'"), json("_id: 6, name: 'ac'"));
+
+        assertThat(toArray(collection.find(new Document("name", Pattern.compile("^abc", Pattern.CASE_INSENSITIVE)))))
+            .containsOnly(json("_id: 1, name: 'abc'"), json("_id: 3, name: 'abcde'"), json("_id: 5, name: 'ABC'"));
+
+        assertThat(toArray(collection.find(new Document("name", Pattern.compile("abc")))))
+            .containsOnly(json("_id: 1, name: 'abc'"), json("_id: 3, name: 'abcde'"), json("_id: 4, name: 'xabc'"));
+
+        assertThat(toArray(collection.find(new Document("name", Pattern.compile("^zz")))))
+            .isEmpty();
+    }
+
     @Test
     public void testFindWithQuery() {
         collection.insertOne(json("name: 'jon'"));
@@ -786,6 +817,29 @@ public abstract class AbstractBackendTest extends AbstractTest {
             .containsExactly(json("_id: 5"));
     }
 
+    @Test
+    public void testFindWithSkipLimitWithoutSort() {
+        for (int i = 1; i <= 10; i++) {
+            collection.insertOne(new Document("_id", i).append("x", i % 2));
+        }
+
+        assertThat(toArray(collection.find(json("x: 1")).limit(2).skip(1))).hasSize(2);
+        assertThat(toArray(collection.find(json("x: 1")).limit(10).skip(3))).hasSize(2);
+        assertThat(toArray(collection.find(json("x: 1")).skip(5))).isEmpty();
+        assertThat(collection.find(json("x: 0")).first()).isEqualTo(json("_id: 2, x: 0"));
+        assertThat(collection.countDocuments(json("x: 1"), new CountOptions().skip(1).limit(3))).isEqualTo(3);
+    }
+
+    @Test
+    public void testFindWithSkipBeyondIndexedResults() {
+        collection.insertOne(json("_id: 1"));
+        collection.insertOne(json("_id: 2"));
+
+        assertThat(toArray(collection.find(json("_id: {$in: [1, 2]}")).skip(5))).isEmpty();
+        assertThat(toArray(collection.find(json("_id: {$in: [1, 2]}")).sort(json("_id: -1")).skip(1)))
+            .containsExactly(json("_id: 1"));
+    }
+
     @Test
     public void testFullUpdateWithSameId() throws Exception {
         collection.insertOne(json("_id: 1"));
@@ -891,6 +945,26 @@ public abstract class AbstractBackendTest extends AbstractTest {
         assertThat(collection.countDocuments()).isEqualTo(1);
     }
 
+    @Test
+    public void testInsertManyWithDuplicateKey() throws Exception {
+        collection.insertOne(json("_id: 2"));
+
+        assertThatExceptionOfType(MongoBulkWriteException.class)
+            .isThrownBy(() -> collection.insertMany(Arrays.asList(json("_id: 1"), json("_id: 2"), json("_id: 3"))))
+            .satisfies(e -> {
+                assertThat(e.getWriteErrors()).hasSize(1);
+                assertThat(e.getWriteErrors().get(0).getIndex()).isEqualTo(1);
+                assertThat(e.getWriteErrors().get(0).getMessage()).contains("duplicate key error index: _id_ dup key: { : 2.0 }");
+            });
+        assertThat(toArray(collection.find())).containsExactlyInAnyOrder(json("_id: 1"), json("_id: 2"));
+
+        assertThatExceptionOfType(MongoBulkWriteException.class)
+            .isThrownBy(() -> collection.insertMany(Arrays.asList(json("_id: 4"), json("_id: 2"), json("_id: 3")),
+                new InsertManyOptions().ordered(false)))
+            .satisfies(e -> assertThat(e.getWriteErrors().get(0).getIndex()).isEqualTo(1));
+        assertThat(toArray(collection.find())).containsExactlyInAnyOrder(json("_id: 1"), json("_id: 2"), json("_id: 3"), json("_id: 4"));
+    }
+
     @Test(expected = MongoException.class)
     public void testInsertDuplicateThrows() {
         collection.insertOne(json("_id: 1"));
@@ -1192,6 +1266,29 @@ public abstract class AbstractBackendTest extends AbstractTest {
         assertThat(collection.find().first()).isEqualTo(json("_id: 1"));
     }
 
+    @Test
+    public void testBulkRemoveAndReinsertWithIndex() throws Exception {
+        collection.createIndex(json("value: 1"), new IndexOptions().unique(true));
+        List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            documents.add(new Document("_id", i).append("value", "v" + i));
+        }
+        collection.insertMany(documents);
+
+        collection.deleteMany(json("_id: {$lt: 4900}"));
+        assertThat(collection.countDocuments()).isEqualTo(100);
+
+        collection.insertOne(json("_id: 'new', value: 'v0'"));
+        assertThat(collection.find(json("value: 'v4950'")).first()).isEqualTo(json("_id: 4950, value: 'v4950'"));
+        assertThat(collection.find(json("_id: 4999")).first()).isEqualTo(json("_id: 4999, value: 'v4999'"));
+        assertThat(collection.find(json("value: 'v0'")).first()).isEqualTo(json("_id: 'new', value: 'v0'"));
+
+        collection.updateOne(json("_id: 4901"), json("$set: {value: 'updated'}"));
+        assertThat(collection.find(json("value: 'updated'")).first()).isEqualTo(json("_id: 4901, value: 'updated'"));
+        assertThat(collection.find(json("value: 'v4901'")).first()).isNull();
+        assertThat(collection.countDocuments()).isEqualTo(101);
+    }
+
     @Test
     public void testRemoveSingle() throws Exception {
         Document obj = new Document("_id", ObjectId.get());
@@ -2239,6 +2336,324 @@ public abstract class AbstractBackendTest extends AbstractTest {
             );
     }
 
+    @Test
+    public void testUniqueIndexIsUpdatedWhenIndexedFieldChanges() {
+        collection.createIndex(json("a: 1"), new IndexOptions().unique(true));
+
+        collection.insertOne(json("_id: 1, a: 1"));
+        collection.insertOne(json("_id: 2"));
+
+        collection.updateOne(json("_id: 1"), set("a", 2));
+        collection.updateOne(json("_id: 2"), set("a", 3));
+
+        assertThat(toArray(collection.find(json("a: 1")))).isEmpty();
+        assertThat(toArray(collection.find(json("a: 2")))).containsExactly(json("_id: 1, a: 2"));
+        assertThat(toArray(collection.find(json("a: 3")))).containsExactly(json("_id: 2, a: 3"));
+
+        collection.insertOne(json("_id: 3, a: 1"));
+
+        assertThatExceptionOfType(MongoWriteException.class)
+            .isThrownBy(() -> collection.insertOne(json("_id: 4, a: 2")))
+            .withMessage("duplicate key error index: a_1 dup key: { : 2.0 }");
+    }
+
+    @Test
+    public void testRemoveDocumentWithoutValueForUniqueIndex() {
+        collection.createIndex(json("a: 1"), new IndexOptions().unique(true));
+
+        collection.insertOne(json("_id: 1"));
+        collection.insertOne(json("_id: 2, a: null"));
+
+        collection.deleteOne(json("_id: 1"));
+
+        assertThat(toArray(collection.find())).containsExactly(json("_id: 2, a: null"));
+        assertThat(toArray(collection.find(json("a: null")))).containsExactly(json("_id: 2, a: null"));
+    }
+
+    @Test
+    public void testCreateUniqueIndexOnExistingDocuments() {
+        collection.insertOne(json("_id: 1, a: 'x'"));
+        collection.insertOne(json("_id: 2, a: 'y'"));
+
+        collection.createIndex(json("a: 1"), new IndexOptions().unique(true));
+
+        assertThat(toArray(collection.find(json("a: 'y'")))).containsExactly(json("_id: 2, a: 'y'"));
+
+        assertThatExceptionOfType(MongoWriteException.class)
+            .isThrownBy(() -> collection.insertOne(json("_id: 3, a: 'x'")))
+            .withMessage("duplicate key error index: a_1 dup key: { : \"x\" }");
+    }
+
+    @Test
+    public void testMultikeyUniqueIndex() {
+        collection.createIndex(json("tags: 1"), new IndexOptions().unique(true));
+
+        collection.insertOne(json("_id: 1, tags: ['a', 'b', 'b']"));
+        collection.insertOne(json("_id: 2, tags: ['c']"));
+        collection.insertOne(json("_id: 3, tags: 'd'"));
+        collection.insertOne(json("_id: 4, tags: []"));
+
+        assertThatExceptionOfType(MongoWriteException.class)
+            .isThrownBy(() -> collection.insertOne(json("_id: 5, tags: ['e', 'a']")))
+            .withMessage("duplicate key error index: tags_1 dup key: { : \"a\" }");
+
+        assertThat(toArray(collection.find(json("tags: 'b'")))).containsExactly(json("_id: 1, tags: ['a', 'b', 'b']"));
+        assertThat(toArray(collection.find(json("tags: 'd'")))).containsExactly(json("_id: 3, tags: 'd'"));
+        assertThat(toArray(collection.find(json("tags: {$in: ['a', 'b', 'c']}"))))
+            .containsExactlyInAnyOrder(json("_id: 1, tags: ['a', 'b', 'b']"), json("_id: 2, tags: ['c']"));
+        assertThat(toArray(collection.find(json("tags: ['c']")))).containsExactly(json("_id: 2, tags: ['c']"));
+        assertThat(toArray(collection.find(json("tags: []")))).containsExactly(json("_id: 4, tags: []"));
+
+        collection.updateOne(json("_id: 2"), Updates.push("tags", "x"));
+        collection.updateOne(json("_id: 1"), pull("tags", "a"));
+        collection.updateOne(json("_id: 4"), Updates.addToSet("tags", "a"));
+
+        assertThat(toArray(collection.find(json("tags: 'x'")))).containsExactly(json("_id: 2, tags: ['c', 'x']"));
+        assertThat(toArray(collection.find(json("tags: 'a'")))).containsExactly(json("_id: 4, tags: ['a']"));
+
+        assertThatExceptionOfType(MongoCommandException.class)
+            .isThrownBy(() -> collection.updateOne(json("_id: 4"), Updates.addToSet("tags", "x")))
+            .withMessageContaining("Command failed with error 11000: 'duplicate key error index: tags_1 dup key: { : \"x\" }'");
+
+        collection.deleteOne(json("_id: 2"));
+        assertThat(toArray(collection.find(json("tags: 'c'")))).isEmpty();
+        collection.insertOne(json("_id: 6, tags: ['c', 'x']"));
+    }
+
+    @Test
+    public void testMultikeyUniqueIndexOnArrayOfSubdocuments() {
+        collection.createIndex(json("'items.sku': 1"), new IndexOptions().unique(true));
+
+        collection.insertOne(json("_id: 1, items: [{sku: 'abc'}, {sku: 'def'}]"));
+        collection.insertOne(json("_id: 2, items: [{sku: 'ghi'}, {other: 1}]"));
+
+        assertThatExceptionOfType(MongoWriteException.class)
+            .isThrownBy(() -> collection.insertOne(json("_id: 3, items: [{sku: 'def'}]")))
+            .withMessage("duplicate key error index: items.sku_1 dup key: { : \"def\" }");
+
+        assertThat(toArray(collection.find(json("'items.sku': 'def'"))))
+            .containsExactly(json("_id: 1, items: [{sku: 'abc'}, {sku: 'def'}]"));
+    }
+
+    @Test
+    public void testCompoundMultikeyIndexWithParallelArrays() {
+        collection.createIndex(json("a: 1, b: 1"), new IndexOptions().unique(true));
+
+        collection.insertOne(json("_id: 1, a: [1, 2], b: 'x'"));
+
+        collection.insertOne(json("_id: 2, a: [3], b: 'x'"));
+
+        assertThatExceptionOfType(MongoWriteException.class)
+            .isThrownBy(() -> collection.insertOne(json("_id: 3, a: [1], b: 'x'")))
+            .withMessage("duplicate key error index: a_1_b_1 dup key: { : 1.0, : \"x\" }");
+
+        assertThatExceptionOfType(MongoWriteException.class)
+            .isThrownBy(() -> collection.insertOne(json("_id: 4, a: [1, 2], b: [3, 4]")))
+            .withMessage("cannot index parallel arrays [a] [b]");
+
+        assertThat(toArray(collection.find(json("a: 3")))).containsExactly(json("_id: 2, a: [3], b: 'x'"));
+        assertThat(collection.countDocuments()).isEqualTo(2);
+    }
+
+    @Test
+    public void testExplainFind() throws Exception {
+        collection.insertOne(json("_id: 1, a: 'x'"));
+        collection.insertOne(json("_id: 2, a: 'y'"));
+        collection.insertOne(json("_id: 3, a: 'x'"));
+
+        String collectionName = collection.getNamespace().getCollectionName();
+        Document explain = db.runCommand(new Document("explain", new Document("find", collectionName).append("filter", json("_id: 2"))));
+        Document queryPlanner = (Document) explain.get("queryPlanner");
+        assertThat(queryPlanner.get("namespace")).isEqualTo(collection.getNamespace().getFullName());
+        assertThat(queryPlanner.get("winningPlan"))
+            .isEqualTo(json("stage: 'FETCH', inputStage: {stage: 'IXSCAN', keyPattern: {_id: 1}, indexName: '_id_'}"));
+        assertThat(queryPlanner.get("rejectedPlans")).isEqualTo(Collections.singletonList(json("stage: 'COLLSCAN', direction: 'forward'")));
+        Document executionStats = (Document) explain.get("executionStats");
+        assertThat(executionStats.get("nReturned")).isEqualTo(1);
+        assertThat(executionStats.get("totalKeysExamined")).isEqualTo(1L);
+        assertThat(executionStats.get("totalDocsExamined")).isEqualTo(1L);
+
+        explain = db.runCommand(new Document("explain", new Document("find", collectionName)
+            .append("filter", json("a: 'x'")).append("sort", json("a: 1")).append("limit", 1)));
+        queryPlanner = (Document) explain.get("queryPlanner");
+        assertThat(queryPlanner.get("winningPlan"))
+            .isEqualTo(json("stage: 'LIMIT', limitAmount: 1, inputStage: {stage: 'SORT', sortPattern: {a: 1}, inputStage: {stage: 'COLLSCAN', direction: 'forward'}}"));
+        assertThat(queryPlanner.get("rejectedPlans")).isEqualTo(Collections.emptyList());
+        executionStats = (Document) explain.get("executionStats");
+        assertThat(executionStats.get("nReturned")).isEqualTo(1);
+        assertThat(executionStats.get("totalKeysExamined")).isEqualTo(0L);
+        assertThat(executionStats.get("totalDocsExamined")).isEqualTo(3L);
+
+        explain = db.runCommand(new Document("explain", new Document("find", collectionName)).append("verbosity", "queryPlanner"));
+        assertThat(explain).containsKey("queryPlanner").doesNotContainKey("executionStats");
+    }
+
+    @Test
+    public void testRangeQueryOnIdsOfMixedTypes() throws Exception {
+        collection.insertOne(json("_id: 5"));
+        collection.insertOne(json("_id: 'c'"));
+        collection.insertOne(json("_id: 1"));
+        collection.insertOne(json("_id: 2.5"));
+        collection.insertOne(json("_id: 'a'"));
+        collection.insertOne(new Document("_id", 3L));
+        collection.insertOne(json("_id: null"));
+        collection.insertOne(json("_id: true"));
+        collection.insertOne(json("_id: {x: 1}"));
+
+        assertThat(toArray(collection.find(json("_id: {$gt: 1}"))))
+            .containsOnly(json("_id: 2.5"), new Document("_id", 3L), json("_id: 5"));
+        assertThat(toArray(collection.find(json("_id: {$gte: 1, $lt: 5}"))))
+            .containsOnly(json("_id: 1"), json("_id: 2.5"), new Document("_id", 3L));
+        assertThat(toArray(collection.find(json("_id: {$lte: 3}"))))
+            .containsOnly(json("_id: 1"), json("_id: 2.5"), new Document("_id", 3L));
+        assertThat(toArray(collection.find(json("_id: {$gt: 'a'}")))).containsOnly(json("_id: 'c'"));
+        assertThat(toArray(collection.find(json("_id: {$lt: 'b'}")))).containsOnly(json("_id: 'a'"));
+        assertThat(toArray(collection.find(json("_id: {$gt: 0, $lt: 'z'}")))).isEmpty();
+        assertThat(toArray(collection.find(json("_id: {$gt: 5}")))).isEmpty();
+        assertThat(toArray(collection.find(json("_id: {$gte: false}")))).containsOnly(json("_id: true"));
+
+        collection.deleteMany(json("_id: {$gte: 2.5, $lt: 5}"));
+        assertThat(toArray(collection.find(json("_id: {$gt: 0}")))).containsOnly(json("_id: 1"), json("_id: 5"));
+    }
+
+    @Test
+    public void testExplainCountAndDistinct() throws Exception {
+        collection.createIndex(json("a: 1"), new IndexOptions().unique(true));
+        collection.insertOne(json("_id: 1, a: 1, b: 'x'"));
+        collection.insertOne(json("_id: 2, a: 2, b: 'y'"));
+        collection.insertOne(json("_id: 3, a: 3, b: 'x'"));
+
+        String collectionName = collection.getNamespace().getCollectionName();
+        Document explain = db.runCommand(new Document("explain", new Document("count", collectionName)
+            .append("query", json("a: {$in: [1, 3]}"))));
+        Document queryPlanner = (Document) explain.get("queryPlanner");
+        assertThat(queryPlanner.get("winningPlan"))
+            .isEqualTo(json("stage: 'COUNT', inputStage: {stage: 'COUNT_SCAN', keyPattern: {a: 1}, indexName: 'a_1'}"));
+        Document executionStats = (Document) explain.get("executionStats");
+        assertThat(executionStats.get("nReturned")).isEqualTo(2);
+        assertThat(executionStats.get("totalKeysExamined")).isEqualTo(2L);
+        assertThat(executionStats.get("totalDocsExamined")).isEqualTo(0L);
+
+        explain = db.runCommand(new Document("explain", new Document("count", collectionName).append("query", json(""))));
+        queryPlanner = (Document) explain.get("queryPlanner");
+        assertThat(queryPlanner.get("winningPlan")).isEqualTo(json("stage: 'RECORD_STORE_FAST_COUNT'"));
+        executionStats = (Document) explain.get("executionStats");
+        assertThat(executionStats.get("nReturned")).isEqualTo(3);
+        assertThat(executionStats.get("totalDocsExamined")).isEqualTo(0L);
+
+        explain = db.runCommand(new Document("explain", new Document("distinct", collectionName)
+            .append("key", "b").append("query", json("b: 'x'"))));
+        queryPlanner = (Document) explain.get("queryPlanner");
+        assertThat(queryPlanner.get("winningPlan"))
+            .isEqualTo(json("stage: 'PROJECTION', transformBy: {b: 1}, inputStage: {stage: 'COLLSCAN', direction: 'forward'}"));
+        executionStats = (Document) explain.get("executionStats");
+        assertThat(executionStats.get("nReturned")).isEqualTo(1);
+        assertThat(executionStats.get("totalDocsExamined")).isEqualTo(3L);
+    }
+
+    @Test
+    public void testIndexOnlyCountDistinctAndCoveredQuery() throws Exception {
+        collection.createIndex(json("name: 1"), new IndexOptions().unique(true));
+        collection.insertOne(json("_id: 1, name: 'c', value: 10"));
+        collection.insertOne(json("_id: 2, name: 'a', value: 20"));
+        collection.insertOne(json("_id: 3, name: 'b', value: 30"));
+        collection.insertOne(json("_id: 4, value: 40"));
+
+        assertThat(collection.countDocuments(json("name: {$in: ['a', 'c', 'x']}"))).isEqualTo(2);
+        assertThat(collection.countDocuments(json("name: 'b'"))).isEqualTo(1);
+        assertThat(collection.countDocuments(json("name: 'x'"))).isZero();
+
+        assertThat(toArray(collection.distinct("name", String.class))).containsExactly("a", "b", "c");
+
+        assertThat(toArray(collection.find(json("name: 'b'")).projection(json("name: 1, _id: 0"))))
+            .containsExactly(json("name: 'b'"));
+        assertThat(toArray(collection.find(json("name: 'b'")).projection(json("name: 1"))))
+            .containsExactly(json("_id: 3, name: 'b'"));
+        assertThat(toArray(collection.find(json("name: 'x'")).projection(json("name: 1, _id: 0"))))
+            .isEmpty();
+
+        String collectionName = collection.getNamespace().getCollectionName();
+        Document explain = db.runCommand(new Document("explain", new Document("distinct", collectionName).append("key", "name")));
+        Document queryPlanner = (Document) explain.get("queryPlanner");
+        assertThat(queryPlanner.get("winningPlan"))
+            .isEqualTo(json("stage: 'PROJECTION', transformBy: {name: 1}, inputStage: {stage: 'DISTINCT_SCAN', keyPattern: {name: 1}, indexName: 'name_1'}"));
+        Document executionStats = (Document) explain.get("executionStats");
+        assertThat(executionStats.get("nReturned")).isEqualTo(3);
+        assertThat(executionStats.get("totalDocsExamined")).isEqualTo(0L);
+
+        explain = db.runCommand(new Document("explain", new Document("find", collectionName)
+            .append("filter", json("name: 'b'")).append("projection", json("name: 1, _id: 0"))));
+        queryPlanner = (Document) explain.get("queryPlanner");
+        assertThat(queryPlanner.get("winningPlan"))
+            .isEqualTo(json("stage: 'PROJECTION_COVERED', transformBy: {name: 1, _id: 0}, inputStage: {stage: 'IXSCAN', keyPattern: {name: 1}, indexName: 'name_1'}"));
+        executionStats = (Document) explain.get("executionStats");
+        assertThat(executionStats.get("nReturned")).isEqualTo(1);
+        assertThat(executionStats.get("totalDocsExamined")).isEqualTo(0L);
+    }
+
+    @Test
+    public void testDistinctOnIndexWithNumbersAndArrays() throws Exception {
+        collection.createIndex(json("value: 1"), new IndexOptions().unique(true));
+        collection.createIndex(json("tags: 1"), new IndexOptions().unique(true));
+        collection.insertOne(json("_id: 1, value: 1, tags: ['x', 'y']"));
+        collection.insertOne(json("_id: 2, value: 2.5, tags: 'z'"));
+
+        String collectionName = collection.getNamespace().getCollectionName();
+        Document result = db.runCommand(new Document("distinct", collectionName).append("key", "value"));
+        assertThat(result.get("values")).isEqualTo(Arrays.asList(1, 2.5));
+
+        assertThat(toArray(collection.find(json("tags: 'x'")).projection(json("tags: 1, _id: 0"))))
+            .containsExactly(json("tags: ['x', 'y']"));
+    }
+
+    @Test
+    public void testPlanCacheListQueryShapesAndClear() throws Exception {
+        collection.insertOne(json("_id: 1, a: 1"));
+        collection.insertOne(json("_id: 2, a: 2"));
+
+        String collectionName = collection.getNamespace().getCollectionName();
+        Document listQueryShapes = new Document("planCacheListQueryShapes", collectionName);
+        assertThat(db.runCommand(listQueryShapes).get("shapes")).isEqualTo(Collections.emptyList());
+
+        assertThat(toArray(collection.find(json("_id: 1")))).containsExactly(json("_id: 1, a: 1"));
+        assertThat(toArray(collection.find(json("_id: 2")))).containsExactly(json("_id: 2, a: 2"));
+        assertThat(toArray(collection.find(json("a: 2")).sort(json("a: -1")))).containsExactly(json("_id: 2, a: 2"));
+
+        assertThat(db.runCommand(listQueryShapes).get("shapes")).isEqualTo(Arrays.asList(
+            json("query: {_id: 'value'}, sort: {}, projection: {}"),
+            json("query: {a: 'value'}, sort: {a: -1}, projection: {}")));
+
+        db.runCommand(new Document("planCacheClear", collectionName).append("query", json("_id: 5")));
+        assertThat(db.runCommand(listQueryShapes).get("shapes"))
+            .isEqualTo(Collections.singletonList(json("query: {a: 'value'}, sort: {a: -1}, projection: {}")));
+
+        db.runCommand(new Document("planCacheClear", collectionName));
+        assertThat(db.runCommand(listQueryShapes).get("shapes")).isEqualTo(Collections.emptyList());
+
+        assertThat(toArray(collection.find(json("a: 1")))).containsExactly(json("_id: 1, a: 1"));
+        collection.createIndex(json("a: 1"), new IndexOptions().unique(true));
+        assertThat(db.runCommand(listQueryShapes).get("shapes")).isEqualTo(Collections.emptyList());
+        assertThat(toArray(collection.find(json("a: 1")))).containsExactly(json("_id: 1, a: 1"));
+
+        assertThat(db.runCommand(json("planCacheListQueryShapes: 'doesNotExist'")).get("shapes")).isEqualTo(Collections.emptyList());
+    }
+
+    @Test
+    public void testExplainOnMissingCollection() throws Exception {
+        Document explain = db.runCommand(json("explain: {find: 'doesNotExist'}"));
+        Document queryPlanner = (Document) explain.get("queryPlanner");
+        assertThat(queryPlanner.get("winningPlan")).isEqualTo(json("stage: 'EOF'"));
+    }
+
+    @Test
+    public void testExplainUnsupportedCommand() throws Exception {
+        collection.insertOne(json("_id: 1"));
+        String collectionName = collection.getNamespace().getCollectionName();
+        assertThatExceptionOfType(MongoCommandException.class)
+            .isThrownBy(() -> db.runCommand(new Document("explain", new Document("foo", collectionName))))
+            .withMessageContaining("Command failed with error 59 (CommandNotFound): 'Explain failed due to unknown command: foo'");
+    }
+
     @Test
     public void testCursorOptionNoTimeout() throws Exception {
         try (MongoCursor<Document> cursor = collection.find().noCursorTimeout(true).iterator()) {